@@ -0,0 +1,77 @@
+package benchmarks;
+
+import ihdn.GraphBuilder;
+import ihdn.IHDN;
+import ihdn.IHDNLabels;
+import ihdn.IHDNNode;
+import ihdn.Simulation;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Temporary stores and regular hierarchies for the benchmarks: one ROOT with fanOut children per node, depth
+ * levels in all, and functions that change nothing but hand the node to a blackhole, so a store can be measured
+ * again and again.
+ */
+final class BenchmarkGraphs {
+
+    private BenchmarkGraphs() {
+    }
+
+    // not yet created, for IHDNBuilder.withNewDB()
+    static File temporaryStore() {
+        try {
+            File directory = Files.createTempDirectory("ihdn-bench").toFile();
+            return new File(directory, "graph.db");
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create temporary directory.", e);
+        }
+    }
+
+    static void delete(File store) {
+        File directory = store.getParentFile();
+        try {
+            Files.walk(directory.toPath())
+                    .sorted((a, b) -> b.compareTo(a))
+                    .forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot delete " + directory + ".", e);
+        }
+    }
+
+    // functions f0 to f(functions - 1), each its own instance, that consume the node
+    static IHDN.IHDNBuilder builder(int functions, Blackhole blackhole) {
+        IHDN.IHDNBuilder builder = new IHDN.IHDNBuilder()
+                .withSimulation(new Simulation() {
+                })
+                .setSeed(1);
+        for (int i = 0; i < functions; i++)
+            builder.withFunction("f" + i, (ihdn, node) -> blackhole.consume(node));
+        return builder;
+    }
+
+    static GraphBuilder tree(int depth, int fanOut) {
+        return ihdn -> grow(ihdn, new IHDNNode(ihdn, IHDNLabels.ROOT), depth - 1, fanOut);
+    }
+
+    static void grow(IHDN ihdn, IHDNNode parent, int levels, int fanOut) {
+        if (levels <= 0) return;
+        for (int i = 0; i < fanOut; i++) {
+            IHDNNode child = new IHDNNode(ihdn);
+            parent.addChild(child);
+            grow(ihdn, child, levels - 1, fanOut);
+        }
+    }
+
+    static long nodes(int depth, int fanOut) {
+        long nodes = 0, level = 1;
+        for (int d = 0; d < depth; d++) {
+            nodes += level;
+            level *= fanOut;
+        }
+        return nodes;
+    }
+}
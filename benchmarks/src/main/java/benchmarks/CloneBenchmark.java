@@ -0,0 +1,91 @@
+package benchmarks;
+
+import ihdn.IHDN;
+import ihdn.IHDNLabels;
+import ihdn.IHDNNode;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies of a regular subtree: {@link IHDNNode#deepClone()}, {@link IHDNNode#cowClone()} and
+ * {@link IHDN#replicate(IHDNNode, int)}. Each invocation runs in its own transaction, rolled back afterwards, so
+ * the store does not grow.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class CloneBenchmark {
+
+    @Param({"2", "4"})
+    public int depth;
+
+    @Param({"4", "8"})
+    public int fanOut;
+
+    private static final int REPLICAS = 10;
+
+    private File store;
+    private IHDN ihdn;
+    private Transaction tx;
+    private IHDNNode template;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        store = BenchmarkGraphs.temporaryStore();
+        // the template hangs under the root, so clones are attached to it too
+        ihdn = BenchmarkGraphs.builder(1, blackhole)
+                .withNewDB(store.getPath())
+                .withGraphBuilder(graph -> BenchmarkGraphs.grow(graph, new IHDNNode(graph, IHDNLabels.ROOT),
+                        1, 1))
+                .createIHDN();
+        try (Transaction setup = ihdn.beginTx()) {
+            IHDNNode root = ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().orElseThrow(IllegalStateException::new);
+            IHDNNode child = root.getAllChildNodes().findFirst().orElseThrow(IllegalStateException::new);
+            BenchmarkGraphs.grow(ihdn, child, depth, fanOut);
+            setup.success();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void begin() {
+        tx = ihdn.beginTx();
+        IHDNNode root = ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().orElseThrow(IllegalStateException::new);
+        template = root.getAllChildNodes().findFirst().orElseThrow(IllegalStateException::new);
+    }
+
+    @TearDown(Level.Invocation)
+    public void rollBack() {
+        tx.failure();
+        tx.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ihdn.shutdown();
+        BenchmarkGraphs.delete(store);
+    }
+
+    @Benchmark
+    public IHDNNode deepClone() {
+        return template.deepClone();
+    }
+
+    @Benchmark
+    public IHDNNode cowClone() {
+        return template.cowClone();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPLICAS)
+    public List<IHDNNode> replicate() {
+        return ihdn.replicate(template, REPLICAS);
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import ihdn.ComputeResult;
+import ihdn.IHDN;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Iterations of {@link IHDN#computeAll(int, int)} over a regular hierarchy, on the store and on the in-memory
+ * engine, reported per iteration. Each call runs many iterations in one transaction, so loading the in-memory
+ * engine and committing, done once per call, weigh little. Functions change nothing, so every iteration computes
+ * the same graph.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class ComputeBenchmark {
+
+    @Param({"3", "5"})
+    public int depth;
+
+    @Param({"4", "8"})
+    public int fanOut;
+
+    @Param({"2", "8"})
+    public int functions;
+
+    @Param({"store", "memory"})
+    public String engine;
+
+    private static final int ITERATIONS = 50;
+
+    private File store;
+    private IHDN ihdn;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        store = BenchmarkGraphs.temporaryStore();
+        IHDN.IHDNBuilder builder = BenchmarkGraphs.builder(functions, blackhole)
+                .withNewDB(store.getPath())
+                .withGraphBuilder(BenchmarkGraphs.tree(depth, fanOut));
+        if (engine.equals("memory")) builder.withInMemoryEngine();
+        ihdn = builder.createIHDN();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ihdn.shutdown();
+        BenchmarkGraphs.delete(store);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITERATIONS)
+    public ComputeResult iteration() {
+        return ihdn.computeAll(ITERATIONS, ITERATIONS);
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import ihdn.IHDN;
+import ihdn.IHDNLabels;
+import ihdn.IHDNRelTypes;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IHDN.IHDNBuilder#createIHDN()} on an existing store of nodeCount nodes, including opening and shutting
+ * down the store, which withExistingDB() ties to the builder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CreateIHDNBenchmark {
+
+    @Param({"10000", "100000"})
+    public int nodeCount;
+
+    @Param({"2", "8"})
+    public int functions;
+
+    private static final int BATCH = 10_000;
+
+    private File store;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = BenchmarkGraphs.temporaryStore();
+        GraphDatabaseService db = new GraphDatabaseFactory().newEmbeddedDatabase(store);
+        try {
+            Node root;
+            try (Transaction tx = db.beginTx()) {
+                root = db.createNode(IHDNLabels.ROOT);
+                tx.success();
+            }
+            for (int created = 1; created < nodeCount; ) {
+                try (Transaction tx = db.beginTx()) {
+                    for (int i = 0; i < BATCH && created < nodeCount; i++, created++)
+                        root.createRelationshipTo(db.createNode(), IHDNRelTypes.CONTAINS);
+                    tx.success();
+                }
+            }
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkGraphs.delete(store);
+    }
+
+    @Benchmark
+    public void createIHDN(Blackhole blackhole) {
+        BenchmarkGraphs.builder(functions, blackhole)
+                .withExistingDB(store.getPath())
+                .createIHDN()
+                .shutdown();
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import ihdn.IHDN;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Weighted choice of the function to perform from a combined filter, {@link IHDN#selectFunction(double[], long)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SelectFunctionBenchmark {
+
+    @Param({"2", "8", "32"})
+    public int functions;
+
+    private File store;
+    private IHDN ihdn;
+    private double[] filter;
+    private long nodeKey;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        store = BenchmarkGraphs.temporaryStore();
+        ihdn = BenchmarkGraphs.builder(functions, blackhole)
+                .withNewDB(store.getPath())
+                .withGraphBuilder(BenchmarkGraphs.tree(1, 0))
+                .createIHDN();
+        SplittableRandom random = new SplittableRandom(1);
+        filter = new double[functions];
+        for (int i = 0; i < functions; i++) filter[i] = random.nextDouble();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ihdn.shutdown();
+        BenchmarkGraphs.delete(store);
+    }
+
+    @Benchmark
+    public int select() {
+        // a new node each call, as draws depend on the node key
+        return ihdn.selectFunction(filter, nodeKey++);
+    }
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import ihdn.IHDN;
+import ihdn.IHDNLabels;
+import ihdn.IHDNNode;
+import ihdn.Properties;
+import ihdn.VoteAccumulator;
+import ihdn.VoteFunction;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link VoteFunction#DEFAULT} adding a node's own vote, read from the store, to its children's votes, and the
+ * same through {@link VoteAccumulator#DEFAULT} into a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class VoteFunctionBenchmark {
+
+    @Param({"4", "16", "64"})
+    public int fanOut;
+
+    @Param({"2", "8", "32"})
+    public int functions;
+
+    private File store;
+    private IHDN ihdn;
+    private Transaction tx;
+    private IHDNNode node;
+    private double[][] childVotes;
+    private double[] vote;
+
+    // the transaction is bound to the thread running the benchmark
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        store = BenchmarkGraphs.temporaryStore();
+        ihdn = BenchmarkGraphs.builder(functions, blackhole)
+                .withNewDB(store.getPath())
+                .withGraphBuilder(BenchmarkGraphs.tree(1, 0))
+                .createIHDN();
+
+        SplittableRandom random = new SplittableRandom(1);
+        childVotes = new double[fanOut][functions];
+        vote = new double[functions];
+        for (double[] vote : childVotes)
+            for (int i = 0; i < functions; i++) vote[i] = random.nextDouble();
+
+        tx = ihdn.beginTx();
+        node = ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().orElseThrow(IllegalStateException::new);
+        node.setProperty(Properties.VOTE, childVotes[0].clone());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tx.close();
+        ihdn.shutdown();
+        BenchmarkGraphs.delete(store);
+    }
+
+    @Benchmark
+    public double[] defaultVote() {
+        return VoteFunction.DEFAULT.apply(ihdn, node, Arrays.stream(childVotes));
+    }
+
+    @Benchmark
+    public double[] defaultAccumulator() {
+        Arrays.fill(vote, 0);
+        VoteAccumulator.DEFAULT.begin(ihdn, node, vote);
+        for (double[] childVote : childVotes) VoteAccumulator.DEFAULT.accept(vote, childVote);
+        VoteAccumulator.DEFAULT.finish(ihdn, node, vote);
+        return vote;
+    }
+}
@@ -1,5 +1,7 @@
 package demo;
 
+import ihdn.LineageLog;
+import ihdn.Properties;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
@@ -8,6 +10,11 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 public class Analysis {
 
@@ -34,10 +41,14 @@ public class Analysis {
                 // genomes as properties
                 db.execute(saveTriplesToEachCell);
 
-                // paths
-                Result pathsResult = db.execute(getPathsForEachConfig);
+                // paths, from the lineage log written during the simulation
+                LineageLog lineage = LineageLog.read(new File("graph-c" + c + "-t" + t + ".lineage"));
+                long[] livingCells;
+                try (Result livingResult = db.execute(getLivingCells)) {
+                    livingCells = livingResult.stream().mapToLong(row -> (Long) row.get("id")).toArray();
+                }
                 pathsWriter.write(String.format("\n\nconfig: %d\ntrial: %d\n", c, t));
-                pathsWriter.write(pathsResult.resultAsString());
+                pathsWriter.write(pathsAsString(lineage, livingCells));
                 pathsWriter.flush();
 
                 // genome diversity
@@ -53,6 +64,30 @@ public class Analysis {
         genomeDivWriter.close();
     }
 
+    // all distinct collapsed genome paths back to an origin cell, for each aneuploid genome of a living cell
+    static String pathsAsString(LineageLog lineage, long[] livingCells) {
+        long euploid = SimImpl.genomeSignature(2, 2, 2);
+        long[] aneuploidCells = Arrays.stream(livingCells)
+                .filter(cell -> lineage.contains(cell) && lineage.getSignature(cell) != euploid)
+                .toArray();
+
+        StringBuilder paths = new StringBuilder("gen\tcells\tpath\tnumChanges\n");
+        lineage.collapsedPathCounts(aneuploidCells).entrySet().stream()
+                .sorted(Comparator.<Map.Entry<List<Long>, Long>>comparingLong(path -> path.getKey().get(0))
+                        .thenComparing(Map.Entry.<List<Long>, Long>comparingByValue().reversed()))
+                .forEach(path -> paths
+                        .append(Arrays.toString(SimImpl.genome(path.getKey().get(0)))).append('\t')
+                        .append(path.getValue()).append('\t')
+                        .append(path.getKey().stream().map(signature -> Arrays.toString(SimImpl.genome(signature)))
+                                .collect(Collectors.joining(", ", "[", "]"))).append('\t')
+                        .append(path.getKey().size()).append('\n'));
+        return paths.toString();
+    }
+
+    // the lineage log is by node key
+    private String getLivingCells =
+            "match (c:CELL) where not (c:INACTIVE) return c." + Properties.NODE_KEY + " as id";
+
     private String genomeDiversity =
             "// get distinct genome count per iteration\n" +
                     "unwind range(0,99) as t\n" +
@@ -72,25 +107,5 @@ public class Analysis {
                     "\tsize(filter(x in genes where (x:DIV_GENE))) as d,\n" +
                     "\tsize(filter(x in genes where (x:SEG_GENE))) as s\n" +
                     "set c += {apt: a, div: d, seg: s, genome: [a,d,s]}";
-    
-    private String getPathsForEachConfig =
-            "// get all distinct paths for all aneuploid cell configs\n" +
-                    "\n" +
-                    "// get different living  cell configurations\n" +
-                    "match (c:CELL)\n" +
-                    "where not (c:INACTIVE) and exists(c.genome) and not c.genome=[2,2,2]\n" +
-                    "with distinct c.genome as gen\n" +
-                    "\n" +
-                    "// get all distinct paths for chosen genome\n" +
-                    "match (c:CELL) where (not (c:INACTIVE)) and c.genome=gen\n" +
-                    "with gen, c match p = (c)-[:FROM|WAS*]->(o) where ((o:CELL) or (o:CELL_COPY)) and not (o)-[:FROM|WAS]->() and o.start = 0\n" +
-                    "with gen, p, extract(x in nodes(p) | x.genome) as fullGenomeSequence\n" +
-                    "with gen, p, reduce(out = [], x in fullGenomeSequence | case last(out) when x then out else out + [x] end) as path\n" +
-                    "return distinct\n" +
-                    "\tgen,\n" +
-                    "\tcount(p) as cells,\n" +
-                    "    path,\n" +
-                    "    size(path) as numChanges\n" +
-                    "order by gen, cells desc";
 
 }
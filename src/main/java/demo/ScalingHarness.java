@@ -0,0 +1,136 @@
+package demo;
+
+import ihdn.ExperimentRunner;
+import ihdn.IHDN;
+import ihdn.Simulation;
+import ihdn.SyntheticGraphBuilder;
+import org.neo4j.graphdb.Label;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs computeAll on synthetic hierarchies of increasing size, with one to all available threads, and prints
+ * iterations per second, nodes per second and peak heap for each. Trials run one at a time so that they do not
+ * compete for cores or heap, each in a store in a temporary directory that is deleted once the trial is reported.
+ */
+public class ScalingHarness {
+
+    private static final long[] SIZES = {10_000, 100_000, 1_000_000, 10_000_000};
+    private static final int FUNCTIONS = 4;
+    private static final int ITERATIONS = 10;
+    // nodes per fork/join task
+    private static final int PARALLEL_THRESHOLD = 1_000;
+
+    public static void main(String... args) throws IOException {
+        new ScalingHarness().go();
+    }
+
+    private static final class Scale {
+        final long nodes;
+        final int threads;
+
+        Scale(long nodes, int threads) {
+            this.nodes = nodes;
+            this.threads = threads;
+        }
+
+        @Override
+        public String toString() {
+            return nodes + " nodes, " + threads + " threads";
+        }
+    }
+
+    // no state outside the graph
+    private static final class NoSimulation implements Simulation {
+    }
+
+    // the trial being run, as there is one worker
+    private SyntheticGraphBuilder graph;
+
+    void go() throws IOException {
+        File directory = Files.createTempDirectory("ihdn-scaling").toFile();
+        List<Scale> scales = new ArrayList<>();
+        for (long nodes : SIZES)
+            for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2)
+                scales.add(new Scale(nodes, threads));
+
+        System.out.println("nodes\tthreads\titerations/s\tnodes/s\tpeakHeapMB");
+        try {
+            run(scales, directory);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private void run(List<Scale> scales, File directory) {
+        new ExperimentRunner.ExperimentBuilder<Scale>()
+                .withConfigurations(scales)
+                .setWorkers(1)
+                .setDirectory(directory.getPath())
+                .setIterations(ITERATIONS, Integer.MAX_VALUE)
+                .withTrialSetup((scale, c, t, builder) -> {
+                    resetPeakHeap();
+                    // depth 8 at a mean fan-out of 10 has room for the largest size, smaller sizes stop at a
+                    // shallower level
+                    graph = new SyntheticGraphBuilder()
+                            .setDepth(8)
+                            .setFanOut(4, 16)
+                            .withLabel(Label.label("A"), 0.5)
+                            .withLabel(Label.label("B"), 0.1)
+                            .setFilterSparsity(0.5)
+                            .setMaxNodes(scale.nodes)
+                            .setSeed(c);
+                    builder.setSeed(c)
+                            .withSimulation(new NoSimulation())
+                            .withGraphBuilder(graph);
+                    for (int i = 0; i < FUNCTIONS; i++) builder.withFunction("f" + i, (ihdn, node) -> { });
+                    return scale.threads == 1
+                            ? builder.withInMemoryEngine()
+                            : builder.withParallelCompute(PARALLEL_THRESHOLD).setParallelism(scale.threads);
+                })
+                .withResultHandler(result -> {
+                    // shut down by now, see ExperimentRunner for the name
+                    delete(new File(directory,
+                            "graph-c" + result.getConfigurationIndex() + "-t" + result.getTrial() + ".db"));
+                    Scale scale = result.getConfiguration();
+                    if (result.isFailed()) {
+                        System.out.println(scale.nodes + "\t" + scale.threads + "\tfailed: " + result.getFailure());
+                        return;
+                    }
+                    double seconds = result.getComputeNanos() / 1e9;
+                    int iterations = result.getResult().getIterations();
+                    System.out.printf("%d\t%d\t%.2f\t%.0f\t%d\n", graph.getNodeCount(), scale.threads,
+                            iterations / seconds, graph.getNodeCount() * iterations / seconds,
+                            peakHeap() >> 20);
+                })
+                .createExperimentRunner()
+                .run();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) delete(child);
+        file.delete();
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+    }
+
+    // sum of the pools' peaks, an upper bound as they need not peak together
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+}
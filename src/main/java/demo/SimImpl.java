@@ -1,17 +1,19 @@
 package demo;
 
 import ihdn.*;
-import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Label;
-import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 
-import java.util.concurrent.ThreadLocalRandom;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
 
 public class SimImpl implements Simulation {
 
-    private ThreadLocalRandom rand = ThreadLocalRandom.current();
-
     private int cellCount = 100;
     private int capacity = 200;
     private String cypherQuery;
@@ -24,6 +26,11 @@ public class SimImpl implements Simulation {
         FROM, WAS
     }
 
+    private static final Label[] chromosomeLabels = {
+            Label.label("CH1"), Label.label("CH2"), Label.label("CH3"),
+            Label.label("CH4"), Label.label("CH5"), Label.label("CH6")
+    };
+
     private static String cypherGraph = "CREATE\n" +
             "(t:TISSUE:ROOT),\n" +
             "(c1:CELL),\n" +
@@ -133,18 +140,45 @@ public class SimImpl implements Simulation {
         ihdn.getIHDNNodes(labels.APOPT_GENE).forEach(
                 hgNode -> hgNode.setProperty(Properties.VOTE, new double[]{0, 1, 0}));
 
-        // duplicate the cell 99 times
-        for (int i = 0; i < 99; i ++)
-            ihdn.getIHDNNodes(labels.CELL).findFirst().ifPresent(IHDNNode::deepClone);
+        // duplicate the cell 99 times, sharing the genome until it changes
+        ihdn.getIHDNNodes(labels.CELL).findFirst().ifPresent(cell -> ihdn.replicate(cell, 99, true));
+
+        ihdn.getIHDNNodes(labels.CELL).forEach(
+                cell -> ihdn.getLineage().recordOrigin(cell.getKey(), 0, genomeSignature(cell)));
     };
 
+    // lineage events, as the FROM and WAS relationships
+    static final byte DIVISION = 1;
+    static final byte MISSEGREGATION = 2;
+
+    // apoptosis, division and segregation gene counts packed into 21 bits each
+    static long genomeSignature(IHDNNode cell) {
+        long[] genes = new long[3];
+        cell.getAllChildNodes().flatMap(IHDNNode::getAllChildNodes).forEach(gene -> {
+            if (gene.hasLabel(labels.APOPT_GENE)) genes[0]++;
+            if (gene.hasLabel(labels.DIV_GENE)) genes[1]++;
+            if (gene.hasLabel(labels.SEG_GENE)) genes[2]++;
+        });
+        return genomeSignature(genes[0], genes[1], genes[2]);
+    }
+
+    static long genomeSignature(long apoptosis, long division, long segregation) {
+        return apoptosis << 42 | division << 21 | segregation;
+    }
+
+    static long[] genome(long signature) {
+        long mask = (1L << 21) - 1;
+        return new long[]{signature >>> 42, signature >>> 21 & mask, signature & mask};
+    }
+
     @IHDNFunctionDefinition
     public IHDNFunction copy = (ihdn, ihdnNode) -> {
         if (ihdnNode.hasLabel(labels.CELL)) {
+            SplittableRandom rand = ihdn.getRandom(ihdnNode);
             int nDivs = ((int) ihdnNode.getProperty("nDivs"));
 
             ihdnNode.setProperty("nDivs", nDivs + 1);
-            IHDNNode cellCopy = ihdnNode.deepClone();
+            IHDNNode cellCopy = ihdnNode.cowClone();
             cellCopy.createRelationshipTo(ihdnNode, relTypes.FROM);
             cellCopy.setProperty("start", ihdn.getCurrentIteration());
 
@@ -155,15 +189,24 @@ public class SimImpl implements Simulation {
 
             if (rand.nextInt(50) < Math.max(0, 4 - numSegGenes)) {
                 // save copy before missegregation
-                IHDNNode newClone = ihdnNode.deepClone();
+                IHDNNode newClone = ihdnNode.cowClone();
                 newClone.createRelationshipTo(ihdnNode, relTypes.WAS);
-                cellCopy.getSingleRelationship(relTypes.FROM, Direction.OUTGOING).delete();
+                cellCopy.removeRelationshipTo(ihdnNode, relTypes.FROM);
                 cellCopy.createRelationshipTo(ihdnNode, relTypes.WAS);
-                ihdnNode.addLabel(IHDNLabels.INACTIVE);
+                ihdnNode.setInactive();
                 ihdnNode.removeLabel(labels.CELL);
                 ihdnNode.addLabel(labels.CELL_COPY);
                 ihdnNode.setProperty("missegregationAt", ihdn.getCurrentIteration());
-                missegregate(new IHDNNode[]{newClone, cellCopy});
+                missegregate(new IHDNNode[]{newClone, cellCopy}, rand);
+
+                LineageLog lineage = ihdn.getLineage();
+                lineage.record(newClone.getKey(), ihdnNode.getKey(), MISSEGREGATION, ihdn.getCurrentIteration(),
+                        genomeSignature(newClone));
+                lineage.record(cellCopy.getKey(), ihdnNode.getKey(), MISSEGREGATION, ihdn.getCurrentIteration(),
+                        genomeSignature(cellCopy));
+            } else {
+                ihdn.getLineage().record(cellCopy.getKey(), ihdnNode.getKey(), DIVISION, ihdn.getCurrentIteration(),
+                        genomeSignature(cellCopy));
             }
 
             cellCount++;
@@ -173,6 +216,22 @@ public class SimImpl implements Simulation {
     private boolean overCapacity;
     private int lastUpdated;
 
+    @Override
+    public void writeCheckpoint(DataOutput out) throws IOException {
+        out.writeInt(cellCount);
+        out.writeInt(capacity);
+        out.writeBoolean(overCapacity);
+        out.writeInt(lastUpdated);
+    }
+
+    @Override
+    public void readCheckpoint(DataInput in) throws IOException {
+        cellCount = in.readInt();
+        capacity = in.readInt();
+        overCapacity = in.readBoolean();
+        lastUpdated = in.readInt();
+    }
+
     @IHDNFunctionDefinition
     public IHDNFunction die = (ihdn, ihdnNode) -> {
         if (ihdnNode.hasLabel(labels.CELL) && overCapacity) {
@@ -186,7 +245,7 @@ public class SimImpl implements Simulation {
     public IHDNFunction pass = (ihdn, ihdnNode) -> {
     };
 
-    private void missegregate(IHDNNode[] cells) {
+    private void missegregate(IHDNNode[] cells, SplittableRandom rand) {
         // select cell to lose copy of gene
         int i = rand.nextInt(2);
         IHDNNode lessCell = cells[i];
@@ -199,64 +258,74 @@ public class SimImpl implements Simulation {
         if (chromosomes.length == 0) return;
         IHDNNode chrToMove = chromosomes[rand.nextInt(chromosomes.length)];
 
-        Relationship parentRel = chrToMove.getSingleRelationship(IHDNRelTypes.CONTAINS, Direction.INCOMING);
-        parentRel.delete();
-
-        // put gene in extraCell matching chromosome
-        extraCell.createRelationshipTo(chrToMove, IHDNRelTypes.CONTAINS);
+        // put gene in extraCell matching chromosome, chromosomes may be shared between cells
+        lessCell.moveChild(chrToMove, extraCell);
     }
 
     @VoteFunctionDefinition
-    public VoteFunction cellVote = (ihdn, ihdnNode, votesFromChildren) -> {
-
-        int currentIteration = ihdn.getCurrentIteration();
+    public VoteAccumulator cellVote = new VoteAccumulator() {
+        @Override
+        public void begin(IHDN ihdn, IHDNNode ihdnNode, double[] votes) {
+            int currentIteration = ihdn.getCurrentIteration();
+
+            if (currentIteration > lastUpdated) {
+                lastUpdated = currentIteration;
+                overCapacity = cellCount > capacity;
+            }
 
-        if (currentIteration > lastUpdated) {
-            lastUpdated = currentIteration;
-            overCapacity = cellCount > capacity;
+            VoteAccumulator.DEFAULT.begin(ihdn, ihdnNode, votes);
         }
 
-        double[] votes = VoteFunction.DEFAULT.apply(ihdn, ihdnNode, votesFromChildren);
-        double sum = votes[0] + votes[1];
-        votes[2] = sum;
+        @Override
+        public void accept(double[] votes, double[] childVotes) {
+            VoteAccumulator.DEFAULT.accept(votes, childVotes);
+        }
 
-        return votes;
+        @Override
+        public void finish(IHDN ihdn, IHDNNode ihdnNode, double[] votes) {
+            votes[2] = votes[0] + votes[1];
+        }
     };
 
     public static void main(String... args) {
-        String[] strings = new String[]{cypherGraphA, cypherGraphB, cypherGraphC};
-        for (int c = 0; c < strings.length; c++) {
-            String cypherQuery = strings[c];
-            System.out.printf("Configuration: %d\n", c);
-            for (int t = 0; t < 20; t++) {
-                System.out.printf("Trial: %d\n", t);
-                IHDN IHDN = new IHDN.IHDNBuilder()
-                        .withNewDB("graph-c" + c + "-t" + t + ".db")
+        // trials run side by side, so each monitor report is printed in one go
+        new ExperimentRunner.ExperimentBuilder<String>()
+                .withConfigurations(cypherGraphA, cypherGraphB, cypherGraphC)
+                .setTrials(20)
+                // commits every 20 iterations, or sooner once the running trials hold 1 GB of transaction state
+                .setIterations(100, 20)
+                .setHeapBudget(1L << 30)
+                .withTrialSetup((cypherQuery, c, t, builder) -> builder
+                        .setSeed(1000L * c + t)
+                        // read by Analysis
+                        .withLineageLog("graph-c" + c + "-t" + t + ".lineage")
                         .withCypherStatement(cypherQuery)
                         .withGraphBuilder(graphBuilder)
+                        .withAggregates(aggregates -> {
+                            aggregates.registerCount(labels.CELL);
+                            aggregates.registerChildLabelGroups(labels.CELL, chromosomeLabels);
+                        })
+                        .setIterationsPerMonitor(10)
                         .setIterationMonitor((iteration, HGC) -> {
-                            long count = HGC.getActiveIHDNNodes(labels.CELL).filter(cell -> !cell.hasLabel(IHDNLabels.INACTIVE)).count();
-                            System.out.printf("%d: %d cells.\n", iteration, count);
-                            String result = HGC.execute("match (c:CELL)-[:CONTAINS]->(ch:CHROMOSOME) where not (c:INACTIVE) " +
-                                    "with c, collect(ch) as chrs " +
-                                    "with c," +
-                                    "size(filter(x in chrs where (x:CH1))) as ch1, " +
-                                    "size(filter(x in chrs where (x:CH2))) as ch2, " +
-                                    "size(filter(x in chrs where (x:CH3))) as ch3, " +
-                                    "size(filter(x in chrs where (x:CH4))) as ch4, " +
-                                    "size(filter(x in chrs where (x:CH5))) as ch5, " +
-                                    "size(filter(x in chrs where (x:CH6))) as ch6 " +
-                                    "return distinct count(c) as cells, ch1, ch2, ch3, ch4, ch5, ch6 " +
-                                    "order by cells desc").resultAsString();
-                            System.out.println(result);
+                            AggregateRegistry aggregates = HGC.getAggregates();
+                            long count = aggregates.getCount(labels.CELL);
+                            StringBuilder report = new StringBuilder(
+                                    String.format("Configuration %d trial %d, %d: %d cells.\n", c, t, iteration, count));
+                            // cells per chromosome configuration, most common first
+                            report.append("cells\tch1\tch2\tch3\tch4\tch5\tch6\n");
+                            aggregates.getChildLabelGroups(labels.CELL, chromosomeLabels).entrySet().stream()
+                                    .sorted(Map.Entry.<List<Integer>, Long>comparingByValue().reversed())
+                                    .forEach(group -> report.append(group.getValue()).append("\t")
+                                            .append(group.getKey().stream().map(String::valueOf)
+                                                    .collect(Collectors.joining("\t")))
+                                            .append("\n"));
+                            System.out.print(report);
                             return count > 7000;
                         })
-                        .withSimulation(new SimImpl())
-                        .createIHDN();
-
-                IHDN.computeAll(100, 1);
-            }
-        }
+                        .withSimulation(new SimImpl()))
+                .withResultHandler(System.out::println)
+                .createExperimentRunner()
+                .run();
     }
 
 }
@@ -0,0 +1,127 @@
+package ihdn;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bitmaps of active node ordinals, overall and per label.
+ * <p>
+ * Activity is read from the store once per node, and a label's bitmap is built by one label scan the first time
+ * it is queried. After that both are maintained by the mutation paths of {@link IHDNNode}, so queries cost in
+ * proportion to the live nodes rather than the inactive history. Only active nodes are given ordinals here; an
+ * inactive node without one is told by its label each time it is asked about, and archived stubs give theirs
+ * back (see {@link IHDN#compact(int)}). Writes made around IHDNNode are not seen;
+ * {@link IHDN#execute(String)} drops the index when a query may write.
+ */
+class ActiveIndex {
+
+    private final IHDN ihdn;
+    private final BitSet known = new BitSet();
+    private final BitSet inactive = new BitSet();
+    private final Map<String, BitSet> activeByLabel = new HashMap<>();
+
+    ActiveIndex(IHDN ihdn) {
+        this.ihdn = ihdn;
+    }
+
+    // the node's ordinal, assigned if it is active, LongIntMap.MISSING for an inactive node without one
+    int ordinal(Node node) {
+        NodeOrdinals ordinals = ihdn.getOrdinals();
+        int ordinal = ordinals.get(node.getId());
+        if (ordinal != LongIntMap.MISSING || node.hasLabel(IHDNLabels.INACTIVE)) return ordinal;
+        ordinal = ordinals.ordinal(node.getId());
+        known.set(ordinal);
+        inactive.clear(ordinal);
+        return ordinal;
+    }
+
+    boolean isActive(Node node) {
+        int ordinal = ordinal(node);
+        return ordinal != LongIntMap.MISSING && isActive(ordinal, node);
+    }
+
+    boolean isActive(int ordinal, Node node) {
+        if (!known.get(ordinal)) {
+            inactive.set(ordinal, node.hasLabel(IHDNLabels.INACTIVE));
+            known.set(ordinal);
+        }
+        return !inactive.get(ordinal);
+    }
+
+    // live bitmap, do not modify
+    BitSet activeWithLabel(Label label) {
+        BitSet active = activeByLabel.get(label.name());
+        if (active != null) return active;
+
+        active = new BitSet();
+        try (ResourceIterator<Node> nodes = ihdn.getDB().findNodes(label)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                int ordinal = ordinal(node);
+                if (ordinal != LongIntMap.MISSING && isActive(ordinal, node)) active.set(ordinal);
+            }
+        }
+        activeByLabel.put(label.name(), active);
+        return active;
+    }
+
+    void created(int ordinal, Label... labels) {
+        known.set(ordinal);
+        inactive.clear(ordinal);
+        for (Label label : labels)
+            if (isInactiveLabel(label)) inactive.set(ordinal);
+        for (Label label : labels) {
+            BitSet active = activeByLabel.get(label.name());
+            if (active != null) active.set(ordinal, !inactive.get(ordinal));
+        }
+    }
+
+    void labelAdded(int ordinal, Node node, Label label) {
+        if (isInactiveLabel(label)) {
+            setActive(ordinal, node, false);
+            return;
+        }
+        BitSet active = activeByLabel.get(label.name());
+        if (active != null && isActive(ordinal, node)) active.set(ordinal);
+    }
+
+    void labelRemoved(int ordinal, Node node, Label label) {
+        if (isInactiveLabel(label)) {
+            setActive(ordinal, node, true);
+            return;
+        }
+        BitSet active = activeByLabel.get(label.name());
+        if (active != null) active.clear(ordinal);
+    }
+
+    private void setActive(int ordinal, Node node, boolean isActive) {
+        known.set(ordinal);
+        inactive.set(ordinal, !isActive);
+        for (Label label : node.getLabels()) {
+            BitSet active = activeByLabel.get(label.name());
+            if (active != null) active.set(ordinal, isActive);
+        }
+    }
+
+    // node deleted or archived, its ordinal is about to be released
+    void deleted(int ordinal) {
+        known.clear(ordinal);
+        inactive.clear(ordinal);
+        for (BitSet active : activeByLabel.values()) active.clear(ordinal);
+    }
+
+    void invalidate() {
+        known.clear();
+        inactive.clear();
+        activeByLabel.clear();
+    }
+
+    private static boolean isInactiveLabel(Label label) {
+        return IHDNLabels.INACTIVE.name().equals(label.name());
+    }
+}
@@ -0,0 +1,314 @@
+package ihdn;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Statistics over active nodes that are kept up to date by the mutation paths of {@link IHDNNode}, so monitors
+ * can read them without scanning the graph.
+ * <p>
+ * Three kinds of aggregate are supported: the number of active nodes with a label, a histogram of a property's
+ * values over active nodes with a label, and the number of active parents with a label grouped by how many
+ * children they contain with each of a list of child labels. An aggregate is built by one label scan when it is
+ * registered (inside a transaction, see {@link IHDN.IHDNBuilder#withAggregates}), which a getter also does on first
+ * use. Writes made around IHDNNode are not seen; after a query that may write (see {@link IHDN#execute(String)})
+ * or a rolled back transaction every aggregate is rebuilt on its next read.
+ * <p>
+ * Asynchronous monitors are given a read-only snapshot taken when the monitor was queued. Register the
+ * aggregates they read before computeAll, as snapshots cannot scan.
+ */
+public class AggregateRegistry {
+
+    // null for snapshots
+    private final IHDN ihdn;
+    private final Map<String, LabelCount> counts = new LinkedHashMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final Map<String, ChildLabelGroups> groups = new LinkedHashMap<>();
+    // out of step with the store, rebuilt on the next read
+    private boolean stale;
+
+    AggregateRegistry(IHDN ihdn) {
+        this.ihdn = ihdn;
+    }
+
+    public void registerCount(Label label) {
+        getCount(label);
+    }
+
+    public void registerHistogram(Label label, String key) {
+        getHistogram(label, key);
+    }
+
+    public void registerChildLabelGroups(Label parentLabel, Label... childLabels) {
+        getChildLabelGroups(parentLabel, childLabels);
+    }
+
+    // active nodes with the label
+    public long getCount(Label label) {
+        return register(counts, label.name(), () -> new LabelCount(label)).count;
+    }
+
+    // value -> number of active nodes with the label holding it, arrays are keyed by their string form
+    public Map<Object, Long> getHistogram(Label label, String key) {
+        return Collections.unmodifiableMap(
+                register(histograms, label.name() + "." + key, () -> new Histogram(label, key)).counts);
+    }
+
+    // numbers of children with each child label -> number of active parents with them
+    public Map<List<Integer>, Long> getChildLabelGroups(Label parentLabel, Label... childLabels) {
+        String name = parentLabel.name() + Arrays.stream(childLabels).map(Label::name)
+                .collect(Collectors.joining(",", "[", "]"));
+        return Collections.unmodifiableMap(
+                register(groups, name, () -> new ChildLabelGroups(parentLabel, childLabels)).counts);
+    }
+
+    private <A extends Aggregate> A register(Map<String, A> aggregates, String name, Supplier<A> supplier) {
+        if (stale) rebuild();
+        A aggregate = aggregates.get(name);
+        if (aggregate != null) return aggregate;
+        if (ihdn == null)
+            throw new RuntimeException("Aggregate " + name + " was not registered before the snapshot was taken.");
+
+        aggregate = supplier.get();
+        build(aggregate);
+        aggregates.put(name, aggregate);
+        return aggregate;
+    }
+
+    private void build(Aggregate aggregate) {
+        aggregate.clear();
+        try (ResourceIterator<Node> nodes = ihdn.getDB().findNodes(aggregate.label)) {
+            while (nodes.hasNext()) update(aggregate, ihdn.handle(nodes.next()));
+        }
+    }
+
+    // after writes the registry did not see
+    void rebuild() {
+        stale = false;
+        all().forEach(this::build);
+    }
+
+    // as rebuild(), outside a transaction
+    void invalidate() {
+        stale = true;
+    }
+
+    AggregateRegistry snapshot() {
+        if (stale) rebuild();
+        AggregateRegistry snapshot = new AggregateRegistry(null);
+        counts.forEach((name, count) -> snapshot.counts.put(name, count.copy()));
+        histograms.forEach((name, histogram) -> snapshot.histograms.put(name, histogram.copy()));
+        groups.forEach((name, group) -> snapshot.groups.put(name, group.copy()));
+        return snapshot;
+    }
+
+    // node events, called by IHDN
+
+    void nodeChanged(IHDNNode ihdnNode) {
+        if (stale || isEmpty()) return;
+        all().forEach(aggregate -> update(aggregate, ihdnNode));
+    }
+
+    void labelChanged(IHDNNode ihdnNode, Label label) {
+        if (stale || isEmpty()) return;
+        nodeChanged(ihdnNode);
+        // the parents' groups count this node's labels
+        for (ChildLabelGroups group : groups.values()) {
+            if (!group.isChildLabel(label)) continue;
+            ihdnNode.getAllParentNodes().forEach(parent -> update(group, parent));
+        }
+    }
+
+    void propertyChanged(IHDNNode ihdnNode, String key) {
+        if (stale) return;
+        for (Histogram histogram : histograms.values())
+            if (histogram.key.equals(key)) update(histogram, ihdnNode);
+    }
+
+    void childrenChanged(IHDNNode parent) {
+        if (stale) return;
+        for (ChildLabelGroups group : groups.values()) update(group, parent);
+    }
+
+    void deleted(int ordinal) {
+        if (stale) return;
+        all().forEach(aggregate -> aggregate.remove(ordinal));
+    }
+
+    private void update(Aggregate aggregate, IHDNNode ihdnNode) {
+        // inactive nodes without an ordinal are counted nowhere
+        int ordinal = ihdn.getActiveIndex().ordinal(ihdnNode.getNode());
+        if (ordinal == LongIntMap.MISSING) return;
+        if (ihdnNode.hasLabel(aggregate.label) && ihdnNode.isActive()) aggregate.update(ordinal, ihdnNode);
+        else aggregate.remove(ordinal);
+    }
+
+    private boolean isEmpty() {
+        return counts.isEmpty() && histograms.isEmpty() && groups.isEmpty();
+    }
+
+    private List<Aggregate> all() {
+        List<Aggregate> all = new ArrayList<>(counts.values());
+        all.addAll(histograms.values());
+        all.addAll(groups.values());
+        return all;
+    }
+
+    private static abstract class Aggregate {
+
+        final Label label;
+
+        Aggregate(Label label) {
+            this.label = label;
+        }
+
+        // the node is active and has the label
+        abstract void update(int ordinal, IHDNNode ihdnNode);
+
+        abstract void remove(int ordinal);
+
+        abstract void clear();
+    }
+
+    private static final class LabelCount extends Aggregate {
+
+        private final BitSet counted = new BitSet();
+        private long count;
+
+        LabelCount(Label label) {
+            super(label);
+        }
+
+        @Override
+        void update(int ordinal, IHDNNode ihdnNode) {
+            if (counted.get(ordinal)) return;
+            counted.set(ordinal);
+            count++;
+        }
+
+        @Override
+        void remove(int ordinal) {
+            if (!counted.get(ordinal)) return;
+            counted.clear(ordinal);
+            count--;
+        }
+
+        @Override
+        void clear() {
+            counted.clear();
+            count = 0;
+        }
+
+        LabelCount copy() {
+            LabelCount copy = new LabelCount(label);
+            copy.count = count;
+            return copy;
+        }
+    }
+
+    // each node's current key, and the number of nodes per key
+    private static abstract class Grouping<K> extends Aggregate {
+
+        private final Map<Integer, K> keys = new HashMap<>();
+        final Map<K, Long> counts = new HashMap<>();
+
+        Grouping(Label label) {
+            super(label);
+        }
+
+        abstract K key(IHDNNode ihdnNode);
+
+        @Override
+        void update(int ordinal, IHDNNode ihdnNode) {
+            K key = key(ihdnNode);
+            K old = keys.put(ordinal, key);
+            if (old != null) {
+                if (old.equals(key)) return;
+                decrement(old);
+            }
+            counts.merge(key, 1L, Long::sum);
+        }
+
+        @Override
+        void remove(int ordinal) {
+            K old = keys.remove(ordinal);
+            if (old != null) decrement(old);
+        }
+
+        private void decrement(K key) {
+            if (counts.merge(key, -1L, Long::sum) == 0) counts.remove(key);
+        }
+
+        @Override
+        void clear() {
+            keys.clear();
+            counts.clear();
+        }
+    }
+
+    private static final class Histogram extends Grouping<Object> {
+
+        private static final Object ABSENT = "<absent>";
+        private final String key;
+
+        Histogram(Label label, String key) {
+            super(label);
+            this.key = key;
+        }
+
+        @Override
+        Object key(IHDNNode ihdnNode) {
+            Object value = ihdnNode.getProperty(key, null);
+            if (value == null) return ABSENT;
+            if (value.getClass().isArray()) return Arrays.deepToString(new Object[]{value});
+            return value;
+        }
+
+        Histogram copy() {
+            Histogram copy = new Histogram(label, key);
+            copy.counts.putAll(counts);
+            return copy;
+        }
+    }
+
+    private static final class ChildLabelGroups extends Grouping<List<Integer>> {
+
+        private final Label[] childLabels;
+
+        ChildLabelGroups(Label parentLabel, Label[] childLabels) {
+            super(parentLabel);
+            this.childLabels = childLabels.clone();
+        }
+
+        boolean isChildLabel(Label label) {
+            for (Label childLabel : childLabels)
+                if (childLabel.name().equals(label.name())) return true;
+            return false;
+        }
+
+        @Override
+        List<Integer> key(IHDNNode ihdnNode) {
+            Integer[] key = new Integer[childLabels.length];
+            Arrays.fill(key, 0);
+            for (Relationship rel : ihdnNode.getRelationships(IHDNRelTypes.CONTAINS, Direction.OUTGOING)) {
+                Node child = rel.getEndNode();
+                for (int i = 0; i < childLabels.length; i++)
+                    if (child.hasLabel(childLabels[i])) key[i]++;
+            }
+            return Collections.unmodifiableList(Arrays.asList(key));
+        }
+
+        ChildLabelGroups copy() {
+            ChildLabelGroups copy = new ChildLabelGroups(label, childLabels);
+            copy.counts.putAll(counts);
+            return copy;
+        }
+    }
+}
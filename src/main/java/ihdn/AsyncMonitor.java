@@ -0,0 +1,94 @@
+package ihdn;
+
+import org.neo4j.graphdb.Transaction;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs an {@link IterationMonitor} on a background thread, so the simulation carries on while it works.
+ * <p>
+ * The monitor is given a read-only view of the IHDN and its own transaction, which is always rolled back, with a
+ * snapshot of the {@link AggregateRegistry} taken when the call was queued. Otherwise it reads committed state:
+ * computeAll commits before each call is queued, however large its batches, so monitoring often means committing
+ * often. This is not a snapshot either; Neo4j reads are read-committed, so iterations committed while the monitor runs
+ * may be visible to it, and a monitor reading the store more than once may see them change in between. At most
+ * {@code queueCapacity} calls wait to run; after that, queueing blocks the simulation. A request to stop takes effect
+ * at the next iteration boundary. A monitor that throws, errors included, stops the run: the failure is rethrown by
+ * the next check, call queued or close, whichever comes first.
+ */
+class AsyncMonitor {
+
+    private final IterationMonitor monitor;
+    private final IHDN view;
+    private final ThreadPoolExecutor executor;
+    private final AtomicBoolean stopRequested = new AtomicBoolean();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    AsyncMonitor(IterationMonitor monitor, IHDN view, int queueCapacity) {
+        this.monitor = monitor;
+        this.view = view;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ihdn-monitor");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                // queue full, wait for the monitor to catch up
+                (runnable, pool) -> {
+                    try {
+                        pool.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted waiting for the iteration monitor.", e);
+                    }
+                });
+    }
+
+    void submit(int iteration, AggregateRegistry aggregates) {
+        rethrowFailure();
+        executor.execute(() -> run(iteration, aggregates));
+    }
+
+    private void run(int iteration, AggregateRegistry aggregates) {
+        // nothing left to decide once a stop is requested
+        if (stopRequested.get()) return;
+
+        try (Transaction tx = view.getDB().beginTx()) {
+            view.refresh(iteration, aggregates);
+            if (monitor.apply(iteration, view)) stopRequested.set(true);
+            tx.failure();
+        } catch (Throwable e) {
+            // an error would otherwise end the thread and go unnoticed
+            failure.compareAndSet(null, e);
+            stopRequested.set(true);
+        }
+    }
+
+    boolean isStopRequested() {
+        rethrowFailure();
+        return stopRequested.get();
+    }
+
+    // the first failure of a monitor, once
+    private void rethrowFailure() {
+        Throwable e = failure.getAndSet(null);
+        if (e != null) throw new RuntimeException("Iteration monitor failed.", e);
+    }
+
+    // waits for queued calls to finish
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for the iteration monitor.", e);
+        }
+        rethrowFailure();
+    }
+}
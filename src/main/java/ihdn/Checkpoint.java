@@ -0,0 +1,305 @@
+package ihdn;
+
+import org.neo4j.graphdb.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary checkpoint of a run: the iteration, the seed, the next node key, how far the lineage, trajectory and
+ * archive files had been written, the simulation's own state (see {@link Simulation#writeCheckpoint(DataOutput)}),
+ * then every node with its labels and properties, filters, votes and node keys included, and every relationship.
+ * <p>
+ * Written to a temporary file that replaces the previous checkpoint once complete, so a run stopped mid-write
+ * still has the last one. Restored through windows of a memory map into a new store, committing every so many
+ * nodes. The store assigns new node ids, but nodes keep their keys, which random draws and the logs are keyed on,
+ * and each node's relationships are restored in their original order, so traversals visit children as before and
+ * the run continues as it would have. The logs are cut back to where they were and appended to from there.
+ */
+final class Checkpoint {
+
+    private static final long MAGIC = 0x4948444E434B5032L; // IHDNCKP2
+    // also the largest record, so a record is never split between two windows of the map
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final long WINDOW_BYTES = 1L << 30;
+    // nodes or relationships restored per transaction
+    private static final int RESTORE_BATCH = 50_000;
+
+    // record types
+    private static final byte NAME = 1;
+    private static final byte NODE = 2;
+    private static final byte RELATIONSHIP = 3;
+    private static final byte END = 4;
+
+    private final int iteration;
+    private final long seed;
+    private final long nextKey;
+    // bytes or records of each file written, 0 for none
+    private final int lineageRecords;
+    private final long trajectoryBytes;
+    private final long archiveBytes;
+    private final int archiveSubtrees;
+    private final long archiveEntries;
+
+    Checkpoint(int iteration, long seed, long nextKey, int lineageRecords, long trajectoryBytes, long archiveBytes,
+               int archiveSubtrees, long archiveEntries) {
+        this.iteration = iteration;
+        this.seed = seed;
+        this.nextKey = nextKey;
+        this.lineageRecords = lineageRecords;
+        this.trajectoryBytes = trajectoryBytes;
+        this.archiveBytes = archiveBytes;
+        this.archiveSubtrees = archiveSubtrees;
+        this.archiveEntries = archiveEntries;
+    }
+
+    int getIteration() {
+        return iteration;
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    long getNextKey() {
+        return nextKey;
+    }
+
+    int getLineageRecords() {
+        return lineageRecords;
+    }
+
+    long getTrajectoryBytes() {
+        return trajectoryBytes;
+    }
+
+    long getArchiveBytes() {
+        return archiveBytes;
+    }
+
+    int getArchiveSubtrees() {
+        return archiveSubtrees;
+    }
+
+    long getArchiveEntries() {
+        return archiveEntries;
+    }
+
+    // in an open transaction
+    void write(GraphDatabaseService db, File file, Simulation simulation) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Output out = new Output(temporary)) {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            try (DataOutputStream stateOut = new DataOutputStream(state)) {
+                simulation.writeCheckpoint(stateOut);
+            }
+            out.ensure(8 + 4 + 8 + 8 + 4 + 8 + 8 + 4 + 8 + 4);
+            out.buffer.putLong(MAGIC).putInt(iteration).putLong(seed).putLong(nextKey).putInt(lineageRecords)
+                    .putLong(trajectoryBytes).putLong(archiveBytes).putInt(archiveSubtrees).putLong(archiveEntries)
+                    .putInt(state.size());
+            out.put(state.toByteArray());
+
+            try (ResourceIterator<Node> nodes = db.getAllNodes().iterator()) {
+                while (nodes.hasNext()) {
+                    Node node = nodes.next();
+                    Map<String, Object> properties = node.getAllProperties();
+                    int[] labels = new int[8];
+                    int labelCount = 0;
+                    for (Label label : node.getLabels()) {
+                        if (labelCount == labels.length) labels = Arrays.copyOf(labels, labelCount * 2);
+                        labels[labelCount++] = out.name(label.name());
+                    }
+                    int[] keys = new int[properties.size()];
+                    int i = 0, size = 1 + 8 + 4 + 4 * labelCount + 4;
+                    for (Map.Entry<String, Object> property : properties.entrySet()) {
+                        keys[i++] = out.name(property.getKey());
+                        size += 4 + ValueCodec.size(property.getValue());
+                    }
+
+                    if (size > BUFFER_BYTES)
+                        throw new RuntimeException("Node " + node.getId() + " is too large to checkpoint.");
+                    out.ensure(size);
+                    out.buffer.put(NODE).putLong(node.getId()).putInt(labelCount);
+                    for (int l = 0; l < labelCount; l++) out.buffer.putInt(labels[l]);
+                    out.buffer.putInt(keys.length);
+                    i = 0;
+                    for (Object value : properties.values()) {
+                        out.buffer.putInt(keys[i++]);
+                        ValueCodec.write(out.buffer, value);
+                    }
+                }
+            }
+            // each node's outgoing relationships oldest first, so the restored store lists them as this one does
+            List<Relationship> outgoing = new ArrayList<>();
+            try (ResourceIterator<Node> nodes = db.getAllNodes().iterator()) {
+                while (nodes.hasNext()) {
+                    Node node = nodes.next();
+                    outgoing.clear();
+                    node.getRelationships(Direction.OUTGOING).forEach(outgoing::add);
+                    for (int r = outgoing.size() - 1; r >= 0; r--) {
+                        Relationship rel = outgoing.get(r);
+                        int type = out.name(rel.getType().name());
+                        out.ensure(1 + 8 + 8 + 4);
+                        out.buffer.put(RELATIONSHIP).putLong(node.getId()).putLong(rel.getEndNode().getId())
+                                .putInt(type);
+                    }
+                }
+            }
+            out.ensure(1);
+            out.buffer.put(END);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write checkpoint " + file + ".", e);
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot replace checkpoint " + file + ".", e);
+        }
+    }
+
+    // into an empty store, outside any transaction
+    static Checkpoint restore(GraphDatabaseService db, File file, Simulation simulation) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long windowStart = 0;
+            MappedByteBuffer buffer = map(channel, windowStart);
+            if (buffer.remaining() < 8 || buffer.getLong() != MAGIC)
+                throw new RuntimeException(file + " is not a checkpoint.");
+
+            Checkpoint checkpoint = new Checkpoint(buffer.getInt(), buffer.getLong(), buffer.getLong(),
+                    buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getLong());
+            byte[] state = new byte[buffer.getInt()];
+            buffer.get(state);
+            try (DataInputStream stateIn = new DataInputStream(new ByteArrayInputStream(state))) {
+                simulation.readCheckpoint(stateIn);
+            }
+
+            Map<Integer, String> names = new HashMap<>();
+            // checkpointed id -> restored id
+            LongIntMap restored = new LongIntMap();
+            long[] ids = new long[1024];
+            int nodes = 0;
+            int pending = 0;
+
+            Transaction tx = db.beginTx();
+            try {
+                while (true) {
+                    if (buffer.remaining() < BUFFER_BYTES && windowStart + buffer.limit() < channel.size()) {
+                        windowStart += buffer.position();
+                        buffer = map(channel, windowStart);
+                    }
+                    byte record = buffer.get();
+                    if (record == END) break;
+                    switch (record) {
+                        case NAME:
+                            int index = buffer.getInt();
+                            names.put(index, ValueCodec.readString(buffer));
+                            break;
+                        case NODE: {
+                            long id = buffer.getLong();
+                            Label[] labels = new Label[buffer.getInt()];
+                            for (int i = 0; i < labels.length; i++) labels[i] = Label.label(names.get(buffer.getInt()));
+                            Node node = db.createNode(labels);
+                            for (int i = buffer.getInt(); i > 0; i--) {
+                                String key = names.get(buffer.getInt());
+                                node.setProperty(key, ValueCodec.read(buffer));
+                            }
+                            if (nodes == ids.length) ids = Arrays.copyOf(ids, nodes * 2);
+                            ids[nodes] = node.getId();
+                            restored.put(id, nodes++);
+                            pending++;
+                            break;
+                        }
+                        case RELATIONSHIP: {
+                            Node start = db.getNodeById(ids[restored.get(buffer.getLong())]);
+                            Node end = db.getNodeById(ids[restored.get(buffer.getLong())]);
+                            start.createRelationshipTo(end, RelationshipType.withName(names.get(buffer.getInt())));
+                            pending++;
+                            break;
+                        }
+                        default:
+                            throw new RuntimeException("Unknown record " + record + " in checkpoint " + file + ".");
+                    }
+                    if (pending >= RESTORE_BATCH) {
+                        tx.success();
+                        tx.close();
+                        tx = db.beginTx();
+                        pending = 0;
+                    }
+                }
+                tx.success();
+            } finally {
+                tx.close();
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read checkpoint " + file + ".", e);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(WINDOW_BYTES, channel.size() - position));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // buffered writes to the channel, with names written once and referred to by index after that
+    private static final class Output implements Closeable {
+
+        private final FileChannel channel;
+        private final Map<String, Integer> names = new HashMap<>();
+        // larger only for the simulation's state
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        Output(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        int name(String name) throws IOException {
+            Integer index = names.get(name);
+            if (index != null) return index;
+            index = names.size();
+            names.put(name, index);
+            ensure(1 + 4 + ValueCodec.sizeOf(name));
+            buffer.put(NAME).putInt(index);
+            ValueCodec.writeString(buffer, name);
+            return index;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            drain();
+            if (buffer.capacity() < bytes) buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package ihdn;
+
+import org.neo4j.graphdb.Label;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only file of subtrees removed from the live graph by {@link IHDN#compact(int)}.
+ * <p>
+ * Subtrees are interned: a node is stored as its labels, its properties (but not its node key) and the ids of its
+ * children's subtrees, and a node equal to one already stored is not stored again, so repeated genomes cost one
+ * record. The subtrees remembered for interning are bounded in bytes, least recently used first out; a subtree
+ * forgotten and archived again is stored again under a new id. Each archived root adds an entry with its node key
+ * and the iteration it was archived at. {@link #read(File)} maps the file back.
+ */
+public final class ColdArchive implements AutoCloseable {
+
+    private static final long MAGIC = 0x4948444E41524331L; // IHDNARC1
+    private static final byte SUBTREE = 1;
+    private static final byte ENTRY = 2;
+    // of encoded subtrees remembered for interning
+    static final long DEFAULT_INTERN_BYTES = 64L << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    // encoded subtree -> id, in access order
+    private final LinkedHashMap<ByteBuffer, Integer> interned = new LinkedHashMap<>(16, 0.75f, true);
+    private final long internBytes;
+    private long internedBytes;
+    private int subtrees;
+    private long entries;
+
+    ColdArchive(File file) {
+        this(file, DEFAULT_INTERN_BYTES);
+    }
+
+    ColdArchive(File file, long internBytes) {
+        this(file, internBytes, 0, 0, 0);
+    }
+
+    // appended to after its first length bytes, as when resuming from a checkpoint, or a new archive if 0; the
+    // subtrees stored before are not interned against
+    ColdArchive(File file, long internBytes, long length, int subtrees, long entries) {
+        this.file = file;
+        this.internBytes = internBytes;
+        this.subtrees = subtrees;
+        this.entries = entries;
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (channel.size() < length)
+                throw new RuntimeException("Cold archive " + file + " is shorter than the checkpoint.");
+            // records after the checkpoint are written again
+            channel.truncate(length);
+            channel.position(length);
+            if (length == 0) write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(MAGIC));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create cold archive " + file + ".", e);
+        }
+    }
+
+    // returns the entry's index
+    long archive(IHDNNode root, int iteration) {
+        int subtree = intern(root);
+        ByteBuffer entry = ByteBuffer.allocate(1 + 8 + 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        entry.put(ENTRY).putLong(root.getKey()).putInt(subtree).putInt(iteration);
+        write(entry);
+        return entries++;
+    }
+
+    private int intern(IHDNNode node) {
+        int[] children = node.getAllChildNodes().mapToInt(this::intern).sorted().toArray();
+        List<String> labels = new ArrayList<>();
+        for (Label label : node.getLabels()) labels.add(label.name());
+        Collections.sort(labels);
+        SortedMap<String, Object> properties = new TreeMap<>(node.getAllProperties());
+        // unique to the node, it would stop any two from interning together
+        properties.remove(Properties.NODE_KEY);
+
+        int size = 4 + 4 + 4 * children.length;
+        for (String label : labels) size += ValueCodec.sizeOf(label);
+        for (Map.Entry<String, Object> property : properties.entrySet())
+            size += ValueCodec.sizeOf(property.getKey()) + ValueCodec.size(property.getValue());
+        size += 4;
+
+        ByteBuffer encoded = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        encoded.putInt(labels.size());
+        for (String label : labels) ValueCodec.writeString(encoded, label);
+        encoded.putInt(properties.size());
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            ValueCodec.writeString(encoded, property.getKey());
+            ValueCodec.write(encoded, property.getValue());
+        }
+        encoded.putInt(children.length);
+        for (int child : children) encoded.putInt(child);
+        encoded.flip();
+
+        Integer id = interned.get(encoded);
+        if (id != null) return id;
+
+        id = subtrees++;
+        interned.put(encoded, id);
+        internedBytes += encoded.capacity();
+        for (Iterator<ByteBuffer> eldest = interned.keySet().iterator(); internedBytes > internBytes; ) {
+            internedBytes -= eldest.next().capacity();
+            eldest.remove();
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 4 + encoded.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        record.put(SUBTREE).putInt(id).put(encoded.duplicate());
+        write(record);
+        return id;
+    }
+
+    private void write(ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write cold archive " + file + ".", e);
+        }
+    }
+
+    // stored in the file, including subtrees stored again after being forgotten
+    public int getSubtreeCount() {
+        return subtrees;
+    }
+
+    public long getEntryCount() {
+        return entries;
+    }
+
+    // bytes written so far
+    long length() {
+        try {
+            return channel.position();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read cold archive " + file + ".", e);
+        }
+    }
+
+    void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write cold archive " + file + ".", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close cold archive " + file + ".", e);
+        }
+    }
+
+    public static Contents read(File file) {
+        Contents contents = new Contents();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 8 || buffer.getLong() != MAGIC)
+                throw new RuntimeException(file + " is not a cold archive.");
+
+            while (buffer.hasRemaining()) {
+                byte record = buffer.get();
+                if (record == SUBTREE) {
+                    int id = buffer.getInt();
+                    Set<String> labels = new LinkedHashSet<>();
+                    for (int i = buffer.getInt(); i > 0; i--) labels.add(ValueCodec.readString(buffer));
+                    Map<String, Object> properties = new LinkedHashMap<>();
+                    for (int i = buffer.getInt(); i > 0; i--)
+                        properties.put(ValueCodec.readString(buffer), ValueCodec.read(buffer));
+                    int[] children = new int[buffer.getInt()];
+                    for (int i = 0; i < children.length; i++) children[i] = buffer.getInt();
+                    contents.subtrees.put(id, new Subtree(labels, properties, children));
+                } else if (record == ENTRY) {
+                    contents.entries.add(new Entry(buffer.getLong(), buffer.getInt(), buffer.getInt()));
+                } else {
+                    throw new RuntimeException("Unknown record " + record + " in cold archive " + file + ".");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read cold archive " + file + ".", e);
+        }
+        return contents;
+    }
+
+    public static final class Contents {
+
+        private final Map<Integer, Subtree> subtrees = new HashMap<>();
+        private final List<Entry> entries = new ArrayList<>();
+
+        // in archive order, an entry's index is its position
+        public List<Entry> getEntries() {
+            return Collections.unmodifiableList(entries);
+        }
+
+        public Subtree getSubtree(int id) {
+            return subtrees.get(id);
+        }
+
+        public int getSubtreeCount() {
+            return subtrees.size();
+        }
+    }
+
+    public static final class Entry {
+
+        private final long nodeKey;
+        private final int subtree;
+        private final int iteration;
+
+        Entry(long nodeKey, int subtree, int iteration) {
+            this.nodeKey = nodeKey;
+            this.subtree = subtree;
+            this.iteration = iteration;
+        }
+
+        // see IHDNNode.getKey(), kept by the node's stub if it has one
+        public long getNodeKey() {
+            return nodeKey;
+        }
+
+        public int getSubtree() {
+            return subtree;
+        }
+
+        public int getIteration() {
+            return iteration;
+        }
+    }
+
+    public static final class Subtree {
+
+        private final Set<String> labels;
+        private final Map<String, Object> properties;
+        private final int[] children;
+
+        Subtree(Set<String> labels, Map<String, Object> properties, int[] children) {
+            this.labels = Collections.unmodifiableSet(labels);
+            this.properties = Collections.unmodifiableMap(properties);
+            this.children = children;
+        }
+
+        public Set<String> getLabels() {
+            return labels;
+        }
+
+        public Map<String, Object> getProperties() {
+            return properties;
+        }
+
+        // subtree ids, one per child
+        public int[] getChildren() {
+            return children.clone();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ihdn;
+
+import java.util.Arrays;
+
+/**
+ * Outcome of {@link IHDN#computeAll(int, int)}: iterations run, and the number of iterations completed in each
+ * committed transaction.
+ */
+public final class ComputeResult {
+
+    private final int iterations;
+    private final boolean finished;
+    private final int commits;
+    private final int[] batchSizes;
+
+    ComputeResult(int iterations, boolean finished, int commits, int[] batchSizes) {
+        this.iterations = iterations;
+        this.finished = finished;
+        this.commits = commits;
+        this.batchSizes = batchSizes;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    // true if the iteration monitor ended the run
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // includes commits made inside an iteration
+    public int getCommits() {
+        return commits;
+    }
+
+    public int[] getBatchSizes() {
+        return batchSizes.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "ComputeResult{iterations=" + iterations + ", finished=" + finished + ", commits=" + commits
+                + ", batchSizes=" + Arrays.toString(batchSizes) + "}";
+    }
+}
@@ -0,0 +1,50 @@
+package ihdn;
+
+import java.util.SplittableRandom;
+
+/**
+ * Counter-based random source: every draw is a pure function of (seed, iteration, node key, stream), so a run
+ * makes the same draws whichever thread, shard or engine evaluates a node, and in whatever order. Node keys (see
+ * {@link IHDNNode#getKey()}) are used rather than store ids, which Neo4j reuses after deletes.
+ */
+public final class CounterRandom {
+
+    // streams keep the engine's function selection apart from draws made by functions
+    static final long SELECTION = 1;
+    static final long FUNCTION = 2;
+
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final long seed;
+
+    public CounterRandom(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public long nextLong(long iteration, long nodeKey, long stream) {
+        long h = mix(seed + GAMMA);
+        h = mix(h + iteration * GAMMA);
+        h = mix(h + nodeKey * GAMMA);
+        return mix(h + stream * GAMMA);
+    }
+
+    // uniform in [0, 1)
+    public double nextDouble(long iteration, long nodeKey, long stream) {
+        return (nextLong(iteration, nodeKey, stream) >>> 11) * 0x1.0p-53;
+    }
+
+    public SplittableRandom forNode(long iteration, long nodeKey) {
+        return new SplittableRandom(nextLong(iteration, nodeKey, FUNCTION));
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
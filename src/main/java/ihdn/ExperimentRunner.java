@@ -0,0 +1,268 @@
+package ihdn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs every configuration of an experiment a number of times, with trials side by side on a bounded pool of
+ * workers.
+ * <p>
+ * Each trial gets its own new store, {@code graph-c<configuration>-t<trial>.db} in the experiment's directory. The
+ * page cache and transaction budgets are global and shared equally between the workers. The heap budget bounds
+ * only the uncommitted transaction state of each trial, not the rest of its heap (the graph builder's own data,
+ * in-memory engine arrays, caches). Results are passed to the result handler as trials finish, on the worker's
+ * thread but one at a time. A trial that throws, errors included, is recorded as failed and the others go on.
+ */
+public class ExperimentRunner<C> {
+
+    private final static Logger log = LoggerFactory.getLogger(ExperimentRunner.class);
+
+    @FunctionalInterface
+    public interface TrialSetup<C> {
+        // builder already has the trial's store and budgets
+        IHDN.IHDNBuilder configure(C configuration, int configurationIndex, int trial, IHDN.IHDNBuilder builder);
+    }
+
+    private final List<C> configurations;
+    private final int trials;
+    private final int workers;
+    private final File directory;
+    private final long pageCacheBudget;
+    private final long heapBudget;
+    private final int maxIterations;
+    private final int batchSize;
+    private final TrialSetup<C> trialSetup;
+    private final Consumer<TrialResult<C>> resultHandler;
+
+    private ExperimentRunner(ExperimentBuilder<C> builder) {
+        this.configurations = new ArrayList<>(builder.configurations);
+        this.trials = builder.trials;
+        this.workers = builder.workers;
+        this.directory = builder.directory;
+        this.pageCacheBudget = builder.pageCacheBudget;
+        this.heapBudget = builder.heapBudget;
+        this.maxIterations = builder.maxIterations;
+        this.batchSize = builder.batchSize;
+        this.trialSetup = builder.trialSetup;
+        this.resultHandler = builder.resultHandler;
+    }
+
+    // blocks until every trial has finished, results in configuration then trial order
+    public List<TrialResult<C>> run() {
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "ihdn-trial-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Future<TrialResult<C>>> futures = new ArrayList<>();
+        try {
+            for (int c = 0; c < configurations.size(); c++) {
+                for (int t = 0; t < trials; t++) {
+                    int configurationIndex = c, trial = t;
+                    futures.add(pool.submit(() -> runTrial(configurationIndex, trial)));
+                }
+            }
+
+            List<TrialResult<C>> results = new ArrayList<>();
+            for (Future<TrialResult<C>> future : futures) results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for trials.", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Trial failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private TrialResult<C> runTrial(int configurationIndex, int trial) {
+        C configuration = configurations.get(configurationIndex);
+        File store = new File(directory, "graph-c" + configurationIndex + "-t" + trial + ".db");
+        log.info("Starting configuration {} trial {} in {}.", configurationIndex, trial, store);
+
+        IHDN.IHDNBuilder builder = new IHDN.IHDNBuilder();
+        IHDN ihdn = null;
+        TrialResult<C> result;
+        long start = System.nanoTime();
+        long setupNanos = 0;
+        try {
+            builder.withNewDB(store.getPath(), pageCacheBudget / workers)
+                    .setTransactionBudget(heapBudget / workers);
+            ihdn = trialSetup.configure(configuration, configurationIndex, trial, builder).createIHDN();
+            setupNanos = System.nanoTime() - start;
+            ComputeResult computeResult = ihdn.computeAll(maxIterations, batchSize);
+            result = new TrialResult<>(configuration, configurationIndex, trial, computeResult,
+                    setupNanos, System.nanoTime() - start - setupNanos, null);
+        } catch (RuntimeException | Error e) {
+            log.error("Configuration {} trial {} failed.", configurationIndex, trial, e);
+            result = new TrialResult<>(configuration, configurationIndex, trial, null,
+                    setupNanos, System.nanoTime() - start - setupNanos, e);
+        } finally {
+            // the store may be open from withNewDB, even if the IHDN could not be created
+            if (ihdn != null) ihdn.shutdown();
+            else builder.shutdownDB();
+        }
+
+        synchronized (this) {
+            resultHandler.accept(result);
+        }
+        return result;
+    }
+
+    public static final class TrialResult<C> {
+
+        private final C configuration;
+        private final int configurationIndex;
+        private final int trial;
+        private final ComputeResult result;
+        private final long setupNanos;
+        private final long computeNanos;
+        private final Throwable failure;
+
+        TrialResult(C configuration, int configurationIndex, int trial, ComputeResult result,
+                    long setupNanos, long computeNanos, Throwable failure) {
+            this.configuration = configuration;
+            this.configurationIndex = configurationIndex;
+            this.trial = trial;
+            this.result = result;
+            this.setupNanos = setupNanos;
+            this.computeNanos = computeNanos;
+            this.failure = failure;
+        }
+
+        public C getConfiguration() {
+            return configuration;
+        }
+
+        public int getConfigurationIndex() {
+            return configurationIndex;
+        }
+
+        public int getTrial() {
+            return trial;
+        }
+
+        // null if the trial failed
+        public ComputeResult getResult() {
+            return result;
+        }
+
+        // store creation, cypher statement and graph builder
+        public long getSetupNanos() {
+            return setupNanos;
+        }
+
+        public long getComputeNanos() {
+            return computeNanos;
+        }
+
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return "TrialResult{configuration=" + configurationIndex + ", trial=" + trial
+                    + ", setup=" + TimeUnit.NANOSECONDS.toMillis(setupNanos) + "ms"
+                    + ", compute=" + TimeUnit.NANOSECONDS.toMillis(computeNanos) + "ms"
+                    + (failure == null ? ", " + result : ", failure=" + failure) + "}";
+        }
+    }
+
+    public static class ExperimentBuilder<C> {
+
+        private List<C> configurations;
+        private int trials = 1;
+        private int workers = Runtime.getRuntime().availableProcessors();
+        private File directory = new File(".");
+        private long pageCacheBudget = 1L << 30;
+        private long heapBudget = TransactionBudget.defaultBudget();
+        private int maxIterations = 100;
+        private int batchSize = Integer.MAX_VALUE;
+        private TrialSetup<C> trialSetup;
+        private Consumer<TrialResult<C>> resultHandler = result -> { };
+
+        public ExperimentBuilder<C> withConfigurations(List<C> configurations) {
+            this.configurations = configurations;
+            return this;
+        }
+
+        @SafeVarargs
+        public final ExperimentBuilder<C> withConfigurations(C... configurations) {
+            return withConfigurations(Arrays.asList(configurations));
+        }
+
+        public ExperimentBuilder<C> setTrials(int trials) {
+            this.trials = trials;
+            return this;
+        }
+
+        public ExperimentBuilder<C> setWorkers(int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        // where the trial stores are created
+        public ExperimentBuilder<C> setDirectory(String directory) {
+            this.directory = new File(directory);
+            return this;
+        }
+
+        // page cache for all running trials, in bytes
+        public ExperimentBuilder<C> setPageCacheBudget(long pageCacheBudget) {
+            this.pageCacheBudget = pageCacheBudget;
+            return this;
+        }
+
+        // uncommitted transaction state for all running trials, in bytes, see IHDNBuilder.setTransactionBudget(),
+        // not a cap on the trials' heap
+        public ExperimentBuilder<C> setHeapBudget(long heapBudget) {
+            this.heapBudget = heapBudget;
+            return this;
+        }
+
+        // arguments to computeAll
+        public ExperimentBuilder<C> setIterations(int maxIterations, int batchSize) {
+            this.maxIterations = maxIterations;
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public ExperimentBuilder<C> withTrialSetup(TrialSetup<C> trialSetup) {
+            this.trialSetup = trialSetup;
+            return this;
+        }
+
+        public ExperimentBuilder<C> withResultHandler(Consumer<TrialResult<C>> resultHandler) {
+            this.resultHandler = resultHandler;
+            return this;
+        }
+
+        public ExperimentRunner<C> createExperimentRunner() {
+            if (configurations == null || configurations.isEmpty())
+                throw new RuntimeException("No configurations provided.");
+            if (trialSetup == null) throw new RuntimeException("No trial setup provided.");
+            if (trials <= 0 || workers <= 0) throw new RuntimeException("Trials and workers must be positive.");
+            if (pageCacheBudget / workers <= 0 || heapBudget / workers <= 0)
+                throw new RuntimeException("Budgets too small for " + workers + " workers.");
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new RuntimeException("Cannot create directory " + directory + ".");
+            return new ExperimentRunner<>(this);
+        }
+    }
+}
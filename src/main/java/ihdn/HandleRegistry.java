@@ -0,0 +1,110 @@
+package ihdn;
+
+import org.neo4j.graphdb.Node;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One {@link IHDNNode} per node, so traversals reuse handles instead of wrapping every visited node again, and
+ * state kept on a handle (such as deletion) is seen by every holder.
+ * <p>
+ * Handles of active nodes are held by node ordinal. Those of inactive, archived and deleted nodes are only
+ * weakly held, by node id, so the inactive history is not kept in memory once nobody holds its handles.
+ */
+class HandleRegistry {
+
+    private final IHDN ihdn;
+    private IHDNNode[] handles = new IHDNNode[16];
+    private final Map<Long, HandleReference> released = new HashMap<>();
+    private final ReferenceQueue<IHDNNode> collected = new ReferenceQueue<>();
+
+    private static final class HandleReference extends WeakReference<IHDNNode> {
+        private final long nodeId;
+
+        private HandleReference(IHDNNode handle, ReferenceQueue<IHDNNode> queue) {
+            super(handle, queue);
+            this.nodeId = handle.getId();
+        }
+    }
+
+    HandleRegistry(IHDN ihdn) {
+        this.ihdn = ihdn;
+    }
+
+    IHDNNode get(Node node) {
+        ActiveIndex activeIndex = ihdn.getActiveIndex();
+        int ordinal = activeIndex.ordinal(node);
+        if (ordinal == LongIntMap.MISSING || !activeIndex.isActive(ordinal, node)) return getReleased(node);
+        IHDNNode handle = ordinal < handles.length ? handles[ordinal] : null;
+        if (handle == null) {
+            // held again if the node was made active
+            handle = take(node.getId());
+            if (handle == null) handle = new IHDNNode(ihdn, node);
+            put(ordinal, handle);
+        }
+        return handle;
+    }
+
+    IHDNNode get(long nodeId) {
+        int ordinal = ihdn.getOrdinals().get(nodeId);
+        if (ordinal != LongIntMap.MISSING && ordinal < handles.length && handles[ordinal] != null)
+            return handles[ordinal];
+        return get(ihdn.getDB().getNodeById(nodeId));
+    }
+
+    // handle of a node created through IHDNNode
+    void put(int ordinal, IHDNNode handle) {
+        if (ordinal >= handles.length)
+            handles = Arrays.copyOf(handles, Math.max(ordinal + 1, handles.length * 2));
+        handles[ordinal] = handle;
+        released.remove(handle.getId());
+    }
+
+    // node made inactive, archived or deleted: its handle is kept only while held elsewhere
+    void release(int ordinal) {
+        if (ordinal >= handles.length || handles[ordinal] == null) return;
+        expunge();
+        released.put(handles[ordinal].getId(), new HandleReference(handles[ordinal], collected));
+        handles[ordinal] = null;
+    }
+
+    // node deleted, Neo4j may give its id to another
+    void forget(long nodeId) {
+        released.remove(nodeId);
+    }
+
+    // with the ordinals; handles held elsewhere keep working but are no longer the node's one handle
+    void clear() {
+        Arrays.fill(handles, null);
+        released.clear();
+    }
+
+    private IHDNNode getReleased(Node node) {
+        expunge();
+        HandleReference reference = released.get(node.getId());
+        IHDNNode handle = reference != null ? reference.get() : null;
+        if (handle == null) {
+            handle = new IHDNNode(ihdn, node);
+            released.put(node.getId(), new HandleReference(handle, collected));
+        }
+        return handle;
+    }
+
+    private IHDNNode take(long nodeId) {
+        HandleReference reference = released.remove(nodeId);
+        return reference != null ? reference.get() : null;
+    }
+
+    // entries whose handles were collected
+    private void expunge() {
+        for (Reference<? extends IHDNNode> reference; (reference = collected.poll()) != null; ) {
+            HandleReference handle = (HandleReference) reference;
+            released.remove(handle.nodeId, handle);
+        }
+    }
+}
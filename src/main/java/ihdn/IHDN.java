@@ -1,7 +1,9 @@
 package ihdn;
 
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,153 +11,1048 @@ import java.io.File;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class IHDN {
 
     private final static Logger log = LoggerFactory.getLogger(IHDN.class);
+    // nodes given a key per transaction when a store without keys is opened
+    private final static int KEY_BATCH = 10_000;
     private final GraphDatabaseService DB;
-    private final ThreadLocalRandom random = ThreadLocalRandom.current();
+    private final CounterRandom random;
     private final int iterationsPerMonitor;
     private final IterationMonitor iterationMonitor;
     private final double[] rootFilter;
     private final IHDNFunction[] ihdnFunctions;
     private final Map<IHDNFunction, String> hgFunctionNames;
-    private final Map<String, VoteFunction> voteFunctions;
+    private final Map<String, VoteAccumulator> voteAccumulators;
+    private final InMemoryEngine engine;
+    private final NodeOrdinals ordinals = new NodeOrdinals();
+    private final ActiveIndex activeIndex = new ActiveIndex(this);
+    private final HandleRegistry handles = new HandleRegistry(this);
+    // views swap in a snapshot for each monitor call
+    private AggregateRegistry aggregates = new AggregateRegistry(this);
+    private final MutationBuffer mutations;
+    private final boolean offHeapColumns;
+    private NodeColumns columns;
+    // primary arrivals of the store-backed traversal in the current iteration, each with the arrival it came
+    // through, -1 under a ROOT; by position, as a function's query may drop the ordinals before they are applied
+    private final List<IHDNNode> arrivals = new ArrayList<>();
+    private int[] arrivalParents = new int[16];
+    // functions selected by the store-backed traversal and their arrivals, applied once every root is evaluated
+    private int[] selectedArrivals = new int[16];
+    private int[] selectedFunctions = new int[16];
+    private int selectedCount;
+    // the store-backed traversal's path to the node whose function is applied
+    private IHDNNode[] path = new IHDNNode[16];
+    // by ordinal, the id of each node's owner and the evaluation it was worked out in, see owner()
+    private long[] ownerIds = new long[16];
+    private int[] ownerEvaluations = new int[16];
+    private int evaluation;
+    // the node a function is applied to and the ancestors computeAll reached it through, nearest first; from
+    // applyPathPrivate up the path is private already, see beforeWrite()
+    private IHDNNode[] applyPath;
+    private int applyPathLength;
+    private int applyPathPrivate;
+    // some node may have more than one parent; writes are only copied if so, see IHDNNode.cowClone()
+    private boolean sharing = true;
+    private final VoteCache voteCache = new VoteCache(this);
+    // buffers of the store-backed traversal
+    private final VoteScratch scratch;
+    private final TransactionBudget budget;
+    private final int monitorQueueCapacity;
+    private final LineageLog lineage;
+    private final File trajectoryFile;
+    private final ColdArchive archive;
+    private final int compactEvery;
+    private final int compactMinAge;
+    private final Simulation simulation;
+    private final String checkpointFileName;
+    private final int checkpointEvery;
+    // default filters and votes are not stored
+    private final boolean sparseDefaults;
+    // see defaultValue()
+    private final double[] defaultFilter;
+    private final double[] defaultVote;
+    // null unless the builder asked for metrics
+    private final IHDNMetrics metrics;
+    private final MetricsReporter metricsReporter;
+    // views handed to asynchronous monitors
+    private final boolean readOnly;
+    // see IHDNNode.getKey()
+    private long nextKey;
+    // nextKey at the last commit, keys after it are free again after a rollback
+    private long committedKey;
+    // bytes of the trajectory log a restored checkpoint continues from, 0 for a new log
+    private long trajectoryResumeAt;
 
+    // resources the builder opens are passed alongside it
+    private IHDN(IHDNBuilder builder, LineageLog lineage, ColdArchive archive, IHDNMetrics metrics,
+                 MetricsReporter metricsReporter) {
+        this.DB = builder.db;
+        this.iterationsPerMonitor = builder.iterationsPerMonitor;
+        this.iterationMonitor = builder.iterationMonitor;
+        this.rootFilter = builder.rootFilter;
+        this.ihdnFunctions = builder.ihdnFunctions;
+        this.hgFunctionNames = builder.hgFunctionNames;
+        this.voteAccumulators = builder.voteAccumulators;
+        this.scratch = new VoteScratch(ihdnFunctions.length);
+        this.random = new CounterRandom(builder.seed);
+        this.offHeapColumns = builder.offHeapColumns;
+        this.mutations = new MutationBuffer(this, builder.deferredMutations);
+        this.budget = new TransactionBudget(builder.transactionBudget);
+        this.monitorQueueCapacity = builder.monitorQueueCapacity;
+        this.lineage = lineage;
+        this.trajectoryFile = builder.trajectoryFileName == null ? null : new File(builder.trajectoryFileName);
+        this.archive = archive;
+        this.compactEvery = builder.compactEvery;
+        this.compactMinAge = builder.compactMinAge;
+        this.simulation = builder.simulation;
+        this.checkpointFileName = builder.checkpointFileName;
+        this.checkpointEvery = builder.checkpointEvery;
+        this.sparseDefaults = builder.sparseDefaults;
+        if (builder.noVoteCache) voteCache.disable();
+        this.defaultFilter = new double[ihdnFunctions.length];
+        Arrays.fill(defaultFilter, 1.0);
+        this.defaultVote = new double[ihdnFunctions.length];
+        this.metrics = metrics;
+        this.metricsReporter = metricsReporter;
+        this.readOnly = false;
+        this.engine = builder.inMemory
+                ? new InMemoryEngine(this, builder.parallelism, builder.parallelThreshold) : null;
+    }
 
-    private IHDN(
-            GraphDatabaseService DB,
-            int iterationsPerMonitor,
-            IterationMonitor iterationMonitor,
-            double[] rootFilter,
-            IHDNFunction[] ihdnFunctions,
-            Map<IHDNFunction, String> hgFunctionNames,
-            Map<String, VoteFunction> voteFunctions) {
-        this.DB = DB;
-        this.iterationsPerMonitor = iterationsPerMonitor;
-        this.iterationMonitor = iterationMonitor;
-        this.rootFilter = rootFilter;
-        this.ihdnFunctions = ihdnFunctions;
-        this.hgFunctionNames = hgFunctionNames;
-        this.voteFunctions = voteFunctions;
+    // read-only view of the committed state, with its own handles and indexes for use on another thread
+    private IHDN(IHDN ihdn) {
+        this.DB = ihdn.DB;
+        this.iterationsPerMonitor = ihdn.iterationsPerMonitor;
+        this.iterationMonitor = null;
+        this.rootFilter = ihdn.rootFilter;
+        this.ihdnFunctions = ihdn.ihdnFunctions;
+        this.hgFunctionNames = ihdn.hgFunctionNames;
+        this.voteAccumulators = ihdn.voteAccumulators;
+        this.scratch = null;
+        this.random = ihdn.random;
+        this.offHeapColumns = false;
+        this.mutations = new MutationBuffer(this, false);
+        this.budget = new TransactionBudget(Long.MAX_VALUE);
+        this.monitorQueueCapacity = 0;
+        // the log is written on the simulation's thread
+        this.lineage = null;
+        this.trajectoryFile = null;
+        this.archive = null;
+        this.compactEvery = 0;
+        this.compactMinAge = 0;
+        this.simulation = null;
+        this.checkpointFileName = null;
+        this.checkpointEvery = 0;
+        this.sparseDefaults = ihdn.sparseDefaults;
+        this.defaultFilter = ihdn.defaultFilter;
+        this.defaultVote = ihdn.defaultVote;
+        // monitors may read the run's metrics
+        this.metrics = ihdn.metrics;
+        this.metricsReporter = null;
+        this.readOnly = true;
+        this.engine = null;
     }
 
-    public void computeAll(int maxIterations) {
-        computeAll(maxIterations, 100);
+    public ComputeResult computeAll(int maxIterations) {
+        return computeAll(maxIterations, 100);
     }
 
     private int iteration;
+    // computeAll continues from a restored checkpoint's iteration
+    private int startIteration;
+
+    // views show the iteration being monitored, and forget what they read of the store before
+    void refresh(int iteration, AggregateRegistry aggregates) {
+        this.iteration = iteration;
+        this.aggregates = aggregates;
+        activeIndex.invalidate();
+    }
+
+    // open during computeAll
+    private Transaction tx;
+    private TrajectoryLog trajectory;
+    private List<Integer> batchSizes;
+    private int batchStart;
+    private int commits;
+    // for IHDNEvents
+    private long nodesVisited;
+    private long nodesCreated;
+    private long nodesDeleted;
+
+    /**
+     * Runs up to maxIterations iterations, committing every batchSize iterations at most. Each iteration first
+     * computes votes and selects a function for every active node under the ROOT nodes, then applies the
+     * selected functions in post-order, skipping nodes deleted or made inactive by an earlier function; a
+     * function's effect on votes is seen from the next iteration on. Both engines work this way and draw on node
+     * keys, so a seed gives the same trajectory on the store, in memory and in parallel. The transaction is
+     * committed earlier, inside an iteration if need be, once the estimated transaction state passes the budget
+     * (see {@link IHDNBuilder#setTransactionBudget(long)}). After {@link IHDNBuilder#withCheckpoint(String)} the
+     * run continues from the checkpoint's iteration, up to the same maxIterations. An asynchronous monitor
+     * commits as well, see {@link IHDNBuilder#withAsyncMonitor(int)}.
+     */
+    public ComputeResult computeAll(int maxIterations, int batchSize) {
+        iteration = startIteration;
+        columns = new NodeColumns(this, offHeapColumns);
+        batchSizes = new ArrayList<>();
+        batchStart = iteration;
+        commits = 0;
+        budget.reset();
+        voteCache.clear();
+        boolean finished = false, succeeded = false;
+        long commitStart = 0;
+        Object commitEvent = null;
+        AsyncMonitor asyncMonitor = iterationMonitor != null && monitorQueueCapacity > 0
+                ? new AsyncMonitor(iterationMonitor, new IHDN(this), monitorQueueCapacity) : null;
+
+        tx = DB.beginTx();
+        try {
+            if (trajectoryFile != null && trajectoryResumeAt > 0) {
+                // the log already holds the run up to the checkpoint
+                trajectory = new TrajectoryLog(trajectoryFile, trajectoryResumeAt);
+                trajectoryResumeAt = 0;
+            } else if (trajectoryFile != null) {
+                trajectory = new TrajectoryLog(trajectoryFile);
+                trajectory.dump(this);
+            }
+            if (iterationMonitor != null) monitor(asyncMonitor);
+
+            while (iteration < maxIterations) {
+                long iterationStart = metrics != null ? System.nanoTime() : 0;
+                Object iterationEvent = IHDNEvents.beginIteration(iteration + 1);
+                long created = nodesCreated, deleted = nodesDeleted;
+                if (asyncMonitor != null && asyncMonitor.isStopRequested()) {
+                    finished = true;
+                    break;
+                }
+                // structural changes of the last iteration are patched into the engine's arrays here, whether
+                // or not they were committed
+                if (engine != null && engine.refresh(columns)) voteCache.clear();
 
-    public void computeAll(int maxIterations, int batchSize) {
-        iteration = 0;
-        int remaining = maxIterations;
+                // compute here
+                long visited = engine != null ? engine.computeRoots(rootFilter) : computeRoots();
+                mutations.apply();
+                iteration++;
+                if (compactEvery > 0 && iteration % compactEvery == 0) compact(compactMinAge);
+                if (metrics != null) metrics.iterationEnd(iteration, System.nanoTime() - iterationStart);
+                IHDNEvents.endIteration(iterationEvent, visited, nodesCreated - created, nodesDeleted - deleted);
 
-        try (Transaction tx = DB.beginTx()) {
-            if (iterationMonitor != null) iterationMonitor.apply(iteration, this);
+                if (iterationMonitor != null && iteration % iterationsPerMonitor == 0)
+                    finished = monitor(asyncMonitor);
+                if (trajectory != null) trajectory.iterationEnd(iteration);
+                if (finished) break;
+                if (iteration < maxIterations && (iteration - batchStart >= batchSize || budget.isExceeded()))
+                    commit();
+                if (checkpointEvery > 0 && iteration % checkpointEvery == 0 && iteration < maxIterations)
+                    checkpoint(checkpointFileName);
+            }
+            commitStart = metrics != null ? System.nanoTime() : 0;
+            commitEvent = IHDNEvents.beginCommit(iteration, budget.getUsed());
+            succeed();
+            succeeded = true;
+        } finally {
+            if (engine != null) engine.release();
+            try {
+                close(tx, succeeded);
+            } finally {
+                if (metrics != null && commitStart > 0) metrics.committed(System.nanoTime() - commitStart);
+                IHDNEvents.endCommit(commitEvent);
+                tx = null;
+                columns = null;
+                if (trajectory != null) trajectory.close();
+                trajectory = null;
+                if (asyncMonitor != null) asyncMonitor.close();
+            }
+        }
+        if (asyncMonitor != null && asyncMonitor.isStopRequested()) finished = true;
+
+        int[] sizes = batchSizes.stream().mapToInt(Integer::intValue).toArray();
+        batchSizes = null;
+        log.debug("Committed {} iterations in {} transactions.", iteration, commits);
+        return new ComputeResult(iteration, finished, commits, sizes);
+    }
+
+    // true to stop, asynchronous monitors report at a later iteration boundary
+    private boolean monitor(AsyncMonitor asyncMonitor) {
+        if (asyncMonitor == null) return iterationMonitor.apply(iteration, this);
+        // the monitor's thread sees only committed state
+        commit();
+        asyncMonitor.submit(iteration, aggregates.snapshot());
+        return false;
+    }
+
+    // checkpoint: write back held values and start a new transaction, no-op outside computeAll and graph builders
+    void commit() {
+        if (tx == null) return;
+        long start = metrics != null ? System.nanoTime() : 0;
+        Object event = IHDNEvents.beginCommit(iteration, budget.getUsed());
+        succeed();
+        close(tx, true);
+        tx = DB.beginTx();
+        IHDNEvents.endCommit(event);
+        if (metrics != null) metrics.committed(System.nanoTime() - start);
+    }
+
+    void commitIfOverBudget() {
+        if (tx != null && budget.isExceeded()) commit();
+    }
+
+    // graph builders run in transactions of their own, and may commit() as they go
+    void build(GraphBuilder graphBuilder) {
+        tx = DB.beginTx();
+        boolean succeeded = false;
+        try {
+            graphBuilder.accept(this);
             tx.success();
+            succeeded = true;
+        } finally {
+            close(tx, succeeded);
+            tx = null;
+        }
+        lineage.flush();
+        budget.reset();
+    }
+
+    // derived state is thrown away if the transaction did not commit
+    private void close(Transaction transaction, boolean success) {
+        boolean committed = false;
+        try {
+            transaction.close();
+            committed = success;
+        } finally {
+            if (!committed) {
+                log.debug("Transaction rolled back, derived state is read again from the store.");
+                resync();
+                lineage.discard();
+                // keys handed out in the transaction are handed out again, see newKey()
+                nextKey = committedKey;
+            } else {
+                committedKey = nextKey;
+            }
         }
+    }
+
+    // ordinals, handles, columns, activity, aggregates, kept votes and the engine's arrays no longer match the
+    // store, after a rollback or writes made around IHDNNode; each is read again from the store on use. Handles
+    // held elsewhere keep working, but are no longer shared with traversals.
+    void resync() {
+        ordinals.clear();
+        handles.clear();
+        if (columns != null) columns.clear();
+        activeIndex.invalidate();
+        aggregates.invalidate();
+        voteCache.clear();
+        if (engine != null) engine.invalidate();
+    }
 
-        boolean finished = false;
+    private void succeed() {
+        if (columns != null) columns.flush();
+        tx.success();
+        lineage.flush();
+        if (archive != null) archive.force();
+        if (trajectory != null) trajectory.force();
+        commits++;
+        if (batchSizes != null && iteration > batchStart) batchSizes.add(iteration - batchStart);
+        log.debug("Committing after iteration {}, estimated transaction state {} bytes.", iteration, budget.getUsed());
+        batchStart = iteration;
+        budget.reset();
+    }
 
-        while (remaining > 0) {
-            batchSize = Math.min(batchSize, remaining);
-            remaining -= batchSize;
+    /**
+     * Moves nodes that have been INACTIVE for at least minAge iterations, with their subtrees, to the cold archive
+     * (see {@link IHDNBuilder#withColdArchive(String)}) and returns how many were archived. Children shared with
+     * other parents are archived but stay in the graph. Nodes with relationships other than CONTAINS, such as
+     * lineage links, are left as INACTIVE, ARCHIVED stubs that keep those relationships, their node key and the
+     * index of their archive entry. Nodes made inactive without {@link IHDNNode#setInactive()} have no age and are
+     * kept.
+     */
+    public int compact(int minAge) {
+        checkWritable();
+        if (archive == null) throw new RuntimeException("No cold archive configured.");
 
-            try (Transaction tx = DB.beginTx()) {
-                for (int i = 0; i < batchSize; i++) {
-                    // compute here
+        List<IHDNNode> candidates = new ArrayList<>();
+        try (ResourceIterator<Node> inactive = DB.findNodes(IHDNLabels.INACTIVE)) {
+            while (inactive.hasNext()) {
+                Node node = inactive.next();
+                Object since = node.getProperty(Properties.TIME_INACTIVE, null);
+                if (since instanceof Integer && iteration - (Integer) since >= minAge
+                        && !node.hasLabel(IHDNLabels.ARCHIVED))
+                    candidates.add(handle(node));
+            }
+        }
 
-                    DB.findNodes(IHDNLabels.ROOT).stream().forEach(node -> compute(new IHDNNode(this, node), rootFilter));
-                    iteration++;
-                    if (iterationMonitor != null && iteration % iterationsPerMonitor == 0) {
-                        finished = iterationMonitor.apply(iteration, this);
-                        if (finished) break;
-                    }
+        int archived = 0;
+        for (IHDNNode node : candidates) {
+            // may have gone with an earlier candidate's subtree
+            if (node.isDeleted() || node.hasLabel(IHDNLabels.ARCHIVED)) continue;
+            node.retire(archive.archive(node, iteration));
+            archived++;
+            commitIfOverBudget();
+        }
+        log.debug("Archived {} inactive subtrees at iteration {}, {} distinct subtrees in the archive.",
+                archived, iteration, archive.getSubtreeCount());
+        return archived;
+    }
+
+    // n deep clones of the subtree, see replicate(IHDNNode, int, boolean)
+    public List<IHDNNode> replicate(IHDNNode root, int n) {
+        return replicate(root, n, false);
+    }
+
+    /**
+     * Makes n copies of root, attached to root's parents, and returns them. With shareChildren each copy shares
+     * root's children, as {@link IHDNNode#cowClone()}; otherwise each gets its own copy of the whole subtree, as
+     * {@link IHDNNode#deepClone()}. The subtree is read once into a template and every copy is created from it,
+     * each node with all its labels at once. During computeAll the transaction is committed between copies once
+     * it passes the budget.
+     */
+    public List<IHDNNode> replicate(IHDNNode root, int n, boolean shareChildren) {
+        checkWritable();
+
+        // template in depth-first order, each node with the index of its parent
+        List<Label[]> labels = new ArrayList<>();
+        List<Map<String, Object>> properties = new ArrayList<>();
+        int[] parents = new int[16];
+        Deque<IHDNNode> stack = new ArrayDeque<>();
+        Deque<Integer> stackParents = new ArrayDeque<>();
+        stack.push(root);
+        stackParents.push(-1);
+        while (!stack.isEmpty()) {
+            IHDNNode node = stack.pop();
+            int index = labels.size();
+            if (index == parents.length) parents = Arrays.copyOf(parents, index * 2);
+            parents[index] = stackParents.pop();
+            List<Label> nodeLabels = new ArrayList<>();
+            node.getLabels().forEach(nodeLabels::add);
+            labels.add(nodeLabels.toArray(new Label[0]));
+            // copies get keys of their own
+            Map<String, Object> nodeProperties = new HashMap<>(node.getAllProperties());
+            nodeProperties.remove(Properties.NODE_KEY);
+            properties.add(nodeProperties);
+            if (index == 0 && shareChildren) continue;
+            node.getAllChildNodes().forEach(child -> {
+                stack.push(child);
+                stackParents.push(index);
+            });
+        }
+        List<IHDNNode> rootParents = root.getAllParentNodes().collect(Collectors.toList());
+        List<IHDNNode> sharedChildren = shareChildren
+                ? root.getAllChildNodes().collect(Collectors.toList()) : Collections.emptyList();
+
+        List<IHDNNode> copies = new ArrayList<>(n);
+        IHDNNode[] created = new IHDNNode[labels.size()];
+        for (int copy = 0; copy < n; copy++) {
+            for (int i = 0; i < created.length; i++) {
+                IHDNNode node = new IHDNNode(this, labels.get(i));
+                for (Map.Entry<String, Object> property : properties.get(i).entrySet())
+                    node.setProperty(property.getKey(), property.getValue());
+                if (i > 0) created[parents[i]].addChild(node);
+                created[i] = node;
+            }
+            for (IHDNNode parent : rootParents) parent.addChild(created[0]);
+            for (IHDNNode child : sharedChildren) created[0].addChild(child);
+            copies.add(created[0]);
+            commitIfOverBudget();
+        }
+        return copies;
+    }
+
+    /**
+     * Writes the graph, the iteration, the seed and the simulation's own state to a binary checkpoint, see
+     * {@link IHDNBuilder#withCheckpoint(String)} to continue from it. During computeAll the transaction is
+     * committed first.
+     */
+    public void checkpoint(String fileName) {
+        checkWritable();
+        long start = System.nanoTime();
+        if (tx != null) {
+            commit();
+            checkpointState().write(DB, new File(fileName), simulation);
+        } else {
+            try (Transaction readTx = DB.beginTx()) {
+                lineage.flush();
+                checkpointState().write(DB, new File(fileName), simulation);
+                readTx.success();
+            }
+        }
+        log.debug("Checkpoint of iteration {} written to {} in {} ms.", iteration, fileName,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // after a commit, so the logs are written through
+    private Checkpoint checkpointState() {
+        return new Checkpoint(iteration, random.getSeed(), nextKey, lineage.size(),
+                trajectory != null ? trajectory.length() : 0,
+                archive != null ? archive.length() : 0,
+                archive != null ? archive.getSubtreeCount() : 0,
+                archive != null ? archive.getEntryCount() : 0);
+    }
+
+    // a restored checkpoint's iteration, keys and trajectory, the other logs were opened where it left them
+    private void resumeAt(Checkpoint checkpoint) {
+        this.startIteration = checkpoint.getIteration();
+        this.iteration = checkpoint.getIteration();
+        // keys of nodes deleted before the checkpoint are not handed out again
+        this.nextKey = Math.max(nextKey, checkpoint.getNextKey());
+        this.committedKey = nextKey;
+        this.trajectoryResumeAt = checkpoint.getTrajectoryBytes();
+    }
+
+    // charged by IHDNNode for every record written
+    void onWrite(long bytes) {
+        checkWritable();
+        budget.charge(bytes);
+    }
+
+    // nodes visited
+    private long computeRoots() {
+        List<Node> roots;
+        try (ResourceIterator<Node> rootNodes = DB.findNodes(IHDNLabels.ROOT)) {
+            roots = rootNodes.stream().collect(Collectors.toList());
+        }
+        long start = nodesVisited;
+        evaluation++;
+        Object[] events = new Object[roots.size()];
+        long[] sizes = new long[roots.size()];
+        int[] selectedEnds = new int[roots.size()];
+        for (int r = 0; r < roots.size(); r++) {
+            IHDNNode root = handle(roots.get(r));
+            events[r] = IHDNEvents.beginTraversal(root);
+            long before = nodesVisited;
+            compute(root, -1, rootFilter, 0, true);
+            sizes[r] = nodesVisited - before;
+            selectedEnds[r] = selectedCount;
+            IHDNEvents.stop(events[r]);
+        }
+
+        // functions in the order selected, which is post-order, as the in-memory engine applies them
+        try {
+            int s = 0;
+            for (int r = 0; r < roots.size(); r++) {
+                for (; s < selectedEnds[r]; s++) {
+                    IHDNNode ihdnNode = arrivals.get(selectedArrivals[s]);
+                    if (ihdnNode.isDeleted() || !ihdnNode.isActive()) continue;
+                    applyFunction(selectedFunctions[s], path, arrivalPath(selectedArrivals[s]));
                 }
-                tx.success();
-                if (finished) break;
+                IHDNEvents.endTraversal(events[r], sizes[r]);
             }
+        } finally {
+            arrivals.clear();
+            selectedCount = 0;
         }
+        return nodesVisited - start;
     }
 
-    private double[] compute(IHDNNode ihdnNode, double[] parentFilter) {
-        if (!ihdnNode.isActive()) return null;
+    // the node's vote is left in scratch.vote(depth), false if the node is inactive. Only primary arrivals, through
+    // owners from a ROOT (see IHDNNode.getOwner()), select a function and use the vote cache.
+    private boolean compute(IHDNNode ihdnNode, int parentArrival, double[] parentFilter, int depth, boolean primary) {
+        if (!ihdnNode.isActive()) {
+            if (metrics != null) metrics.nodeSkippedInactive();
+            return false;
+        }
+        if (metrics != null) metrics.nodeVisited();
+        nodesVisited++;
 
         // combine filter
-        double[] combined_filter = new double[ihdnFunctions.length];
-        double[] node_filter = ihdnNode.getFilter();
+        double[] combined_filter = scratch.filter(depth);
+        ihdnNode.combineFilter(parentFilter, combined_filter);
+        double[] vote = scratch.vote(depth);
 
-        for (int i = 0; i < combined_filter.length; i++)
-            combined_filter[i] = parentFilter[i] * node_filter[i];
+        // no function can fire below, and nothing under the node changed
+        int ordinal = ordinals.ordinal(ihdnNode.getId());
+        int arrival = -1;
+        if (primary) {
+            arrival = arrivals.size();
+            if (arrival == arrivalParents.length) arrivalParents = Arrays.copyOf(arrivalParents, arrival * 2);
+            arrivalParents[arrival] = parentArrival;
+            arrivals.add(ihdnNode);
+        }
+        if (primary && VoteCache.isZero(combined_filter) && voteCache.copyTo(ordinal, vote)) return true;
 
-        // compute children and collect votes
-        Stream<double[]> childVotes = ihdnNode.getAllChildNodes()
-                .filter(hgNode1 -> !hgNode1.isDeleted())
-                .map(hgNode1 -> compute(hgNode1, combined_filter))
-                .filter(Objects::nonNull);
+        // collected first, the transaction may be committed while computing
+        List<IHDNNode> children = scratch.children(depth);
+        ihdnNode.getAllChildNodes().forEach(children::add);
 
-        // vote function
-        double[] vote = new double[ihdnFunctions.length];
-        VoteFunction voteFunction = ihdnNode.getVoteFunction();
-        vote = voteFunction.apply(this, ihdnNode, childVotes);
+        // compute children, pushing each vote into the node's; their time is not the vote function's
+        VoteAccumulator accumulator = ihdnNode.getVoteAccumulator();
+        long voteStart = metrics != null ? System.nanoTime() : 0, childNanos = 0;
+        Arrays.fill(vote, 0);
+        accumulator.begin(this, ihdnNode, vote);
+        // every active child counts for a parent's kept vote, see VoteCache
+        boolean keep = primary && accumulator == VoteAccumulator.DEFAULT;
+        for (int c = 0; c < children.size(); c++) {
+            IHDNNode child = children.get(c);
+            if (child.isDeleted()) continue;
+            boolean owned = primary && child.isActive() && owner(child, ihdnNode) == ihdnNode.getId();
+            long childStart = metrics != null ? System.nanoTime() : 0;
+            boolean voted = compute(child, arrival, combined_filter, depth + 1, primary && owned);
+            if (metrics != null) childNanos += System.nanoTime() - childStart;
+            if (voted) accumulator.accept(vote, scratch.vote(depth + 1));
+            if (keep && voted && (!owned || !voteCache.contains(ordinals.ordinal(child.getId())))) keep = false;
+        }
+        accumulator.finish(this, ihdnNode, vote);
+        if (metrics != null) metrics.voteComputed(System.nanoTime() - voteStart - childNanos);
+        if (keep) voteCache.put(ordinal, vote);
+        if (!primary) return true;
 
         for (int i = 0; i < combined_filter.length; i++)
             combined_filter[i] *= vote[i];
 
-        // function to perform
-        IHDNFunction function = getIHDNFunction(combined_filter);
-        if (function == null) {
-            log.debug("No function to perform for node {}.", ihdnNode.getId());
+        // function to perform, once every root is evaluated
+        int function = selectFunction(combined_filter, ihdnNode.getKey());
+        if (function < 0) {
+            if (log.isDebugEnabled()) log.debug("No function to perform for node {}.", ihdnNode.getId());
         } else {
+            if (selectedCount == selectedFunctions.length) {
+                selectedArrivals = Arrays.copyOf(selectedArrivals, selectedCount * 2);
+                selectedFunctions = Arrays.copyOf(selectedFunctions, selectedCount * 2);
+            }
+            selectedArrivals[selectedCount] = arrival;
+            selectedFunctions[selectedCount++] = function;
+        }
+        return true;
+    }
+
+    // the node and its ancestors, as reached through their primary arrivals, are left in path; returns its length
+    private int arrivalPath(int arrival) {
+        int length = 0;
+        for (int a = arrival; a >= 0; a = arrivalParents[a]) {
+            if (length == path.length) path = Arrays.copyOf(path, length * 2);
+            path[length++] = arrivals.get(a);
+        }
+        return length;
+    }
+
+    // id of the node's owner (see IHDNNode.getOwner()), -1 if it has none; worked out once per evaluation, and
+    // without reading keys unless the node is shared
+    private long owner(IHDNNode ihdnNode, IHDNNode parent) {
+        int ordinal = ordinals.ordinal(ihdnNode.getId());
+        if (ordinal >= ownerIds.length) {
+            int size = Math.max(ordinal + 1, ownerIds.length * 2);
+            ownerIds = Arrays.copyOf(ownerIds, size);
+            ownerEvaluations = Arrays.copyOf(ownerEvaluations, size);
+        }
+        if (ownerEvaluations[ordinal] != evaluation) {
+            IHDNNode owner = sharing && ihdnNode.isShared() ? ihdnNode.getOwner()
+                    : ihdnNode.hasLabel(IHDNLabels.ROOT) ? null : parent;
+            ownerIds[ordinal] = owner != null ? owner.getId() : -1;
+            ownerEvaluations[ordinal] = evaluation;
+        }
+        return ownerIds[ordinal];
+    }
+
+    // path[0] is the node, followed by the ancestors it was reached through, see beforeWrite()
+    void applyFunction(int index, IHDNNode[] path, int pathLength) {
+        IHDNNode ihdnNode = path[0];
+        IHDNFunction function = ihdnFunctions[index];
+        if (log.isDebugEnabled())
             log.debug("Performing function {} on node {}.", hgFunctionNames.get(function), ihdnNode.getId());
-            function.accept(this, ihdnNode);
+        if (trajectory != null)
+            trajectory.functionApplied(iteration, ihdnNode.getKey(), index,
+                    random.nextDouble(iteration, ihdnNode.getKey(), CounterRandom.SELECTION));
+        long start = metrics != null ? System.nanoTime() : 0;
+        Object event = IHDNEvents.beginFunction(ihdnNode, hgFunctionNames.get(function));
+        onPath(path, pathLength, () -> function.accept(this, ihdnNode));
+        IHDNEvents.endFunction(event);
+        if (metrics != null) metrics.functionApplied(index, System.nanoTime() - start);
+        commitIfOverBudget();
+    }
+
+    // writes made by the action to a node on the path are copied on write along it
+    private void onPath(IHDNNode[] path, int pathLength, Runnable action) {
+        applyPath = path;
+        applyPathLength = pathLength;
+        applyPathPrivate = pathLength - 1;
+        try {
+            action.run();
+        } finally {
+            applyPath = null;
+            applyPathLength = 0;
+        }
+    }
+
+    // for a mutation deferred past the function being applied, see MutationBuffer; null outside one
+    IHDNNode[] copyPath() {
+        return applyPathLength == 0 ? null : Arrays.copyOf(applyPath, applyPathLength);
+    }
+
+    // a deferred mutation, on the path it was recorded on
+    void applyOnPath(IHDNNode[] path, Runnable action) {
+        if (path == null) action.run();
+        else onPath(path, path.length, action);
+    }
+
+    // before a write to a node on the path of the function being applied: shared nodes from it up, ancestors
+    // first, leave their other parents a copy of their state (see IHDNNode.separateFrom()), so the write is seen
+    // along the path only. Done once per function, and only while some node may be shared.
+    void beforeWrite(IHDNNode ihdnNode) {
+        int level = pathLevel(ihdnNode);
+        if (level >= 0) makePathPrivate(level);
+    }
+
+    // before a recursive delete of a node on the path: its ancestors are made private as for a write, and the
+    // parent it was reached through is returned, null if there is none or it no longer holds the node
+    IHDNNode beforeDelete(IHDNNode ihdnNode) {
+        int level = pathLevel(ihdnNode);
+        if (level < 0 || level + 1 >= applyPathLength) return null;
+        makePathPrivate(level + 1);
+        return isLinked(level) ? applyPath[level + 1] : null;
+    }
+
+    // -1 if the node is not on the path
+    private int pathLevel(IHDNNode ihdnNode) {
+        for (int i = 0; i < applyPathLength; i++)
+            if (applyPath[i].getId() == ihdnNode.getId()) return i;
+        return -1;
+    }
+
+    // as far up as the path still holds
+    private void makePathPrivate(int level) {
+        if (level >= applyPathPrivate) return;
+        if (sharing) {
+            int top = level;
+            while (top < applyPathPrivate && isLinked(top)) top++;
+            for (int i = top - 1; i >= level; i--) applyPath[i].separateFrom(applyPath[i + 1]);
+        }
+        applyPathPrivate = level;
+    }
+
+    // the node at the level is still a child of the next
+    private boolean isLinked(int level) {
+        IHDNNode child = applyPath[level], parent = applyPath[level + 1];
+        return !child.isDeleted() && !parent.isDeleted() && child.isChildOf(parent);
+    }
+
+    // vote functions are registered adapted, see VoteAccumulator.of()
+    VoteAccumulator resolveVoteAccumulator(String voteFunctionName) {
+        if (voteFunctionName == null) return VoteAccumulator.DEFAULT;
+        VoteAccumulator accumulator = voteAccumulators.get(voteFunctionName);
+        if (accumulator == null) throw new RuntimeException("Vote function " + voteFunctionName + " not found.");
+        return accumulator;
+    }
+
+    InMemoryEngine getEngine() {
+        return this.engine;
+    }
+
+    // only live during computeAll
+    NodeColumns getColumns() {
+        return this.columns;
+    }
+
+    NodeOrdinals getOrdinals() {
+        return this.ordinals;
+    }
+
+    VoteCache getVoteCache() {
+        return this.voteCache;
+    }
+
+    // node events, keep derived state in step with the store
+    // the one handle for the node
+    IHDNNode handle(Node node) {
+        return handles.get(node);
+    }
+
+    IHDNNode handle(long nodeId) {
+        return handles.get(nodeId);
+    }
+
+    void onCreated(IHDNNode ihdnNode, Label... labels) {
+        checkWritable();
+        budget.charge(TransactionBudget.NODE + labels.length * TransactionBudget.LABEL);
+        int ordinal = ordinals.ordinal(ihdnNode.getId());
+        handles.put(ordinal, ihdnNode);
+        activeIndex.created(ordinal, labels);
+        if (engine != null && hasRoot(labels)) engine.invalidate();
+        aggregates.nodeChanged(ihdnNode);
+        if (metrics != null) metrics.nodeCreated();
+        nodesCreated++;
+        if (trajectory != null) trajectory.nodeCreated(ihdnNode.getKey(), labels);
+    }
+
+    void onLabelAdded(IHDNNode ihdnNode, Label label) {
+        checkWritable();
+        budget.charge(TransactionBudget.LABEL);
+        int ordinal = activeIndex.ordinal(ihdnNode.getNode());
+        if (ordinal != LongIntMap.MISSING) activeIndex.labelAdded(ordinal, ihdnNode.getNode(), label);
+        // no longer held for traversals
+        if (ordinal != LongIntMap.MISSING && label.name().equals(IHDNLabels.INACTIVE.name())) handles.release(ordinal);
+        if (engine != null && label == IHDNLabels.INACTIVE) engine.setActive(ihdnNode.getId(), false);
+        if (engine != null && label.name().equals(IHDNLabels.ROOT.name())) engine.invalidate();
+        if (label.name().equals(IHDNLabels.INACTIVE.name())) voteCache.invalidate(ihdnNode.getNode());
+        aggregates.labelChanged(ihdnNode, label);
+        if (trajectory != null) trajectory.labelAdded(ihdnNode.getKey(), label);
+    }
+
+    void onLabelRemoved(IHDNNode ihdnNode, Label label) {
+        checkWritable();
+        budget.charge(TransactionBudget.LABEL);
+        int ordinal = activeIndex.ordinal(ihdnNode.getNode());
+        if (ordinal != LongIntMap.MISSING) activeIndex.labelRemoved(ordinal, ihdnNode.getNode(), label);
+        if (engine != null && label == IHDNLabels.INACTIVE) engine.setActive(ihdnNode.getId(), true);
+        if (engine != null && label.name().equals(IHDNLabels.ROOT.name())) engine.invalidate();
+        if (label.name().equals(IHDNLabels.INACTIVE.name())) voteCache.invalidate(ihdnNode.getNode());
+        aggregates.labelChanged(ihdnNode, label);
+        if (trajectory != null) trajectory.labelRemoved(ihdnNode.getKey(), label);
+    }
+
+    void onDeleted(IHDNNode ihdnNode) {
+        checkWritable();
+        budget.charge(TransactionBudget.NODE);
+        if (engine != null) engine.setDeleted(ihdnNode.getId());
+        if (metrics != null) metrics.nodeDeleted();
+        nodesDeleted++;
+        if (trajectory != null) trajectory.nodeDeleted(ihdnNode.getKey());
+        release(ihdnNode);
+        handles.forget(ihdnNode.getId());
+    }
+
+    // the node became an archived stub, inactive for good
+    void onRetired(IHDNNode ihdnNode) {
+        release(ihdnNode);
+    }
+
+    // everything kept by the node's ordinal is dropped, and the ordinal may be reused
+    private void release(IHDNNode ihdnNode) {
+        int ordinal = ordinals.get(ihdnNode.getId());
+        if (ordinal == LongIntMap.MISSING) return;
+        activeIndex.deleted(ordinal);
+        aggregates.deleted(ordinal);
+        voteCache.remove(ordinal);
+        if (columns != null) columns.evict(ordinal);
+        handles.release(ordinal);
+        ordinals.release(ihdnNode.getId());
+    }
+
+    // value is null if the property was removed
+    void onPropertyChanged(IHDNNode ihdnNode, String key, Object value) {
+        aggregates.propertyChanged(ihdnNode, key);
+        if (Properties.VOTE.equals(key) || Properties.VOTE_FUNCTION.equals(key))
+            voteCache.invalidate(ihdnNode.getNode());
+        if (trajectory == null) return;
+        if (value == null) trajectory.propertyRemoved(ihdnNode.getKey(), key);
+        else trajectory.propertySet(ihdnNode.getKey(), key, value);
+    }
+
+    void onRelationshipCreated(long start, long end, RelationshipType type) {
+        if (type.name().equals(IHDNRelTypes.CONTAINS.name())) {
+            if (!sharing && DB.getNodeById(end).getDegree(IHDNRelTypes.CONTAINS, Direction.INCOMING) > 1)
+                sharing = true;
+            if (engine != null) engine.childrenChanged(start, end);
+            aggregates.childrenChanged(handle(start));
+            voteCache.invalidate(DB.getNodeById(start));
+        }
+        if (trajectory != null) trajectory.relationshipCreated(handle(start).getKey(), handle(end).getKey(), type);
+    }
+
+    // ids are taken before the relationship is deleted
+    void onRelationshipDeleted(long start, long end, RelationshipType type) {
+        if (type.name().equals(IHDNRelTypes.CONTAINS.name())) {
+            if (engine != null) engine.childrenChanged(start, end);
+            aggregates.childrenChanged(handle(start));
+            voteCache.invalidate(DB.getNodeById(start));
         }
+        if (trajectory != null) trajectory.relationshipDeleted(handle(start).getKey(), handle(end).getKey(), type);
+    }
+
+    private static boolean hasRoot(Label... labels) {
+        for (Label label : labels) if (label.name().equals(IHDNLabels.ROOT.name())) return true;
+        return false;
+    }
 
-        // node may now have deleted itself -> if so return null?
-        if (ihdnNode.isDeleted()) return null;
+    private void checkWritable() {
+        if (readOnly) throw new RuntimeException("IHDN view given to an asynchronous monitor is read-only.");
+    }
 
-        return vote;
+    boolean isActive(IHDNNode ihdnNode) {
+        return activeIndex.isActive(ihdnNode.getNode());
     }
 
-    Map<String, VoteFunction> getVoteFunctions() {
-        return this.voteFunctions;
+    ActiveIndex getActiveIndex() {
+        return this.activeIndex;
     }
 
-    private IHDNFunction getIHDNFunction(double[] filter) {
-        double sum = Arrays.stream(filter).sum();
+    /**
+     * Index of the function to perform given a combined filter, chosen with probability proportional to its
+     * weight, or -1 if every weight is zero. The draw depends only on the seed, the current iteration and the
+     * node key (see {@link IHDNNode#getKey()}), as computeAll makes it.
+     */
+    public int selectFunction(double[] filter, long nodeKey) {
+        double sum = sum(filter);
         if (sum == 0) {
             // no possible function to perform
-            return null;
+            return -1;
         }
-        double limit = random.nextDouble(sum);
+        double limit = random.nextDouble(iteration, nodeKey, CounterRandom.SELECTION) * sum;
         for (int i = 0; i < filter.length; i++) {
             limit -= filter[i];
-            if (limit < 0) return ihdnFunctions[i];
+            if (limit < 0) return i;
         }
         throw new RuntimeException("Function selection overran.");
     }
 
+    // compensated, as DoubleStream.sum(), without the stream
+    private static double sum(double[] values) {
+        double sum = 0, compensation = 0, simpleSum = 0;
+        for (double value : values) {
+            double y = value - compensation;
+            double t = sum + y;
+            compensation = (t - sum) - y;
+            sum = t;
+            simpleSum += value;
+        }
+        // an infinite value makes the compensation NaN
+        return Double.isNaN(sum) && Double.isInfinite(simpleSum) ? simpleSum : sum;
+    }
+
+    /**
+     * Random source for a function applied to the given node in the current iteration. Draws are derived from
+     * (seed, iteration, node key), so obtain it once per application.
+     */
+    public SplittableRandom getRandom(IHDNNode ihdnNode) {
+        return random.forNode(iteration, ihdnNode.getKey());
+    }
+
+    // mutations functions want applied, deferred to the end of the iteration if so configured
+    public MutationBuffer getMutations() {
+        return this.mutations;
+    }
+
+    public long getSeed() {
+        return random.getSeed();
+    }
+
+    // by this IHDN since it was created
+    long getNodesCreated() {
+        return nodesCreated;
+    }
+
+    long getNodesDeleted() {
+        return nodesDeleted;
+    }
+
+    // next node key, see IHDNNode.getKey()
+    long newKey() {
+        checkWritable();
+        long key = nextKey++;
+        // outside computeAll the caller's transaction may commit without us seeing it, so its keys are kept
+        if (tx == null) committedKey = nextKey;
+        return key;
+    }
+
+    // keys continue after the largest in the store, nodes without one get theirs in id order, in transactions of
+    // KEY_BATCH nodes
+    private void assignKeys() {
+        long[] keyless = new long[16];
+        int count = 0;
+        try (Transaction readTx = DB.beginTx();
+             ResourceIterator<Node> nodes = DB.getAllNodes().iterator()) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                Object key = node.getProperty(Properties.NODE_KEY, null);
+                if (key != null) nextKey = Math.max(nextKey, (Long) key + 1);
+                else {
+                    if (count == keyless.length) keyless = Arrays.copyOf(keyless, count * 2);
+                    keyless[count++] = node.getId();
+                }
+            }
+            readTx.success();
+        }
+        for (int start = 0; start < count; start += KEY_BATCH) {
+            try (Transaction batchTx = DB.beginTx()) {
+                for (int i = start; i < Math.min(count, start + KEY_BATCH); i++)
+                    DB.getNodeById(keyless[i]).setProperty(Properties.NODE_KEY, nextKey++);
+                batchTx.success();
+            }
+        }
+        committedKey = nextKey;
+        if (count > 0) log.info("Assigned keys to {} nodes.", count);
+    }
+
     int getNumFunctions() {
         return this.ihdnFunctions.length;
     }
 
+    // filters default to all ones and votes to all zeros, read in place of a missing property; shared, callers
+    // that hand it out or write to it copy it
+    double[] defaultValue(String key) {
+        return Properties.FILTER.equals(key) ? defaultFilter : defaultVote;
+    }
+
+    // true if the value should be removed from the store rather than written, see IHDNBuilder.withSparseDefaults()
+    boolean isSparseDefault(String key, Object value) {
+        if (!sparseDefaults || !(value instanceof double[])) return false;
+        if (!Properties.FILTER.equals(key) && !Properties.VOTE.equals(key)) return false;
+        return Arrays.equals((double[]) value, defaultValue(key));
+    }
+
     public Result execute(String s) throws QueryExecutionException {
-        return DB.execute(s);
+        // held filters and votes are written first, so the query sees them
+        if (columns != null && !readOnly) columns.flush();
+        Result result = DB.execute(s);
+        if (readOnly && result.getQueryExecutionType().queryType() != QueryExecutionType.QueryType.READ_ONLY) {
+            result.close();
+            checkWritable();
+        }
+        // writes made by Cypher bypass the derived state, and may delete nodes whose ids are then reused
+        if (result.getQueryExecutionType().queryType() != QueryExecutionType.QueryType.READ_ONLY) {
+            resync();
+            sharing = true;
+        }
+        return result;
     }
 
+    // writes made on it directly are not seen by derived state, see resync()
     GraphDatabaseService getDB() {
         return this.DB;
     }
 
+    // for reads and writes through IHDNNode outside computeAll, which derived state follows
+    public Transaction beginTx() {
+        return DB.beginTx();
+    }
+
     public Stream<IHDNNode> getIHDNNodes(Label label) {
-        return DB.findNodes(label).stream().map(node -> new IHDNNode(this, node));
+        return DB.findNodes(label).stream().map(this::handle);
     }
 
     public Stream<IHDNNode> getActiveIHDNNodes(Label label) {
-        return DB.findNodes(label).stream()
-                .filter(node -> !node.hasLabel(IHDNLabels.INACTIVE))
-                .map(node -> new IHDNNode(this, node));
+        // copy, so callers may change activity while streaming
+        BitSet active = (BitSet) activeIndex.activeWithLabel(label).clone();
+        return active.stream()
+                .mapToObj(ordinal -> handles.get(ordinals.id(ordinal)));
+    }
+
+    // statistics kept up to date as nodes change, see AggregateRegistry
+    public AggregateRegistry getAggregates() {
+        return this.aggregates;
+    }
+
+    // ancestry recorded by the simulation, appended to the builder's lineage file at every commit, null in views
+    public LineageLog getLineage() {
+        return this.lineage;
+    }
+
+    // null unless the builder was given one
+    public ColdArchive getColdArchive() {
+        return this.archive;
+    }
+
+    // counters and latencies of computeAll, null unless the builder was given withMetrics()
+    public IHDNMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public void shutdown() {
+        if (engine != null) engine.close();
+        if (metricsReporter != null) metricsReporter.close();
+        if (archive != null) archive.close();
+        DB.shutdown();
     }
 
     public int getCurrentIteration() {
@@ -165,15 +1062,40 @@ public class IHDN {
     public static class IHDNBuilder {
 
         private GraphDatabaseService db;
+        // created by withNewDB()
+        private File newStore;
         private int iterationsPerMonitor;
         private IterationMonitor iterationMonitor;
         private double[] rootFilter;
         private IHDNFunction[] ihdnFunctions;
         private Map<IHDNFunction, String> hgFunctionNames;
-        private Map<String, VoteFunction> voteFunctions;
+        private Map<String, VoteAccumulator> voteAccumulators;
         private String cypherStatement;
         private GraphBuilder graphBuilder;
-        private double[] defaultVote;
+        private boolean inMemory;
+        private int parallelism;
+        private int parallelThreshold;
+        private Long seed;
+        private boolean offHeapColumns;
+        private boolean deferredMutations;
+        private long transactionBudget = TransactionBudget.defaultBudget();
+        private int monitorQueueCapacity;
+        private Consumer<AggregateRegistry> aggregates;
+        private String lineageFileName;
+        private String trajectoryFileName;
+        private String archiveFileName;
+        private long archiveInternBytes;
+        private int compactEvery;
+        private int compactMinAge;
+        private String restoreFileName;
+        private String checkpointFileName;
+        private int checkpointEvery;
+        private boolean sparseDefaults;
+        private boolean noVoteCache;
+        private boolean metrics;
+        private String metricsFileName;
+        private long metricsPeriodMillis;
+        private final Map<String, IHDNFunction> functions = new LinkedHashMap<>();
 
         public IHDNBuilder withExistingDB(String fileName) {
             if (this.db != null) throw new RuntimeException("Must choose one from withExistingDB() and withNewDB()");
@@ -187,16 +1109,53 @@ public class IHDN {
         }
 
         public IHDNBuilder withNewDB(String fileName) {
+            return withNewDB(fileName, null);
+        }
+
+        // page cache in bytes, for stores that run side by side
+        public IHDNBuilder withNewDB(String fileName, long pageCacheMemory) {
+            return withNewDB(fileName, String.valueOf(pageCacheMemory));
+        }
+
+        // Neo4j's default page cache if null
+        private IHDNBuilder withNewDB(String fileName, String pageCacheMemory) {
             if (this.db != null) throw new RuntimeException("Must choose one from withExistingDB() and withNewDB()");
 
             File file = new File(fileName);
             if (file.exists())
                 throw new RuntimeException("File already exists.");
 
-            this.db = new GraphDatabaseFactory().newEmbeddedDatabase(file);
+            GraphDatabaseBuilder builder = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(file);
+            if (pageCacheMemory != null) builder.setConfig(GraphDatabaseSettings.pagecache_memory, pageCacheMemory);
+            this.db = builder.newGraphDatabase();
+            this.newStore = file;
             return this;
         }
 
+        // when createIHDN() was never called, it shuts the store down itself if it fails
+        void shutdownDB() {
+            if (db != null) db.shutdown();
+            db = null;
+        }
+
+        // after createIHDN() failed: nothing is left open, and a store made by withNewDB() is deleted rather than
+        // left half built
+        private void cleanUp(IHDN ihdn) {
+            try {
+                if (ihdn != null) ihdn.shutdown();
+                else if (db != null) db.shutdown();
+            } finally {
+                db = null;
+                if (newStore != null) delete(newStore);
+            }
+        }
+
+        private static void delete(File file) {
+            File[] children = file.listFiles();
+            if (children != null) for (File child : children) delete(child);
+            if (!file.delete() && file.exists()) log.warn("Could not delete {}.", file);
+        }
+
         public IHDNBuilder setIterationsPerMonitor(int iterationsPerMonitor) {
             this.iterationsPerMonitor = iterationsPerMonitor;
             return this;
@@ -219,75 +1178,273 @@ public class IHDN {
             return this;
         }
 
+        // after the simulation's @IHDNFunctionDefinition fields, in the order given
+        public IHDNBuilder withFunction(String name, IHDNFunction function) {
+            this.functions.put(name, function);
+            return this;
+        }
+
         public IHDNBuilder withGraphBuilder(GraphBuilder graphBuilder) {
             this.graphBuilder = graphBuilder;
             return this;
         }
 
+        public IHDNBuilder withInMemoryEngine() {
+            this.inMemory = true;
+            return this;
+        }
+
+        // parallel compute runs on the in-memory engine
+        public IHDNBuilder withParallelCompute(int parallelThreshold) {
+            this.inMemory = true;
+            this.parallelThreshold = parallelThreshold;
+            if (parallelism == 0) parallelism = Runtime.getRuntime().availableProcessors();
+            return this;
+        }
+
+        public IHDNBuilder setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        // filter and vote matrices in direct buffers
+        public IHDNBuilder withOffHeapColumns() {
+            this.offHeapColumns = true;
+            return this;
+        }
+
+        // apply IHDN.getMutations() after each iteration instead of straight away
+        public IHDNBuilder withDeferredMutations() {
+            this.deferredMutations = true;
+            return this;
+        }
+
+        /**
+         * Runs the iteration monitor on a background thread, see {@link AsyncMonitor}. Monitors only see
+         * committed state, so computeAll commits before each call, every iterationsPerMonitor iterations at least,
+         * whatever the batch size. Neo4j has no snapshot reads: the monitor reads the store as committed while it
+         * runs, which may be a later iteration than the one it is called for; only the aggregates are a snapshot.
+         */
+        public IHDNBuilder withAsyncMonitor(int queueCapacity) {
+            if (queueCapacity <= 0) throw new RuntimeException("Monitor queue capacity must be positive.");
+            this.monitorQueueCapacity = queueCapacity;
+            return this;
+        }
+
+        // register aggregates once the graph is built
+        public IHDNBuilder withAggregates(Consumer<AggregateRegistry> aggregates) {
+            this.aggregates = aggregates;
+            return this;
+        }
+
+        // write IHDN.getLineage() to the file, read it back with LineageLog.read()
+        public IHDNBuilder withLineageLog(String fileName) {
+            this.lineageFileName = fileName;
+            return this;
+        }
+
+        // record each computeAll run, replay it with TrajectoryLog.replay()
+        public IHDNBuilder withTrajectoryLog(String fileName) {
+            this.trajectoryFileName = fileName;
+            return this;
+        }
+
+        // where IHDN.compact() moves old inactive subtrees, read it back with ColdArchive.read()
+        public IHDNBuilder withColdArchive(String fileName) {
+            return withColdArchive(fileName, ColdArchive.DEFAULT_INTERN_BYTES);
+        }
+
+        // internBytes bounds the subtrees remembered for interning, see ColdArchive
+        public IHDNBuilder withColdArchive(String fileName, long internBytes) {
+            if (internBytes < 0) throw new RuntimeException("Invalid intern budget.");
+            this.archiveFileName = fileName;
+            this.archiveInternBytes = internBytes;
+            return this;
+        }
+
+        // compact every so many iterations of computeAll, archiving nodes inactive for at least minAge iterations
+        public IHDNBuilder setCompaction(int everyIterations, int minAge) {
+            if (everyIterations <= 0 || minAge < 0) throw new RuntimeException("Invalid compaction schedule.");
+            this.compactEvery = everyIterations;
+            this.compactMinAge = minAge;
+            return this;
+        }
+
+        // continue a run: restore the checkpoint into the new store instead of running the cypher statement and
+        // graph builder, with the checkpoint's seed, iteration and simulation state
+        public IHDNBuilder withCheckpoint(String fileName) {
+            this.restoreFileName = fileName;
+            return this;
+        }
+
+        // checkpoint every so many iterations of computeAll, each replacing the last, see IHDN.checkpoint()
+        public IHDNBuilder setCheckpoints(String fileName, int everyIterations) {
+            if (everyIterations <= 0) throw new RuntimeException("Checkpoint interval must be positive.");
+            this.checkpointFileName = fileName;
+            this.checkpointEvery = everyIterations;
+            return this;
+        }
+
+        // remove filters and votes set to their defaults instead of storing them
+        public IHDNBuilder withSparseDefaults() {
+            this.sparseDefaults = true;
+            return this;
+        }
+
+        // every subtree is visited, for checking that kept votes change nothing
+        IHDNBuilder withoutVoteCache() {
+            this.noVoteCache = true;
+            return this;
+        }
+
+        // count and time the work of computeAll, see IHDN.getMetrics()
+        public IHDNBuilder withMetrics() {
+            this.metrics = true;
+            return this;
+        }
+
+        // metrics appended to the file every period until shutdown, as JSON lines if it ends in .json, else CSV
+        public IHDNBuilder withMetricsReport(String fileName, long periodMillis) {
+            if (periodMillis <= 0) throw new RuntimeException("Metrics period must be positive.");
+            this.metrics = true;
+            this.metricsFileName = fileName;
+            this.metricsPeriodMillis = periodMillis;
+            return this;
+        }
+
+        // estimated transaction state, in bytes, at which computeAll commits early
+        public IHDNBuilder setTransactionBudget(long transactionBudget) {
+            this.transactionBudget = transactionBudget;
+            return this;
+        }
+
+        public IHDNBuilder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
         public IHDNBuilder withCypherStatement(String cypherStatement) {
             this.cypherStatement = cypherStatement;
             return this;
         }
 
+        // if it fails, the store is shut down, and deleted if withNewDB() made it
         public IHDN createIHDN() {
-            try (Transaction tx = db.beginTx()) {
-                if (simulation == null) throw new RuntimeException("No simulation provided.");
-
-                // set up array of HGFunctions
-                List<IHDNFunction> ihdnFunctionList = new LinkedList<>();
-                hgFunctionNames = new HashMap<>();
-                voteFunctions = new HashMap<>();
-
-                try {
-                    for (Field field : simulation.getClass().getDeclaredFields()) {
-                        if (field.getAnnotation(IHDNFunctionDefinition.class) != null) {
-                            if (field.getType().isAssignableFrom(IHDNFunction.class)) {
-                                IHDNFunction function = (IHDNFunction) field.get(simulation);
-                                ihdnFunctionList.add(function);
-                                hgFunctionNames.put(function, field.getName());
-                            }
-                        } else if (field.getAnnotation(VoteFunctionDefinition.class) != null) {
-                            if (field.getType().isAssignableFrom(VoteFunction.class)) {
-                                this.voteFunctions.put(field.getName(), ((VoteFunction) field.get(simulation)));
+            if (simulation == null) throw new RuntimeException("No simulation provided.");
+            IHDN ihdn = null;
+            boolean created = false;
+            try {
+                // in transactions of its own, before the builder's
+                Checkpoint checkpoint = null;
+                if (restoreFileName != null) {
+                    File file = new File(restoreFileName);
+                    if (!file.exists()) throw new RuntimeException("Checkpoint file does not exist.");
+                    checkpoint = Checkpoint.restore(db, file, simulation);
+                    seed = checkpoint.getSeed();
+                    log.info("Restored checkpoint of iteration {} with seed {}.", checkpoint.getIteration(), seed);
+                }
+
+                try (Transaction tx = db.beginTx()) {
+
+                    // set up array of HGFunctions
+                    List<IHDNFunction> ihdnFunctionList = new LinkedList<>();
+                    hgFunctionNames = new HashMap<>();
+                    voteAccumulators = new HashMap<>();
+
+                    try {
+                        for (Field field : simulation.getClass().getDeclaredFields()) {
+                            if (field.getAnnotation(IHDNFunctionDefinition.class) != null) {
+                                if (field.getType().isAssignableFrom(IHDNFunction.class)) {
+                                    IHDNFunction function = (IHDNFunction) field.get(simulation);
+                                    ihdnFunctionList.add(function);
+                                    hgFunctionNames.put(function, field.getName());
+                                }
+                            } else if (field.getAnnotation(VoteFunctionDefinition.class) != null) {
+                                if (field.getType().isAssignableFrom(VoteFunction.class)) {
+                                    this.voteAccumulators.put(field.getName(),
+                                            VoteAccumulator.of((VoteFunction) field.get(simulation)));
+                                } else if (field.getType().isAssignableFrom(VoteAccumulator.class)) {
+                                    this.voteAccumulators.put(field.getName(), (VoteAccumulator) field.get(simulation));
+                                }
                             }
                         }
+                    } catch (IllegalAccessException e) {
+                        throw new RuntimeException(e);
                     }
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
 
-                if (ihdnFunctionList.isEmpty()) throw new RuntimeException("No HGFunctions provided.");
-                this.ihdnFunctions = ihdnFunctionList.toArray(new IHDNFunction[0]);
+                    functions.forEach((name, function) -> {
+                        ihdnFunctionList.add(function);
+                        hgFunctionNames.put(function, name);
+                    });
 
-                // default iterationsPerMonitor
-                if (iterationsPerMonitor == 0) iterationsPerMonitor = 1;
-                // default root filter
-                if (rootFilter == null) {
-                    rootFilter = new double[ihdnFunctions.length];
-                    Arrays.fill(rootFilter, 1.0);
-                }
+                    if (ihdnFunctionList.isEmpty()) throw new RuntimeException("No HGFunctions provided.");
+                    this.ihdnFunctions = ihdnFunctionList.toArray(new IHDNFunction[0]);
+
+                    // default iterationsPerMonitor
+                    if (iterationsPerMonitor == 0) iterationsPerMonitor = 1;
+                    // default root filter
+                    if (rootFilter == null) {
+                        rootFilter = new double[ihdnFunctions.length];
+                        Arrays.fill(rootFilter, 1.0);
+                    }
+
+                    // default seed, logged so the run can be reproduced
+                    if (seed == null) {
+                        seed = ThreadLocalRandom.current().nextLong();
+                        log.info("Using seed {}.", seed);
+                    }
 
-                // set up Map for voteFunctions
-                if (cypherStatement != null) db.execute(cypherStatement);
-                IHDN ihdn = new IHDN(db, iterationsPerMonitor, iterationMonitor, rootFilter, ihdnFunctions, hgFunctionNames, voteFunctions);
-                if (graphBuilder != null) {
-                    graphBuilder.accept(ihdn);
+                    // set up Map for voteFunctions
+                    if (cypherStatement != null && checkpoint == null) db.execute(cypherStatement);
+                    if (compactEvery > 0 && archiveFileName == null)
+                        throw new RuntimeException("Compaction needs a cold archive, see withColdArchive().");
+                    IHDNMetrics ihdnMetrics = null;
+                    MetricsReporter metricsReporter = null;
+                    if (metrics) {
+                        String[] names = new String[ihdnFunctions.length];
+                        for (int i = 0; i < names.length; i++) names[i] = hgFunctionNames.get(ihdnFunctions[i]);
+                        ihdnMetrics = new IHDNMetrics(names);
+                        if (metricsFileName != null)
+                            metricsReporter = new MetricsReporter(ihdnMetrics, new File(metricsFileName),
+                                    metricsFileName.endsWith(".json") ? MetricsReporter.Format.JSON
+                                            : MetricsReporter.Format.CSV,
+                                    metricsPeriodMillis);
+                    }
+                    // logs continue from where the checkpoint left them
+                    ihdn = new IHDN(this,
+                            new LineageLog(lineageFileName == null ? null : new File(lineageFileName),
+                                    checkpoint == null ? 0 : checkpoint.getLineageRecords()),
+                            archiveFileName == null ? null : new ColdArchive(new File(archiveFileName),
+                                    archiveInternBytes, checkpoint == null ? 0 : checkpoint.getArchiveBytes(),
+                                    checkpoint == null ? 0 : checkpoint.getArchiveSubtrees(),
+                                    checkpoint == null ? 0 : checkpoint.getArchiveEntries()),
+                            ihdnMetrics, metricsReporter);
+                    if (checkpoint != null) ihdn.resumeAt(checkpoint);
+                    // nothing is shared in a new store until the graph builder shares it
+                    ihdn.sharing = checkpoint != null || newStore == null || cypherStatement != null;
+                    tx.success();
                 }
 
-                // default vote
-                defaultVote = new double[ihdnFunctions.length];
-                Arrays.fill(defaultVote, 0.0);
+                // a new store holds only what the statement made, a restored one has its keys
+                if (checkpoint == null && (newStore == null || cypherStatement != null)) ihdn.assignKeys();
 
-                db.getAllNodes().stream()
-                        .filter(node -> !node.hasProperty(Properties.VOTE))
-                        .forEach(node -> node.setProperty(Properties.VOTE, defaultVote));
+                // in transactions of its own, so large graphs can be committed as they are built
+                if (graphBuilder != null && checkpoint == null) ihdn.build(graphBuilder);
 
-                if (db.findNodes(IHDNLabels.ROOT).stream().count() == 0)
-                    throw new RuntimeException("No ROOT nodes found.");
+                try (Transaction tx = db.beginTx()) {
+                    // nodes without a vote or filter read the default, see IHDNNode.getVote() and getFilter()
+                    try (ResourceIterator<Node> roots = db.findNodes(IHDNLabels.ROOT)) {
+                        if (!roots.hasNext()) throw new RuntimeException("No ROOT nodes found.");
+                    }
 
+                    if (aggregates != null) aggregates.accept(ihdn.getAggregates());
 
-                tx.success();
+                    tx.success();
+                }
+                created = true;
                 return ihdn;
+            } finally {
+                if (!created) cleanUp(ihdn);
             }
         }
     }
@@ -0,0 +1,168 @@
+package ihdn;
+
+/**
+ * Java Flight Recorder events for iterations, root traversals, function applications, clones, subtree deletes
+ * and commits, recorded whenever a recording with them enabled is running, for example
+ * {@code -XX:StartFlightRecording=filename=run.jfr}.
+ * <p>
+ * The events live in JfrRecorder, under src/main/jfr and compiled only when building on JDK 11 or later (the jfr
+ * profile). It is loaded by name if it was built and the runtime has jdk.jfr, so this class links and builds without
+ * it; otherwise every method goes to a shared recorder that does nothing. Callers hold the event returned by a begin
+ * method as an Object, null when nothing is recording, and pass it to the matching end; while no recording asks for an
+ * event, a begin costs an isEnabled() check and allocates nothing. Labels are read only for events that will be
+ * recorded.
+ */
+final class IHDNEvents {
+
+    // begin methods return null for events not recorded, end methods are only given the others
+    interface Recorder {
+
+        Object beginIteration(int iteration);
+
+        void endIteration(Object event, long nodesVisited, long nodesCreated, long nodesDeleted);
+
+        Object beginTraversal(IHDNNode root);
+
+        void stop(Object event);
+
+        void endTraversal(Object event, long subtreeSize);
+
+        Object beginFunction(IHDNNode node, String function);
+
+        Object beginClone(IHDNNode node, String operation);
+
+        void endClone(Object event, long cloneId, long subtreeSize);
+
+        Object beginDelete(IHDNNode node);
+
+        void endDelete(Object event, long subtreeSize);
+
+        Object beginCommit(int iteration, long transactionBytes);
+
+        void end(Object event);
+    }
+
+    private static final Recorder NONE = new Recorder() {
+        @Override
+        public Object beginIteration(int iteration) {
+            return null;
+        }
+
+        @Override
+        public void endIteration(Object event, long nodesVisited, long nodesCreated, long nodesDeleted) {
+        }
+
+        @Override
+        public Object beginTraversal(IHDNNode root) {
+            return null;
+        }
+
+        @Override
+        public void stop(Object event) {
+        }
+
+        @Override
+        public void endTraversal(Object event, long subtreeSize) {
+        }
+
+        @Override
+        public Object beginFunction(IHDNNode node, String function) {
+            return null;
+        }
+
+        @Override
+        public Object beginClone(IHDNNode node, String operation) {
+            return null;
+        }
+
+        @Override
+        public void endClone(Object event, long cloneId, long subtreeSize) {
+        }
+
+        @Override
+        public Object beginDelete(IHDNNode node) {
+            return null;
+        }
+
+        @Override
+        public void endDelete(Object event, long subtreeSize) {
+        }
+
+        @Override
+        public Object beginCommit(int iteration, long transactionBytes) {
+            return null;
+        }
+
+        @Override
+        public void end(Object event) {
+        }
+    };
+
+    private static final Recorder RECORDER = load();
+    static final boolean AVAILABLE = RECORDER != NONE;
+
+    private IHDNEvents() {
+    }
+
+    private static Recorder load() {
+        try {
+            Class.forName("jdk.jfr.Event", false, IHDNEvents.class.getClassLoader());
+            return (Recorder) Class.forName("ihdn.JfrRecorder").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return NONE;
+        }
+    }
+
+    static Object beginIteration(int iteration) {
+        return RECORDER.beginIteration(iteration);
+    }
+
+    static void endIteration(Object event, long nodesVisited, long nodesCreated, long nodesDeleted) {
+        if (event != null) RECORDER.endIteration(event, nodesVisited, nodesCreated, nodesDeleted);
+    }
+
+    static Object beginTraversal(IHDNNode root) {
+        return RECORDER.beginTraversal(root);
+    }
+
+    // ends the traversal's duration, its size is known once endTraversal() commits it
+    static void stop(Object event) {
+        if (event != null) RECORDER.stop(event);
+    }
+
+    static void endTraversal(Object event, long subtreeSize) {
+        if (event != null) RECORDER.endTraversal(event, subtreeSize);
+    }
+
+    static Object beginFunction(IHDNNode node, String function) {
+        return RECORDER.beginFunction(node, function);
+    }
+
+    static void endFunction(Object event) {
+        if (event != null) RECORDER.end(event);
+    }
+
+    static Object beginClone(IHDNNode node, String operation) {
+        return RECORDER.beginClone(node, operation);
+    }
+
+    static void endClone(Object event, long cloneId, long subtreeSize) {
+        if (event != null) RECORDER.endClone(event, cloneId, subtreeSize);
+    }
+
+    static Object beginDelete(IHDNNode node) {
+        return RECORDER.beginDelete(node);
+    }
+
+    static void endDelete(Object event, long subtreeSize) {
+        if (event != null) RECORDER.endDelete(event, subtreeSize);
+    }
+
+    static Object beginCommit(int iteration, long transactionBytes) {
+        return RECORDER.beginCommit(iteration, transactionBytes);
+    }
+
+    static void endCommit(Object event) {
+        if (event != null) RECORDER.end(event);
+    }
+}
@@ -3,5 +3,5 @@ package ihdn;
 import org.neo4j.graphdb.Label;
 
 public enum IHDNLabels implements Label {
-    ROOT, INACTIVE
+    ROOT, INACTIVE, ARCHIVED
 }
@@ -0,0 +1,255 @@
+package ihdn;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms kept by computeAll once {@link IHDN.IHDNBuilder#withMetrics()} is set: nodes
+ * visited and skipped as inactive, invocations and latency of each {@link IHDNFunction} by name, vote function
+ * latency, commit time, iteration time and nodes created and deleted. Recording is safe from the parallel
+ * engine's workers; {@link #snapshot()} may be taken from any thread at any time.
+ * <p>
+ * Vote function latency covers begin, accepting each child's vote and finish (see {@link VoteAccumulator}), but
+ * not computing the children.
+ */
+public final class IHDNMetrics {
+
+    private final String[] functionNames;
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder nodesSkippedInactive = new LongAdder();
+    private final LongAdder nodesCreated = new LongAdder();
+    private final LongAdder nodesDeleted = new LongAdder();
+    private final LatencyHistogram[] functionLatency;
+    private final LatencyHistogram voteLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram iterationLatency = new LatencyHistogram();
+
+    // written on the transaction's thread at iteration ends
+    private volatile int iteration;
+    private volatile long lastIterationCreated;
+    private volatile long lastIterationDeleted;
+    private long createdAtIterationStart;
+    private long deletedAtIterationStart;
+
+    // in function index order
+    IHDNMetrics(String[] functionNames) {
+        this.functionNames = functionNames.clone();
+        this.functionLatency = new LatencyHistogram[functionNames.length];
+        for (int i = 0; i < functionNames.length; i++) functionLatency[i] = new LatencyHistogram();
+    }
+
+    void nodeVisited() {
+        nodesVisited.increment();
+    }
+
+    void nodeSkippedInactive() {
+        nodesSkippedInactive.increment();
+    }
+
+    void nodeCreated() {
+        nodesCreated.increment();
+    }
+
+    void nodeDeleted() {
+        nodesDeleted.increment();
+    }
+
+    void functionApplied(int function, long nanos) {
+        functionLatency[function].record(nanos);
+    }
+
+    void voteComputed(long nanos) {
+        voteLatency.record(nanos);
+    }
+
+    void committed(long nanos) {
+        commitLatency.record(nanos);
+    }
+
+    void iterationEnd(int iteration, long nanos) {
+        iterationLatency.record(nanos);
+        long created = nodesCreated.sum(), deleted = nodesDeleted.sum();
+        lastIterationCreated = created - createdAtIterationStart;
+        lastIterationDeleted = deleted - deletedAtIterationStart;
+        createdAtIterationStart = created;
+        deletedAtIterationStart = deleted;
+        this.iteration = iteration;
+    }
+
+    // counters read one at a time, so a snapshot taken mid-iteration need not be consistent across them
+    public Snapshot snapshot() {
+        Map<String, Histogram> functions = new LinkedHashMap<>();
+        for (int i = 0; i < functionNames.length; i++)
+            functions.merge(functionNames[i], functionLatency[i].snapshot(), Histogram::add);
+        return new Snapshot(System.currentTimeMillis(), iteration, nodesVisited.sum(),
+                nodesSkippedInactive.sum(), nodesCreated.sum(), nodesDeleted.sum(), lastIterationCreated,
+                lastIterationDeleted, functions, voteLatency.snapshot(), commitLatency.snapshot(),
+                iterationLatency.snapshot());
+    }
+
+    // power of two buckets of nanoseconds, bucket b holding [2^(b-1), 2^b)
+    private static final class LatencyHistogram {
+
+        private final LongAdder[] buckets = new LongAdder[Histogram.BUCKETS];
+        private final LongAdder totalNanos = new LongAdder();
+
+        LatencyHistogram() {
+            for (int b = 0; b < buckets.length; b++) buckets[b] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            totalNanos.add(nanos);
+        }
+
+        Histogram snapshot() {
+            long[] counts = new long[buckets.length];
+            for (int b = 0; b < counts.length; b++) counts[b] = buckets[b].sum();
+            return new Histogram(counts, totalNanos.sum());
+        }
+    }
+
+    /**
+     * Latencies in power of two buckets of nanoseconds. Percentiles are the upper bound of the bucket they fall
+     * in, so within a factor of two.
+     */
+    public static final class Histogram {
+
+        static final int BUCKETS = 64;
+
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+
+        Histogram(long[] counts, long totalNanos) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) count += c;
+            this.count = count;
+            this.totalNanos = totalNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        // q in [0, 1]
+        public long getPercentileNanos(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            for (int b = 0; b < counts.length; b++) {
+                rank -= counts[b];
+                if (rank <= 0) return (1L << b) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        // recordings in [2^(bucket-1), 2^bucket) nanoseconds, bucket 0 holding 0
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        // functions registered under one name twice are reported together
+        static Histogram add(Histogram a, Histogram b) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) counts[i] = a.counts[i] + b.counts[i];
+            return new Histogram(counts, a.totalNanos + b.totalNanos);
+        }
+    }
+
+    public static final class Snapshot {
+
+        private final long timeMillis;
+        private final int iteration;
+        private final long nodesVisited;
+        private final long nodesSkippedInactive;
+        private final long nodesCreated;
+        private final long nodesDeleted;
+        private final long lastIterationCreated;
+        private final long lastIterationDeleted;
+        private final Map<String, Histogram> functionLatency;
+        private final Histogram voteLatency;
+        private final Histogram commitLatency;
+        private final Histogram iterationLatency;
+
+        Snapshot(long timeMillis, int iteration, long nodesVisited, long nodesSkippedInactive, long nodesCreated,
+                 long nodesDeleted, long lastIterationCreated, long lastIterationDeleted,
+                 Map<String, Histogram> functionLatency, Histogram voteLatency, Histogram commitLatency,
+                 Histogram iterationLatency) {
+            this.timeMillis = timeMillis;
+            this.iteration = iteration;
+            this.nodesVisited = nodesVisited;
+            this.nodesSkippedInactive = nodesSkippedInactive;
+            this.nodesCreated = nodesCreated;
+            this.nodesDeleted = nodesDeleted;
+            this.lastIterationCreated = lastIterationCreated;
+            this.lastIterationDeleted = lastIterationDeleted;
+            this.functionLatency = Collections.unmodifiableMap(functionLatency);
+            this.voteLatency = voteLatency;
+            this.commitLatency = commitLatency;
+            this.iterationLatency = iterationLatency;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        // last iteration finished
+        public int getIteration() {
+            return iteration;
+        }
+
+        public long getNodesVisited() {
+            return nodesVisited;
+        }
+
+        public long getNodesSkippedInactive() {
+            return nodesSkippedInactive;
+        }
+
+        public long getNodesCreated() {
+            return nodesCreated;
+        }
+
+        public long getNodesDeleted() {
+            return nodesDeleted;
+        }
+
+        // during the last iteration finished
+        public long getLastIterationCreated() {
+            return lastIterationCreated;
+        }
+
+        public long getLastIterationDeleted() {
+            return lastIterationDeleted;
+        }
+
+        // by function name, in function index order; counts are invocations
+        public Map<String, Histogram> getFunctionLatency() {
+            return functionLatency;
+        }
+
+        public Histogram getVoteLatency() {
+            return voteLatency;
+        }
+
+        public Histogram getCommitLatency() {
+            return commitLatency;
+        }
+
+        public Histogram getIterationLatency() {
+            return iterationLatency;
+        }
+    }
+}
@@ -4,18 +4,29 @@ import org.neo4j.graphdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
 public class IHDNNode implements Node {
 
+    // no key read yet, stored keys are never negative
+    private final static long NO_KEY = Long.MIN_VALUE;
+
     private final Logger log = LoggerFactory.getLogger(IHDNNode.class);
 
     private final Node node;
     private final IHDN IHDN;
     private boolean isDeleted;
+    private int ordinal = LongIntMap.MISSING;
+    // assigned on creation or read on first use
+    private long key = NO_KEY;
 
+    // use IHDN.handle(), which keeps one handle per node
     IHDNNode(IHDN IHDN, Node node) {
         this.IHDN = IHDN;
         this.node = node;
@@ -24,6 +35,8 @@ public class IHDNNode implements Node {
     public IHDNNode(IHDN IHDN) {
         this.IHDN = IHDN;
         this.node = IHDN.getDB().createNode();
+        assignKey();
+        IHDN.onCreated(this);
     }
 
     public boolean isDeleted() {
@@ -33,49 +46,130 @@ public class IHDNNode implements Node {
     public IHDNNode(IHDN IHDN, Label... labels) {
         this.IHDN = IHDN;
         this.node = IHDN.getDB().createNode(labels);
+        assignKey();
+        IHDN.onCreated(this, labels);
+    }
+
+    /**
+     * Stable key of the node, assigned by the IHDN in creation order and kept in the store as
+     * {@link Properties#NODE_KEY}. Unlike the node id it is not reused after a delete and survives checkpoints, so
+     * random draws, lineage and logs are keyed on it. Nodes in the store when the IHDN is created are given
+     * theirs then. Reading a key never writes: a node created around IHDNNode afterwards reads a negative key
+     * derived from its id, which can be reused after a delete; create nodes through IHDNNode for runs that
+     * reproduce.
+     */
+    public long getKey() {
+        if (key == NO_KEY) {
+            Object stored = node.getProperty(Properties.NODE_KEY, null);
+            if (stored == null) return -1 - node.getId();
+            key = (Long) stored;
+        }
+        return key;
+    }
+
+    private void assignKey() {
+        key = IHDN.newKey();
+        node.setProperty(Properties.NODE_KEY, key);
+        IHDN.onWrite(TransactionBudget.PROPERTY);
     }
 
     public void setInactive() {
-        node.setProperty(Properties.TIME_INACTIVE, IHDN.getCurrentIteration());
-        node.addLabel(IHDNLabels.INACTIVE);
+        setProperty(Properties.TIME_INACTIVE, IHDN.getCurrentIteration());
+        addLabel(IHDNLabels.INACTIVE);
     }
 
     public boolean isActive() {
-        return !hasLabel(IHDNLabels.INACTIVE);
+        return IHDN.isActive(this);
     }
 
     public VoteFunction getVoteFunction() {
-        if (node.hasProperty(Properties.VOTE_FUNCTION)) {
-            String voteFunctionName = (String) node.getProperty(Properties.VOTE_FUNCTION);
-            if (IHDN.getVoteFunctions().containsKey(voteFunctionName))
-                return IHDN.getVoteFunctions().get(voteFunctionName);
-            else
-                throw new RuntimeException("Vote function " + voteFunctionName + " not found.");
-        } else {
-            return VoteFunction.DEFAULT;
-        }
+        return getVoteAccumulator().asVoteFunction();
     }
 
+    VoteAccumulator getVoteAccumulator() {
+        NodeColumns columns = IHDN.getColumns();
+        if (columns != null) return columns.getVoteAccumulator(row(columns));
+        return IHDN.resolveVoteAccumulator((String) node.getProperty(Properties.VOTE_FUNCTION, null));
+    }
+
+    /**
+     * The node's filter, all ones if it has none. During computeAll the array may be shared with the IHDN's
+     * columns, so copy it before changing it; set the copy with {@link #setProperty(String, Object)}.
+     */
     public double[] getFilter() {
-        double[] filter;
-        if (node.hasProperty(Properties.FILTER))
-            filter = (double[]) node.getProperty(Properties.FILTER);
-        else {
-            filter = new double[IHDN.getNumFunctions()];
-            Arrays.fill(filter, 1.0);
-        }
-        return filter;
+        NodeColumns columns = IHDN.getColumns();
+        if (columns != null) return columns.getFilter(row(columns));
+
+        return stored(Properties.FILTER, true);
     }
 
+    // all zeros if the node has no vote, shared as getFilter() is
     public double[] getVote() {
-        return (double[]) getProperty(Properties.VOTE);
+        NodeColumns columns = IHDN.getColumns();
+        if (columns != null) return columns.getVote(row(columns));
+        return stored(Properties.VOTE, true);
+    }
+
+    // the stored value, or the IHDN's shared default, copied if handed out
+    private double[] stored(String key, boolean copy) {
+        Object value = node.getProperty(key, null);
+        if (value != null) return (double[]) value;
+        double[] defaultValue = IHDN.defaultValue(key);
+        return copy ? defaultValue.clone() : defaultValue;
+    }
+
+    // out[i] = parentFilter[i] * filter[i]
+    void combineFilter(double[] parentFilter, double[] out) {
+        NodeColumns columns = IHDN.getColumns();
+        if (columns != null) {
+            columns.combineFilter(row(columns), parentFilter, out);
+            return;
+        }
+        double[] filter = stored(Properties.FILTER, false);
+        for (int i = 0; i < out.length; i++) out[i] = parentFilter[i] * filter[i];
+    }
+
+    // acc[i] += vote[i]
+    void addVote(double[] acc) {
+        NodeColumns columns = IHDN.getColumns();
+        if (columns != null) {
+            columns.addVote(row(columns), acc);
+            return;
+        }
+        double[] vote = stored(Properties.VOTE, false);
+        for (int i = 0; i < acc.length; i++) acc[i] += vote[i];
+    }
+
+    Node getNode() {
+        return this.node;
+    }
+
+    // row of this node in the IHDN's columns; the cached ordinal is checked, ordinals are reused and reassigned
+    // after a rollback
+    private int row(NodeColumns columns) {
+        NodeOrdinals ordinals = IHDN.getOrdinals();
+        if (ordinal == LongIntMap.MISSING || ordinals.id(ordinal) != getId()) ordinal = ordinals.ordinal(getId());
+        columns.load(ordinal, node);
+        return ordinal;
+    }
+
+    // written through this node but not yet flushed to the store
+    private boolean isHeldDirty(String key) {
+        NodeColumns columns = IHDN.getColumns();
+        if (columns == null) return false;
+        int row = IHDN.getOrdinals().get(getId());
+        return row != LongIntMap.MISSING && columns.isDirty(row, key);
+    }
+
+    private Object getHeld(String key) {
+        return Properties.FILTER.equals(key) ? getFilter() : getVote();
     }
 
     public Stream<IHDNNode> getAllChildNodes() {
         return ((ResourceIterator<Relationship>)
                 getRelationships(IHDNRelTypes.CONTAINS, Direction.OUTGOING).iterator()).stream()
                 .map(Relationship::getEndNode)
-                .map(node1 -> new IHDNNode(IHDN, node1));
+                .map(IHDN::handle);
     }
 
     public Stream<IHDNNode> getChildNodesWithLabel(Label label) {
@@ -86,36 +180,142 @@ public class IHDNNode implements Node {
         return ((ResourceIterator<Relationship>)
                 getRelationships(IHDNRelTypes.CONTAINS, Direction.INCOMING).iterator()).stream()
                 .map(Relationship::getStartNode)
-                .map(node1 -> new IHDNNode(IHDN, node1));
+                .map(IHDN::handle);
     }
 
-    public IHDNNode shallowClone() {
+    public void addChild(IHDNNode child) {
+        createRelationshipTo(child, IHDNRelTypes.CONTAINS);
+    }
+
+    // false if child is not contained by this node
+    public boolean removeChild(IHDNNode child) {
+        return removeRelationshipTo(child, IHDNRelTypes.CONTAINS);
+    }
+
+    // deletes one relationship of the type from this node to the other, false if there is none
+    public boolean removeRelationshipTo(Node other, RelationshipType relationshipType) {
+        for (Relationship rel : other.getRelationships(relationshipType, Direction.INCOMING)) {
+            if (rel.getStartNode().getId() == getId()) {
+                rel.delete();
+                IHDN.onWrite(TransactionBudget.RELATIONSHIP);
+                IHDN.onRelationshipDeleted(getId(), other.getId(), relationshipType);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean moveChild(IHDNNode child, IHDNNode newParent) {
+        if (!removeChild(child)) return false;
+        newParent.addChild(child);
+        return true;
+    }
+
+    // copy of labels and properties, not attached to any parent
+    private IHDNNode copy() {
         IHDNNode ihdnNode = new IHDNNode(IHDN);
         for (Label label : getLabels()) ihdnNode.addLabel(label);
 
         for (Map.Entry<String, Object> entry : getAllProperties().entrySet())
-            ihdnNode.setProperty(entry.getKey(), entry.getValue());
+            if (!Properties.NODE_KEY.equals(entry.getKey())) ihdnNode.setProperty(entry.getKey(), entry.getValue());
+
+        return ihdnNode;
+    }
 
-        getAllParentNodes()
-                .forEach(parent -> parent.createRelationshipTo(ihdnNode, IHDNRelTypes.CONTAINS));
+    private IHDNNode deepCopy() {
+        IHDNNode ihdnNode = copy();
+        getAllChildNodes().forEach(child -> ihdnNode.addChild(child.deepCopy()));
+        return ihdnNode;
+    }
 
+    // copy attached to this node's parents
+    private IHDNNode attachedCopy() {
+        IHDNNode ihdnNode = copy();
+        getAllParentNodes().forEach(parent -> parent.addChild(ihdnNode));
+        return ihdnNode;
+    }
+
+    public IHDNNode shallowClone() {
+        Object event = IHDNEvents.beginClone(this, "shallowClone");
+        IHDNNode ihdnNode = attachedCopy();
+        IHDNEvents.endClone(event, ihdnNode.getId(), 1);
         return ihdnNode;
     }
 
     public IHDNNode deepClone() {
-        IHDNNode ihdnNode = this.shallowClone();
-        getAllChildNodes()
-                .map(IHDNNode::deepClone)
-                .peek(child ->
-                        ((ResourceIterator<Relationship>)
-                                getRelationships(IHDNRelTypes.CONTAINS, Direction.OUTGOING).iterator()).stream()
-                                .filter(rel -> rel.getEndNode().equals(child))
-                                .forEach(Relationship::delete))
-                .forEach(child -> ihdnNode.createRelationshipTo(child, IHDNRelTypes.CONTAINS));
+        Object event = IHDNEvents.beginClone(this, "deepClone");
+        long created = IHDN.getNodesCreated();
+        IHDNNode ihdnNode = attachedCopy();
+        getAllChildNodes().forEach(child -> ihdnNode.addChild(child.deepCopy()));
+        IHDNEvents.endClone(event, ihdnNode.getId(), IHDN.getNodesCreated() - created);
+        return ihdnNode;
+    }
 
+    /**
+     * Clone that shares this node's child subtrees instead of copying them. A function's writes (properties,
+     * labels, {@link #setInactive()}, {@link #recursiveDelete()}) to the node it is applied to, or to an ancestor
+     * it was reached through, are copy-on-write along the path computeAll reached it through: every shared node on
+     * that path is first made private to it, see {@link #materializeChild(IHDNNode)}, so the write is seen along
+     * that path only. Other writes are not copied; call materializeChild() down the path first. Adding or removing
+     * a node's own children is not copied. Moving shared children between parents needs no copy.
+     * <p>
+     * computeAll applies a shared node's function once per iteration, through its owner (see
+     * {@link #getOwner()}), not once under each parent: a shared subtree evolves as one until a write separates
+     * it.
+     */
+    public IHDNNode cowClone() {
+        Object event = IHDNEvents.beginClone(this, "cowClone");
+        IHDNNode ihdnNode = attachedCopy();
+        getAllChildNodes().forEach(ihdnNode::addChild);
+        IHDNEvents.endClone(event, ihdnNode.getId(), 1);
         return ihdnNode;
     }
 
+    public boolean isShared() {
+        return getDegree(IHDNRelTypes.CONTAINS, Direction.INCOMING) > 1;
+    }
+
+    // parent through which computeAll selects and applies this node's function, the one with the smallest key if
+    // the node is shared; null for ROOT nodes, which are reached as roots, and for nodes without parents
+    IHDNNode getOwner() {
+        if (hasLabel(IHDNLabels.ROOT)) return null;
+        IHDNNode owner = null;
+        for (Relationship rel : getRelationships(IHDNRelTypes.CONTAINS, Direction.INCOMING)) {
+            IHDNNode parent = IHDN.handle(rel.getStartNode());
+            if (owner == null || parent.getKey() < owner.getKey()) owner = parent;
+        }
+        return owner;
+    }
+
+    // makes the child private to this node: if it is shared, its other parents are given a copy of it (but not of
+    // its children). To keep a write on one path, make each node on it private from the top down.
+    public IHDNNode materializeChild(IHDNNode child) {
+        if (!isDeleted && !child.isDeleted() && child.isChildOf(this)) child.separateFrom(this);
+        return child;
+    }
+
+    // the node's other parents are left a copy of its state, with the same children. Nodes keep their keys.
+    void separateFrom(IHDNNode parent) {
+        if (!isShared()) return;
+        // by id, handles held across a resync() are not the ones looked up now
+        IHDNNode[] others = getAllParentNodes().filter(other -> other.getId() != parent.getId())
+                .toArray(IHDNNode[]::new);
+        if (others.length == 0) return;
+
+        IHDNNode ihdnNode = copy();
+        getAllChildNodes().forEach(ihdnNode::addChild);
+        for (IHDNNode other : others) {
+            other.removeChild(this);
+            other.addChild(ihdnNode);
+        }
+    }
+
+    boolean isChildOf(IHDNNode parent) {
+        for (Relationship rel : getRelationships(IHDNRelTypes.CONTAINS, Direction.INCOMING))
+            if (rel.getStartNode().getId() == parent.getId()) return true;
+        return false;
+    }
+
     public String prettyPrint() {
         return String.format("(%d) -> [%s]",
                 getId(),
@@ -144,17 +344,65 @@ public class IHDNNode implements Node {
 
     @Override
     public void delete() {
-        ((ResourceIterator<Relationship>) node.getRelationships().iterator()).stream()
-                .forEach(Relationship::delete);
+        IHDN.onWrite((long) node.getDegree() * TransactionBudget.RELATIONSHIP);
+        // read while the node exists, the events of its delete are keyed on it
+        getKey();
+        for (Relationship rel : node.getRelationships()) {
+            long start = rel.getStartNode().getId(), end = rel.getEndNode().getId();
+            RelationshipType type = rel.getType();
+            rel.delete();
+            IHDN.onRelationshipDeleted(start, end, type);
+        }
         node.delete();
         this.isDeleted = true;
+        IHDN.onDeleted(this);
     }
 
+    // children shared with other parents are only detached, as is the node itself if it is shared and a function
+    // applied to it, or below it, reached it through a parent (see cowClone())
     public void recursiveDelete() {
-        getAllChildNodes().forEach(IHDNNode::recursiveDelete);
+        Object event = IHDNEvents.beginDelete(this);
+        long deleted = IHDN.getNodesDeleted();
+        // the parent computeAll reached the node through keeps it only if it is not shared
+        IHDNNode parent = IHDN.beforeDelete(this);
+        if (parent == null || !isShared() || !parent.removeChild(this)) deleteSubtree();
+        IHDNEvents.endDelete(event, IHDN.getNodesDeleted() - deleted);
+    }
+
+    private void deleteSubtree() {
+        for (IHDNNode child : getAllChildNodes().toArray(IHDNNode[]::new)) {
+            if (child.isShared()) removeChild(child);
+            else child.deleteSubtree();
+        }
         delete();
     }
 
+    // after archiving: as recursiveDelete, but nodes with links other than CONTAINS, such as lineage, become stubs
+    void retire(long archiveEntry) {
+        for (IHDNNode child : getAllChildNodes().toArray(IHDNNode[]::new)) {
+            if (child.isShared()) removeChild(child);
+            else child.retire(archiveEntry);
+        }
+        if (getDegree() == getDegree(IHDNRelTypes.CONTAINS, Direction.INCOMING)) {
+            delete();
+            return;
+        }
+
+        for (IHDNNode parent : getAllParentNodes().toArray(IHDNNode[]::new)) parent.removeChild(this);
+        for (String key : getAllProperties().keySet()) {
+            if (!key.equals(Properties.NODE_KEY)) removeProperty(key);
+        }
+        List<Label> labels = new ArrayList<>();
+        getLabels().forEach(labels::add);
+        for (Label label : labels) {
+            if (!label.name().equals(IHDNLabels.INACTIVE.name())) removeLabel(label);
+        }
+        if (!hasLabel(IHDNLabels.INACTIVE)) addLabel(IHDNLabels.INACTIVE);
+        addLabel(IHDNLabels.ARCHIVED);
+        setProperty(Properties.ARCHIVE_ENTRY, archiveEntry);
+        IHDN.onRetired(this);
+    }
+
     @Override
     public Iterable<Relationship> getRelationships() {
         return node.getRelationships();
@@ -212,7 +460,10 @@ public class IHDNNode implements Node {
 
     @Override
     public Relationship createRelationshipTo(Node node, RelationshipType relationshipType) {
-        return this.node.createRelationshipTo(node, relationshipType);
+        IHDN.onWrite(TransactionBudget.RELATIONSHIP);
+        Relationship rel = this.node.createRelationshipTo(node, relationshipType);
+        IHDN.onRelationshipCreated(getId(), node.getId(), relationshipType);
+        return rel;
     }
 
     @Override
@@ -242,12 +493,16 @@ public class IHDNNode implements Node {
 
     @Override
     public void addLabel(Label label) {
+        IHDN.beforeWrite(this);
         node.addLabel(label);
+        IHDN.onLabelAdded(this, label);
     }
 
     @Override
     public void removeLabel(Label label) {
+        IHDN.beforeWrite(this);
         node.removeLabel(label);
+        IHDN.onLabelRemoved(this, label);
     }
 
     @Override
@@ -267,27 +522,44 @@ public class IHDNNode implements Node {
 
     @Override
     public boolean hasProperty(String s) {
-        return node.hasProperty(s);
+        return node.hasProperty(s) || isHeldDirty(s);
     }
 
     @Override
     public Object getProperty(String s) {
+        if (isHeldDirty(s)) return getHeld(s);
         return node.getProperty(s);
     }
 
     @Override
     public Object getProperty(String s, Object o) {
+        if (isHeldDirty(s)) return getHeld(s);
         return node.getProperty(s, o);
     }
 
     @Override
     public void setProperty(String s, Object o) {
-        node.setProperty(s, o);
+        IHDN.beforeWrite(this);
+        // filter and vote are written back at the next transaction boundary
+        NodeColumns columns = IHDN.getColumns();
+        if (columns == null || !columns.set(row(columns), s, o)) {
+            if (IHDN.isSparseDefault(s, o)) node.removeProperty(s);
+            else node.setProperty(s, o);
+            IHDN.onWrite(TransactionBudget.PROPERTY);
+        }
+        IHDN.onPropertyChanged(this, s, o);
     }
 
     @Override
     public Object removeProperty(String s) {
-        return node.removeProperty(s);
+        IHDN.beforeWrite(this);
+        Object held = isHeldDirty(s) ? getHeld(s) : null;
+        NodeColumns columns = IHDN.getColumns();
+        if (columns != null) columns.reset(row(columns), s);
+        Object removed = node.removeProperty(s);
+        IHDN.onWrite(TransactionBudget.PROPERTY);
+        IHDN.onPropertyChanged(this, s, null);
+        return held != null ? held : removed;
     }
 
     @Override
@@ -297,11 +569,21 @@ public class IHDNNode implements Node {
 
     @Override
     public Map<String, Object> getProperties(String... strings) {
-        return node.getProperties(strings);
+        return withHeld(node.getProperties(strings), Arrays.asList(strings));
     }
 
     @Override
     public Map<String, Object> getAllProperties() {
-        return node.getAllProperties();
+        return withHeld(node.getAllProperties(), Arrays.asList(Properties.FILTER, Properties.VOTE));
+    }
+
+    private Map<String, Object> withHeld(Map<String, Object> properties, Collection<String> keys) {
+        Map<String, Object> result = properties;
+        for (String key : keys) {
+            if (!isHeldDirty(key)) continue;
+            if (result == properties) result = new HashMap<>(properties);
+            result.put(key, getHeld(key));
+        }
+        return result;
     }
 }
@@ -0,0 +1,543 @@
+package ihdn;
+
+import org.neo4j.graphdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs IHDN.computeAll over a primitive-array copy of the CONTAINS hierarchy.
+ * <p>
+ * The hierarchy below the ROOT nodes is loaded into CSR adjacency, with the filters, votes and vote functions of
+ * every loaded node decoded into the IHDN's {@link NodeColumns} up front. Structural changes made through
+ * IHDNNode (clones, moved children, deletions) are tracked and patched in at the next iteration boundary,
+ * re-reading from the store only the nodes whose children changed and the nodes they newly reach, so the
+ * traversal does not depend on when transactions commit. The arrays are loaded again when ROOT nodes change,
+ * after writes through {@link IHDN#execute(String)}, and once over half the loaded nodes have been deleted.
+ * <p>
+ * Each iteration first evaluates votes and selects functions for the whole hierarchy, then applies the selected
+ * functions in post-order on the calling thread, as Neo4j transactions are bound to it. A function's effect on
+ * votes is therefore seen from the next iteration on. In parallel mode subtrees of at least
+ * {@code parallelThreshold} nodes are evaluated as fork/join tasks; function draws depend only on
+ * (seed, iteration, node key), so parallel and sequential runs make identical selections. Custom vote functions
+ * must then only read {@link IHDNNode#getVote()} and {@link IHDNNode#getFilter()}.
+ * <p>
+ * A node shared by several parents is evaluated under each of them, but only its arrival through its owner (see
+ * {@link IHDNNode#getOwner()}), itself reached through owners from a ROOT, selects and later applies a function
+ * and reads or keeps a vote in the {@link VoteCache}. The other arrivals only compute its vote, so workers never
+ * write the same node's selection or kept vote, and which arrival counts does not depend on evaluation order.
+ */
+class InMemoryEngine {
+
+    private final static Logger log = LoggerFactory.getLogger(InMemoryEngine.class);
+
+    private final IHDN ihdn;
+    private final int numFunctions;
+    // null unless the IHDN keeps metrics
+    private final IHDNMetrics metrics;
+    // sequential evaluation, forked subtrees use their worker's (see Worker)
+    private final VoteScratch scratch;
+    private Object[] traversalEvents = new Object[0];
+
+    // CSR index of each loaded node, and its row in the columns
+    private final LongIntMap ordinals = new LongIntMap();
+    private long[] nodeIds = new long[0];
+    private long[] keys = new long[0];
+    private int[] rows = new int[0];
+    private int[] childOffsets = new int[1];
+    private int[] children = new int[0];
+    // CSR index of the parent through which each node is primary, NO_OWNER for roots and unloaded owners
+    private int[] owners = new int[0];
+    private int[] roots = new int[0];
+    private int nodeCount;
+
+    private NodeColumns columns;
+    private VoteCache voteCache;
+    private final BitSet active = new BitSet();
+    private final BitSet deleted = new BitSet();
+
+    // parallel mode
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private int[] subtreeSizes = new int[0];
+
+    // function chosen per node in the current iteration
+    private static final int NOT_EVALUATED = -2;
+    private static final int NO_FUNCTION = -1;
+    private int[] selected = new int[0];
+    private static final int NO_OWNER = -1;
+    // the node a function is applied to and its owners, see ownerPath()
+    private IHDNNode[] path = new IHDNNode[16];
+    // arrivals at active nodes, by any worker
+    private final LongAdder visited = new LongAdder();
+
+    private boolean loaded;
+    // structural changes since the last load or patch: CSR indices whose children or parents changed
+    private final BitSet childrenChanged = new BitSet();
+    private final BitSet parentsChanged = new BitSet();
+    private boolean reloadNeeded;
+    private int deletedCount;
+
+    InMemoryEngine(IHDN ihdn, int parallelism, int parallelThreshold) {
+        this.ihdn = ihdn;
+        this.numFunctions = ihdn.getNumFunctions();
+        this.metrics = ihdn.getMetrics();
+        this.scratch = new VoteScratch(numFunctions);
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism, Worker::new, null, false) : null;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    // at iteration boundaries, true if the arrays were loaded again rather than patched
+    boolean refresh(NodeColumns columns) {
+        if (!loaded || reloadNeeded || deletedCount * 2 > nodeCount) {
+            load(columns);
+            return true;
+        }
+        if (!childrenChanged.isEmpty() || !parentsChanged.isEmpty()) patch();
+        return false;
+    }
+
+    void load(NodeColumns columns) {
+        GraphDatabaseService db = ihdn.getDB();
+        this.columns = columns;
+        ordinals.clear();
+        nodeCount = 0;
+        childrenChanged.clear();
+        parentsChanged.clear();
+        reloadNeeded = false;
+        deletedCount = 0;
+
+        // breadth first from the roots, assigning ordinals in visit order
+        List<Node> nodes = new ArrayList<>();
+        try (ResourceIterator<Node> rootNodes = db.findNodes(IHDNLabels.ROOT)) {
+            while (rootNodes.hasNext()) add(nodes, rootNodes.next());
+        }
+        roots = new int[nodes.size()];
+        for (int i = 0; i < roots.length; i++) roots[i] = i;
+        traversalEvents = new Object[roots.length];
+
+        int[] offsets = new int[Math.max(16, nodes.size() + 1)];
+        int[] adjacency = new int[16];
+        int[] nodeOwners = new int[offsets.length];
+        int edges = 0;
+
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[i] = edges;
+            for (Relationship rel : nodes.get(i).getRelationships(IHDNRelTypes.CONTAINS, Direction.OUTGOING)) {
+                Node child = rel.getEndNode();
+                int ordinal = ordinals.get(child.getId());
+                if (ordinal == LongIntMap.MISSING) {
+                    ordinal = add(nodes, child);
+                    if (ordinal >= nodeOwners.length)
+                        nodeOwners = Arrays.copyOf(nodeOwners, Math.max(ordinal + 1, nodeOwners.length * 2));
+                    // the only parent, unless the node turns out to be shared
+                    nodeOwners[ordinal] = i;
+                }
+                if (edges == adjacency.length) adjacency = Arrays.copyOf(adjacency, edges * 2);
+                adjacency[edges++] = ordinal;
+            }
+        }
+        offsets[nodes.size()] = edges;
+
+        nodeCount = nodes.size();
+        childOffsets = Arrays.copyOf(offsets, nodeCount + 1);
+        children = Arrays.copyOf(adjacency, edges);
+        owners = Arrays.copyOf(nodeOwners, nodeCount);
+        for (int i = 0; i < roots.length; i++) owners[i] = NO_OWNER;
+        for (int i = roots.length; i < nodeCount; i++)
+            if (nodes.get(i).getDegree(IHDNRelTypes.CONTAINS, Direction.INCOMING) >= 2) owners[i] = owner(nodes.get(i));
+
+        // node state, decoded up front so workers only read
+        nodeIds = new long[nodeCount];
+        keys = new long[nodeCount];
+        rows = new int[nodeCount];
+        active.clear();
+        deleted.clear();
+
+        voteCache = ihdn.getVoteCache();
+        for (int i = 0; i < nodeCount; i++) loadNode(i, nodes.get(i));
+        voteCache.ensure(ihdn.getOrdinals().size());
+
+        selected = new int[nodeCount];
+        if (pool != null) subtreeSizes = subtreeSizes();
+
+        loaded = true;
+        log.debug("Loaded {} nodes and {} CONTAINS relationships.", nodeCount, edges);
+    }
+
+    // re-reads the children of nodes whose children changed, and the state and children of nodes they newly
+    // reach, which are appended; the children of every other node are copied, less deleted ones
+    private void patch() {
+        GraphDatabaseService db = ihdn.getDB();
+        int oldCount = nodeCount;
+        List<Node> added = new ArrayList<>();
+        BitSet ownerChanged = (BitSet) parentsChanged.clone();
+        int[] offsets = new int[oldCount + 16];
+        int[] adjacency = new int[Math.max(16, children.length)];
+        int edges = 0;
+
+        for (int i = 0; i < oldCount + added.size(); i++) {
+            if (i + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[i] = edges;
+            if (i < oldCount && !childrenChanged.get(i)) {
+                for (int c = childOffsets[i]; c < childOffsets[i + 1]; c++) {
+                    if (deleted.get(children[c])) continue;
+                    if (edges == adjacency.length) adjacency = Arrays.copyOf(adjacency, edges * 2);
+                    adjacency[edges++] = children[c];
+                }
+                continue;
+            }
+            if (i < oldCount && deleted.get(i)) continue;
+            Node node;
+            if (i < oldCount) {
+                node = db.getNodeById(nodeIds[i]);
+                // children it no longer contains may have lost their owner
+                for (int c = childOffsets[i]; c < childOffsets[i + 1]; c++) ownerChanged.set(children[c]);
+            } else {
+                node = added.get(i - oldCount);
+            }
+            for (Relationship rel : node.getRelationships(IHDNRelTypes.CONTAINS, Direction.OUTGOING)) {
+                Node child = rel.getEndNode();
+                int ordinal = ordinals.get(child.getId());
+                if (ordinal == LongIntMap.MISSING) {
+                    ordinal = oldCount + added.size();
+                    ordinals.put(child.getId(), ordinal);
+                    added.add(child);
+                }
+                ownerChanged.set(ordinal);
+                if (edges == adjacency.length) adjacency = Arrays.copyOf(adjacency, edges * 2);
+                adjacency[edges++] = ordinal;
+            }
+        }
+
+        nodeCount = oldCount + added.size();
+        offsets[nodeCount] = edges;
+        childOffsets = Arrays.copyOf(offsets, nodeCount + 1);
+        children = Arrays.copyOf(adjacency, edges);
+        nodeIds = Arrays.copyOf(nodeIds, nodeCount);
+        keys = Arrays.copyOf(keys, nodeCount);
+        rows = Arrays.copyOf(rows, nodeCount);
+        owners = Arrays.copyOf(owners, nodeCount);
+        selected = Arrays.copyOf(selected, nodeCount);
+        for (int i = oldCount; i < nodeCount; i++) loadNode(i, added.get(i - oldCount));
+        voteCache.ensure(ihdn.getOrdinals().size());
+
+        for (int i = ownerChanged.nextSetBit(roots.length); i >= 0; i = ownerChanged.nextSetBit(i + 1))
+            if (!deleted.get(i)) owners[i] = owner(i < oldCount ? db.getNodeById(nodeIds[i]) : added.get(i - oldCount));
+        if (pool != null) subtreeSizes = subtreeSizes();
+
+        childrenChanged.clear();
+        parentsChanged.clear();
+        log.debug("Patched in {} nodes, {} CONTAINS relationships.", added.size(), edges);
+    }
+
+    // node state, decoded up front so workers only read
+    private void loadNode(int i, Node node) {
+        nodeIds[i] = node.getId();
+        Object key = node.getProperty(Properties.NODE_KEY, null);
+        keys[i] = key != null ? (Long) key : handle(node).getKey();
+        // inactive nodes are given a row if they become active, see setActive()
+        rows[i] = ihdn.getActiveIndex().ordinal(node);
+        active.set(i, rows[i] != LongIntMap.MISSING && ihdn.getActiveIndex().isActive(rows[i], node));
+        if (rows[i] == LongIntMap.MISSING) return;
+        columns.load(rows[i], node);
+        // workers cannot look nodes up outside the transaction's thread, register their handles now
+        if (pool != null && columns.getVoteAccumulator(rows[i]) != VoteAccumulator.DEFAULT) handle(i);
+    }
+
+    // CSR index of the node's owner, NO_OWNER if it is not loaded
+    private int owner(Node node) {
+        int index = LongIntMap.MISSING;
+        if (node.getDegree(IHDNRelTypes.CONTAINS, Direction.INCOMING) < 2) {
+            for (Relationship rel : node.getRelationships(IHDNRelTypes.CONTAINS, Direction.INCOMING))
+                index = ordinals.get(rel.getStartNode().getId());
+        } else {
+            IHDNNode owner = handle(node).getOwner();
+            if (owner != null) index = ordinals.get(owner.getId());
+        }
+        return index == LongIntMap.MISSING ? NO_OWNER : index;
+    }
+
+    private int add(List<Node> nodes, Node node) {
+        int ordinal = nodes.size();
+        ordinals.put(node.getId(), ordinal);
+        nodes.add(node);
+        return ordinal;
+    }
+
+    // post-order subtree sizes, shared subtrees count once under each parent
+    private int[] subtreeSizes() {
+        int[] sizes = new int[nodeCount];
+        BitSet done = new BitSet(nodeCount);
+        int[] stack = new int[16];
+        for (int root : roots) {
+            int top = 0;
+            stack[top++] = root;
+            while (top > 0) {
+                int node = stack[top - 1];
+                if (done.get(node)) {
+                    top--;
+                    continue;
+                }
+                boolean ready = true;
+                for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++) {
+                    if (done.get(children[c])) continue;
+                    ready = false;
+                    if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = children[c];
+                }
+                if (!ready) continue;
+                long size = 1;
+                for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++) size += sizes[children[c]];
+                sizes[node] = (int) Math.min(Integer.MAX_VALUE, size);
+                done.set(node);
+                top--;
+            }
+        }
+        return sizes;
+    }
+
+    // nodes visited
+    long computeRoots(double[] rootFilter) {
+        Arrays.fill(selected, NOT_EVALUATED);
+        long start = visited.sum();
+        long[] sizes = new long[roots.length];
+        // traversal events time evaluation, and are committed once functions are applied
+        for (int r = 0; r < roots.length; r++) {
+            traversalEvents[r] = IHDNEvents.beginTraversal(handle(roots[r]));
+            long before = visited.sum();
+            if (pool == null) evaluate(roots[r], rootFilter, 0, scratch, true);
+            else pool.invoke(new SubtreeTask(roots[r], rootFilter, true));
+            sizes[r] = visited.sum() - before;
+            IHDNEvents.stop(traversalEvents[r]);
+        }
+        for (int r = 0; r < roots.length; r++) {
+            applyFunctions(roots[r]);
+            IHDNEvents.endTraversal(traversalEvents[r], sizes[r]);
+            traversalEvents[r] = null;
+        }
+        return visited.sum() - start;
+    }
+
+    // votes and function selection, no functions applied; the vote is left in scratch.vote(depth), false if the
+    // node is inactive. Only primary arrivals select a function and use the vote cache.
+    private boolean evaluate(int node, double[] parentFilter, int depth, VoteScratch scratch, boolean primary) {
+        if (!active.get(node)) {
+            if (metrics != null) metrics.nodeSkippedInactive();
+            return false;
+        }
+        if (metrics != null) metrics.nodeVisited();
+        visited.increment();
+
+        // combine filter
+        double[] combinedFilter = scratch.filter(depth);
+        columns.combineFilter(rows[node], parentFilter, combinedFilter);
+        double[] vote = scratch.vote(depth);
+
+        // no function can fire below, and nothing under the node changed
+        if (primary && VoteCache.isZero(combinedFilter) && voteCache.copyTo(rows[node], vote)) {
+            selected[node] = NO_FUNCTION;
+            return true;
+        }
+
+        // fork large child subtrees, their tasks take scratch of their own
+        int first = childOffsets[node];
+        int degree = childOffsets[node + 1] - first;
+        SubtreeTask[] tasks = null;
+        if (pool != null) {
+            for (int c = 0; c < degree; c++) {
+                int child = children[first + c];
+                if (deleted.get(child) || subtreeSizes[child] < parallelThreshold) continue;
+                if (tasks == null) tasks = new SubtreeTask[degree];
+                tasks[c] = new SubtreeTask(child, combinedFilter, primary && owners[child] == node);
+                tasks[c].fork();
+            }
+        }
+
+        // child votes pushed in child order, so parallel and sequential votes are the same
+        VoteAccumulator accumulator = columns.getVoteAccumulator(rows[node]);
+        boolean isDefault = accumulator == VoteAccumulator.DEFAULT;
+        long voteStart = metrics != null ? System.nanoTime() : 0, childNanos = 0;
+        Arrays.fill(vote, 0);
+        if (isDefault) columns.addVote(rows[node], vote);
+        else accumulator.begin(ihdn, handle(node), vote);
+        boolean keep = primary && isDefault;
+        for (int c = 0; c < degree; c++) {
+            int child = children[first + c];
+            if (deleted.get(child)) continue;
+            boolean owned = owners[child] == node;
+            long childStart = metrics != null ? System.nanoTime() : 0;
+            double[] childVote;
+            if (tasks != null && tasks[c] != null) childVote = tasks[c].join();
+            else childVote = evaluate(child, combinedFilter, depth + 1, scratch, primary && owned)
+                    ? scratch.vote(depth + 1) : null;
+            if (metrics != null) childNanos += System.nanoTime() - childStart;
+            if (childVote != null) {
+                if (isDefault)
+                    for (int i = 0; i < numFunctions; i++) vote[i] += childVote[i];
+                else accumulator.accept(vote, childVote);
+            }
+            // kept votes of children reached through another parent may be written concurrently
+            if (keep && active.get(child) && (!owned || !voteCache.contains(rows[child]))) keep = false;
+        }
+        if (!isDefault) accumulator.finish(ihdn, handle(node), vote);
+        if (metrics != null) metrics.voteComputed(System.nanoTime() - voteStart - childNanos);
+        if (keep) voteCache.put(rows[node], vote);
+
+        if (!primary) return true;
+        for (int i = 0; i < numFunctions; i++)
+            combinedFilter[i] *= vote[i];
+
+        // draws depend only on (seed, iteration, node key), so any thread may select
+        selected[node] = ihdn.selectFunction(combinedFilter, keys[node]);
+
+        return true;
+    }
+
+    // functions in post-order of the primary arrivals, on the transaction's thread
+    private void applyFunctions(int node) {
+        if (selected[node] == NOT_EVALUATED) return;
+
+        for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++)
+            if (owners[children[c]] == node) applyFunctions(children[c]);
+
+        // a function on an earlier node may have removed this one, or made it inactive
+        if (!active.get(node)) return;
+
+        int function = selected[node];
+        if (function == NO_FUNCTION) {
+            if (log.isDebugEnabled()) log.debug("No function to perform for node {}.", nodeIds[node]);
+        } else {
+            ihdn.applyFunction(function, path, ownerPath(node));
+        }
+    }
+
+    // the node and the owners it is reached through are left in path, writes to shared nodes on it copy along
+    // (see IHDNNode.cowClone()); returns its length
+    private int ownerPath(int node) {
+        int length = 0;
+        for (int n = node; n != NO_OWNER && !deleted.get(n); n = owners[n]) {
+            if (length == path.length) path = Arrays.copyOf(path, length * 2);
+            path[length++] = handle(n);
+        }
+        return length;
+    }
+
+    private final class SubtreeTask extends RecursiveTask<double[]> {
+
+        private final int node;
+        private final double[] parentFilter;
+        private final boolean primary;
+
+        SubtreeTask(int node, double[] parentFilter, boolean primary) {
+            this.node = node;
+            this.parentFilter = parentFilter;
+            this.primary = primary;
+        }
+
+        // the scratch goes back to the worker on return, so the vote is copied out
+        @Override
+        protected double[] compute() {
+            Thread thread = Thread.currentThread();
+            if (!(thread instanceof Worker)) {
+                // invoke() may run the task on the calling thread
+                VoteScratch taskScratch = new VoteScratch(numFunctions);
+                return evaluate(node, parentFilter, 0, taskScratch, primary) ? taskScratch.vote(0) : null;
+            }
+            Worker worker = (Worker) thread;
+            VoteScratch taskScratch = worker.acquire(numFunctions);
+            try {
+                return evaluate(node, parentFilter, 0, taskScratch, primary) ? taskScratch.vote(0).clone() : null;
+            } finally {
+                worker.release();
+            }
+        }
+    }
+
+    // Scratch kept by each pool thread across tasks. A worker waiting on a join may run other tasks meanwhile,
+    // each taking the next scratch on the worker's stack, so nested tasks never share one.
+    private static final class Worker extends ForkJoinWorkerThread {
+
+        private final List<VoteScratch> scratch = new ArrayList<>();
+        private int inUse;
+
+        Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        VoteScratch acquire(int numFunctions) {
+            if (inUse == scratch.size()) scratch.add(new VoteScratch(numFunctions));
+            return scratch.get(inUse++);
+        }
+
+        void release() {
+            inUse--;
+        }
+    }
+
+    private IHDNNode handle(int node) {
+        return ihdn.handle(nodeIds[node]);
+    }
+
+    private IHDNNode handle(Node node) {
+        return ihdn.handle(node);
+    }
+
+    void release() {
+        loaded = false;
+        columns = null;
+        voteCache = null;
+    }
+
+    // with the IHDN, see IHDN.shutdown()
+    void close() {
+        if (pool != null) pool.shutdown();
+    }
+
+    private int loadedOrdinal(long nodeId) {
+        return loaded ? ordinals.get(nodeId) : LongIntMap.MISSING;
+    }
+
+    void setActive(long nodeId, boolean isActive) {
+        int node = loadedOrdinal(nodeId);
+        if (node == LongIntMap.MISSING) return;
+        if (isActive) {
+            // its row may have been given back, or never assigned
+            Node n = ihdn.getDB().getNodeById(nodeId);
+            rows[node] = ihdn.getActiveIndex().ordinal(n);
+            columns.load(rows[node], n);
+        }
+        active.set(node, isActive);
+    }
+
+    // the id is forgotten, Neo4j may hand it out again
+    void setDeleted(long nodeId) {
+        int node = loadedOrdinal(nodeId);
+        if (node == LongIntMap.MISSING) return;
+        deleted.set(node);
+        active.clear(node);
+        ordinals.remove(nodeId);
+        deletedCount++;
+    }
+
+    // a CONTAINS relationship was created or deleted
+    void childrenChanged(long parentId, long childId) {
+        int parent = loadedOrdinal(parentId), child = loadedOrdinal(childId);
+        if (parent != LongIntMap.MISSING) childrenChanged.set(parent);
+        if (child != LongIntMap.MISSING) parentsChanged.set(child);
+    }
+
+    // ROOT labels changed, or the store was written around IHDNNode
+    void invalidate() {
+        reloadNeeded = true;
+    }
+}
@@ -0,0 +1,291 @@
+package ihdn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Append-only log of ancestry events: which node a node came from, how, when, and a signature of its state
+ * (e.g. a genome) at that point.
+ * <p>
+ * Records are held in primitive columns and, when the log has a file, appended to it through a memory-mapped
+ * region at every commit, so it can be read back with {@link #read(File)} after the run. Each node has one parent,
+ * its latest record; ancestry and path queries follow parent links through the log without touching the graph, and
+ * {@link #collapsedPathCounts(long[])} does so for many nodes in time linear in the size of the log.
+ * <p>
+ * Nodes are identified by their stable key ({@link IHDNNode#getKey()}), not their Neo4j id, which the store hands
+ * out again once a node is deleted or compacted away.
+ */
+public final class LineageLog {
+
+    // event of a node with no parent, other event types are the caller's
+    public static final byte ORIGIN = 0;
+    public static final long NO_PARENT = -1;
+
+    // child, parent, signature, iteration, event, padding
+    private static final int RECORD_BYTES = 32;
+    private static final int PADDING = 3;
+
+    private long[] children = new long[16];
+    private long[] parents = new long[16];
+    private long[] signatures = new long[16];
+    private int[] iterations = new int[16];
+    private byte[] events = new byte[16];
+    private int size;
+
+    // latest record of each node
+    private final LongIntMap records = new LongIntMap();
+
+    private final File file;
+    private int flushed;
+
+    public LineageLog() {
+        this(null);
+    }
+
+    // appended to the file at every flush, which truncates it first
+    LineageLog(File file) {
+        this(file, 0);
+    }
+
+    // appended to the file after its first records, read back in, as when resuming from a checkpoint
+    LineageLog(File file, int records) {
+        this.file = file;
+        if (file != null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long length = (long) records * RECORD_BYTES;
+                if (channel.size() < length)
+                    throw new RuntimeException("Lineage log " + file + " is shorter than the checkpoint.");
+                // records after the checkpoint are written again
+                channel.truncate(length);
+                if (length > 0) read(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+                channel.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot create lineage log " + file + ".", e);
+            }
+            flushed = size;
+        }
+    }
+
+    // by node key
+    public void record(long child, long parent, byte event, int iteration, long signature) {
+        if (size == children.length) grow();
+        children[size] = child;
+        parents[size] = parent;
+        signatures[size] = signature;
+        iterations[size] = iteration;
+        events[size] = event;
+        records.put(child, size);
+        size++;
+    }
+
+    public void recordOrigin(long node, int iteration, long signature) {
+        record(node, NO_PARENT, ORIGIN, iteration, signature);
+    }
+
+    private void grow() {
+        int capacity = children.length * 2;
+        children = Arrays.copyOf(children, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        signatures = Arrays.copyOf(signatures, capacity);
+        iterations = Arrays.copyOf(iterations, capacity);
+        events = Arrays.copyOf(events, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long node) {
+        return records.containsKey(node);
+    }
+
+    public long getParent(long node) {
+        return parents[record(node)];
+    }
+
+    public long getSignature(long node) {
+        return signatures[record(node)];
+    }
+
+    public byte getEvent(long node) {
+        return events[record(node)];
+    }
+
+    public int getIteration(long node) {
+        return iterations[record(node)];
+    }
+
+    private int record(long node) {
+        int record = records.get(node);
+        if (record == LongIntMap.MISSING) throw new RuntimeException("Node " + node + " is not in the lineage log.");
+        return record;
+    }
+
+    // the node, its parent, and so on up to a node with no recorded parent
+    public long[] ancestry(long node) {
+        long[] ancestry = new long[8];
+        int length = 0;
+        for (int record = record(node); ; ) {
+            if (length == size) throw new RuntimeException("Cycle in lineage log at node " + node + ".");
+            if (length == ancestry.length) ancestry = Arrays.copyOf(ancestry, length * 2);
+            ancestry[length++] = children[record];
+            record = parentRecord(record);
+            if (record == LongIntMap.MISSING) break;
+        }
+        return Arrays.copyOf(ancestry, length);
+    }
+
+    // signatures along the ancestry, node first, with repeats of the same signature collapsed
+    public long[] collapsedPath(long node) {
+        long[] ancestry = ancestry(node);
+        long[] path = new long[ancestry.length];
+        int length = 0;
+        for (long ancestor : ancestry) {
+            long signature = signatures[records.get(ancestor)];
+            if (length == 0 || path[length - 1] != signature) path[length++] = signature;
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /**
+     * Number of the given nodes sharing each collapsed path (see {@link #collapsedPath(long)}). Paths are interned
+     * as a tree over the whole log, each record visited once, so equal paths are found without comparing them.
+     */
+    public Map<List<Long>, Long> collapsedPathCounts(long[] nodes) {
+        // interned path of each record: its last signature and the path before it
+        int[] pathOf = new int[size];
+        Arrays.fill(pathOf, -1);
+        long[] pathSignatures = new long[Math.max(1, size)];
+        int[] pathPrefixes = new int[Math.max(1, size)];
+        Map<PathKey, Integer> interned = new HashMap<>();
+        int paths = 0;
+
+        int[] stack = new int[16];
+        for (int i = 0; i < size; i++) {
+            // walk up to a record whose path is known, then intern on the way back down
+            int top = 0;
+            for (int record = i; record != LongIntMap.MISSING && pathOf[record] < 0; record = parentRecord(record)) {
+                if (top == size) throw new RuntimeException("Cycle in lineage log at node " + children[record] + ".");
+                if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = record;
+            }
+            while (top > 0) {
+                int record = stack[--top];
+                int parent = parentRecord(record);
+                int prefix = parent == LongIntMap.MISSING ? -1 : pathOf[parent];
+                if (prefix >= 0 && pathSignatures[prefix] == signatures[record]) {
+                    pathOf[record] = prefix;
+                    continue;
+                }
+                PathKey key = new PathKey(prefix, signatures[record]);
+                Integer path = interned.get(key);
+                if (path == null) {
+                    path = paths++;
+                    interned.put(key, path);
+                    pathPrefixes[path] = prefix;
+                    pathSignatures[path] = signatures[record];
+                }
+                pathOf[record] = path;
+            }
+        }
+
+        Map<Integer, Long> counts = new LinkedHashMap<>();
+        for (long node : nodes) counts.merge(pathOf[record(node)], 1L, Long::sum);
+
+        Map<List<Long>, Long> pathCounts = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+            List<Long> path = new ArrayList<>();
+            for (int p = entry.getKey(); p >= 0; p = pathPrefixes[p]) path.add(pathSignatures[p]);
+            pathCounts.put(Collections.unmodifiableList(path), entry.getValue());
+        }
+        return pathCounts;
+    }
+
+    private static final class PathKey {
+
+        private final int prefix;
+        private final long signature;
+
+        PathKey(int prefix, long signature) {
+            this.prefix = prefix;
+            this.signature = signature;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) return false;
+            PathKey key = (PathKey) o;
+            return prefix == key.prefix && signature == key.signature;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * prefix + Long.hashCode(signature);
+        }
+    }
+
+    private int parentRecord(int record) {
+        return parents[record] == NO_PARENT ? LongIntMap.MISSING : records.get(parents[record]);
+    }
+
+    // records since the last flush dropped, their transaction rolled back
+    void discard() {
+        if (flushed == size) return;
+        size = flushed;
+        records.clear();
+        for (int i = 0; i < size; i++) records.put(children[i], i);
+    }
+
+    // append records since the last flush to the file, if any
+    void flush() {
+        if (file == null || flushed == size) return;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = (long) flushed * RECORD_BYTES;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                    (long) (size - flushed) * RECORD_BYTES);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = flushed; i < size; i++) {
+                buffer.putLong(children[i]);
+                buffer.putLong(parents[i]);
+                buffer.putLong(signatures[i]);
+                buffer.putInt(iterations[i]);
+                buffer.put(events[i]);
+                // mapped beyond the old end of the file, so already zero
+                buffer.position(buffer.position() + PADDING);
+            }
+            buffer.force();
+            flushed = size;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write lineage log " + file + ".", e);
+        }
+    }
+
+    public static LineageLog read(File file) {
+        LineageLog log = new LineageLog();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            log.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read lineage log " + file + ".", e);
+        }
+        return log;
+    }
+
+    private void read(MappedByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= RECORD_BYTES) {
+            long child = buffer.getLong();
+            long parent = buffer.getLong();
+            long signature = buffer.getLong();
+            int iteration = buffer.getInt();
+            byte event = buffer.get();
+            buffer.position(buffer.position() + PADDING);
+            record(child, parent, event, iteration, signature);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ihdn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends an {@link IHDNMetrics} snapshot to a file at a fixed period, on a background thread, and once more
+ * when closed. CSV gets a header naming each function's columns; JSON gets one object per line.
+ */
+final class MetricsReporter implements AutoCloseable {
+
+    private final static Logger log = LoggerFactory.getLogger(MetricsReporter.class);
+
+    enum Format {CSV, JSON}
+
+    private final IHDNMetrics metrics;
+    private final Format format;
+    private final BufferedWriter out;
+    private final ScheduledExecutorService executor;
+    private boolean headerWritten;
+
+    MetricsReporter(IHDNMetrics metrics, File file, Format format, long periodMillis) {
+        this.metrics = metrics;
+        this.format = format;
+        try {
+            this.out = new BufferedWriter(new FileWriter(file, false));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open metrics file " + file + ".", e);
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ihdn-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::report, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // a failed write is logged, the run carries on
+    synchronized void report() {
+        IHDNMetrics.Snapshot snapshot = metrics.snapshot();
+        try {
+            if (format == Format.JSON) {
+                out.write(json(snapshot));
+            } else {
+                if (!headerWritten) {
+                    out.write(csvHeader(snapshot));
+                    headerWritten = true;
+                }
+                out.write(csvRow(snapshot));
+            }
+            out.newLine();
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Could not write metrics.", e);
+        }
+    }
+
+    static String csvHeader(IHDNMetrics.Snapshot snapshot) {
+        StringBuilder header = new StringBuilder("timeMillis,iteration,nodesVisited,nodesSkippedInactive,"
+                + "nodesCreated,nodesDeleted,lastIterationCreated,lastIterationDeleted");
+        appendHeader(header, "iteration");
+        appendHeader(header, "vote");
+        appendHeader(header, "commit");
+        for (String function : snapshot.getFunctionLatency().keySet()) appendHeader(header, function);
+        return header.toString();
+    }
+
+    private static void appendHeader(StringBuilder header, String name) {
+        header.append(',').append(name).append("Count,")
+                .append(name).append("MeanNanos,")
+                .append(name).append("P99Nanos");
+    }
+
+    static String csvRow(IHDNMetrics.Snapshot snapshot) {
+        StringBuilder row = new StringBuilder()
+                .append(snapshot.getTimeMillis()).append(',')
+                .append(snapshot.getIteration()).append(',')
+                .append(snapshot.getNodesVisited()).append(',')
+                .append(snapshot.getNodesSkippedInactive()).append(',')
+                .append(snapshot.getNodesCreated()).append(',')
+                .append(snapshot.getNodesDeleted()).append(',')
+                .append(snapshot.getLastIterationCreated()).append(',')
+                .append(snapshot.getLastIterationDeleted());
+        appendRow(row, snapshot.getIterationLatency());
+        appendRow(row, snapshot.getVoteLatency());
+        appendRow(row, snapshot.getCommitLatency());
+        for (IHDNMetrics.Histogram histogram : snapshot.getFunctionLatency().values()) appendRow(row, histogram);
+        return row.toString();
+    }
+
+    private static void appendRow(StringBuilder row, IHDNMetrics.Histogram histogram) {
+        row.append(',').append(histogram.getCount())
+                .append(',').append(String.format(Locale.ROOT, "%.1f", histogram.getMeanNanos()))
+                .append(',').append(histogram.getPercentileNanos(0.99));
+    }
+
+    static String json(IHDNMetrics.Snapshot snapshot) {
+        StringBuilder json = new StringBuilder("{")
+                .append("\"timeMillis\":").append(snapshot.getTimeMillis())
+                .append(",\"iteration\":").append(snapshot.getIteration())
+                .append(",\"nodesVisited\":").append(snapshot.getNodesVisited())
+                .append(",\"nodesSkippedInactive\":").append(snapshot.getNodesSkippedInactive())
+                .append(",\"nodesCreated\":").append(snapshot.getNodesCreated())
+                .append(",\"nodesDeleted\":").append(snapshot.getNodesDeleted())
+                .append(",\"lastIterationCreated\":").append(snapshot.getLastIterationCreated())
+                .append(",\"lastIterationDeleted\":").append(snapshot.getLastIterationDeleted());
+        json.append(",\"iterationLatency\":");
+        appendJson(json, snapshot.getIterationLatency());
+        json.append(",\"voteLatency\":");
+        appendJson(json, snapshot.getVoteLatency());
+        json.append(",\"commitLatency\":");
+        appendJson(json, snapshot.getCommitLatency());
+        json.append(",\"functionLatency\":{");
+        boolean first = true;
+        for (Map.Entry<String, IHDNMetrics.Histogram> function : snapshot.getFunctionLatency().entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            json.append('"').append(function.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":");
+            appendJson(json, function.getValue());
+        }
+        return json.append("}}").toString();
+    }
+
+    private static void appendJson(StringBuilder json, IHDNMetrics.Histogram histogram) {
+        json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"meanNanos\":").append(String.format(Locale.ROOT, "%.1f", histogram.getMeanNanos()))
+                .append(",\"p50Nanos\":").append(histogram.getPercentileNanos(0.5))
+                .append(",\"p99Nanos\":").append(histogram.getPercentileNanos(0.99))
+                .append(",\"maxNanos\":").append(histogram.getPercentileNanos(1))
+                .append('}');
+    }
+
+    // writes a last report
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.warn("Could not close metrics file.", e);
+        }
+    }
+}
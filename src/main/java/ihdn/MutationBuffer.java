@@ -0,0 +1,123 @@
+package ihdn;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Structural mutations requested by functions.
+ * <p>
+ * With {@link IHDN.IHDNBuilder#withDeferredMutations()} the mutations are recorded and applied in one pass after
+ * each iteration of computeAll, so the hierarchy does not change under the traversal. Otherwise they are applied
+ * straight away. Recorded mutations are applied in the order they were recorded, which is the deterministic order
+ * functions are applied in; a mutation whose node has been deleted by an earlier one is skipped, and of two
+ * writes to the same property the later wins. Mutations recorded from a {@code then} callback during the pass
+ * are applied immediately.
+ */
+public class MutationBuffer {
+
+    private final static Logger log = LoggerFactory.getLogger(MutationBuffer.class);
+
+    private final IHDN ihdn;
+    private final boolean deferred;
+    private final List<Command> commands = new ArrayList<>();
+    private boolean applying;
+
+    private static final class Command {
+        private final IHDNNode target;
+        private final Consumer<IHDNNode> action;
+        // the path of the function that recorded it, so its writes copy on write as they would have then
+        private final IHDNNode[] path;
+
+        private Command(IHDNNode target, Consumer<IHDNNode> action, IHDNNode[] path) {
+            this.target = target;
+            this.action = action;
+            this.path = path;
+        }
+    }
+
+    MutationBuffer(IHDN ihdn, boolean deferred) {
+        this.ihdn = ihdn;
+        this.deferred = deferred;
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    private void record(IHDNNode target, Consumer<IHDNNode> action) {
+        if (deferred && !applying) commands.add(new Command(target, action, ihdn.copyPath()));
+        else if (!target.isDeleted()) action.accept(target);
+    }
+
+    public void deepClone(IHDNNode ihdnNode, Consumer<IHDNNode> then) {
+        record(ihdnNode, node -> then.accept(node.deepClone()));
+    }
+
+    public void shallowClone(IHDNNode ihdnNode, Consumer<IHDNNode> then) {
+        record(ihdnNode, node -> then.accept(node.shallowClone()));
+    }
+
+    public void moveChild(IHDNNode child, IHDNNode from, IHDNNode to) {
+        record(child, node -> {
+            if (!from.isDeleted() && !to.isDeleted()) from.moveChild(node, to);
+        });
+    }
+
+    public void createRelationship(IHDNNode from, IHDNNode to, RelationshipType type) {
+        record(from, node -> {
+            if (!to.isDeleted()) node.createRelationshipTo(to, type);
+        });
+    }
+
+    public void addLabel(IHDNNode ihdnNode, Label label) {
+        record(ihdnNode, node -> node.addLabel(label));
+    }
+
+    public void removeLabel(IHDNNode ihdnNode, Label label) {
+        record(ihdnNode, node -> node.removeLabel(label));
+    }
+
+    public void setProperty(IHDNNode ihdnNode, String key, Object value) {
+        record(ihdnNode, node -> node.setProperty(key, value));
+    }
+
+    public void setInactive(IHDNNode ihdnNode) {
+        record(ihdnNode, IHDNNode::setInactive);
+    }
+
+    public void delete(IHDNNode ihdnNode) {
+        record(ihdnNode, IHDNNode::delete);
+    }
+
+    public void recursiveDelete(IHDNNode ihdnNode) {
+        record(ihdnNode, IHDNNode::recursiveDelete);
+    }
+
+    // any other mutation of the node
+    public void then(IHDNNode ihdnNode, Consumer<IHDNNode> action) {
+        record(ihdnNode, action);
+    }
+
+    void apply() {
+        if (commands.isEmpty()) return;
+
+        applying = true;
+        int skipped = 0;
+        try {
+            for (Command command : commands) {
+                if (command.target.isDeleted()) skipped++;
+                else ihdn.applyOnPath(command.path, () -> command.action.accept(command.target));
+            }
+        } finally {
+            applying = false;
+        }
+        log.debug("Applied {} mutations, skipped {} on deleted nodes.", commands.size() - skipped, skipped);
+        commands.clear();
+    }
+}
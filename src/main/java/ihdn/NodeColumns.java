@@ -0,0 +1,155 @@
+package ihdn;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Columnar write-back store of FILTER, VOTE and the resolved vote function, indexed by node ordinal and live
+ * for one computeAll run.
+ * <p>
+ * Filters and votes of all nodes sit in two {@code nodes * numFunctions} matrices, optionally off-heap; on the
+ * heap rows are read without a copy (see {@link NodeMatrix}). A row is decoded from the store the first time its
+ * node is read. Writes through {@link IHDNNode} are kept here and only changed rows are flushed, at each
+ * transaction boundary. Writes made around IHDNNode are not seen; {@link IHDN#execute(String)} flushes held
+ * writes before running a query and drops every row after one that may write, as does a rolled back transaction.
+ */
+class NodeColumns {
+
+    private final static Logger log = LoggerFactory.getLogger(NodeColumns.class);
+
+    private final IHDN ihdn;
+    private final int numFunctions;
+
+    private final NodeMatrix filters;
+    private final NodeMatrix votes;
+    private VoteAccumulator[] voteAccumulators = new VoteAccumulator[16];
+    private final BitSet loaded = new BitSet();
+    private final BitSet dirtyFilters = new BitSet();
+    private final BitSet dirtyVotes = new BitSet();
+
+    NodeColumns(IHDN ihdn, boolean offHeap) {
+        this.ihdn = ihdn;
+        this.numFunctions = ihdn.getNumFunctions();
+        this.filters = new NodeMatrix(numFunctions, offHeap);
+        this.votes = new NodeMatrix(numFunctions, offHeap);
+    }
+
+    // decode the node's row on first use
+    void load(int row, Node node) {
+        if (loaded.get(row)) return;
+
+        filters.ensureRows(row + 1);
+        votes.ensureRows(row + 1);
+        if (row >= voteAccumulators.length)
+            voteAccumulators = Arrays.copyOf(voteAccumulators, Math.max(row + 1, voteAccumulators.length * 2));
+
+        // missing filters and votes are the defaults
+        Object filter = node.getProperty(Properties.FILTER, null);
+        if (filter == null) filters.fillRow(row, 1.0);
+        else filters.setRow(row, (double[]) filter);
+
+        Object vote = node.getProperty(Properties.VOTE, null);
+        if (vote == null) votes.fillRow(row, 0.0);
+        else votes.setRow(row, (double[]) vote);
+
+        voteAccumulators[row] =
+                ihdn.resolveVoteAccumulator((String) node.getProperty(Properties.VOTE_FUNCTION, null));
+        loaded.set(row);
+    }
+
+    // shared unless off-heap, see IHDNNode.getFilter()
+    double[] getFilter(int row) {
+        return filters.getRow(row);
+    }
+
+    double[] getVote(int row) {
+        return votes.getRow(row);
+    }
+
+    VoteAccumulator getVoteAccumulator(int row) {
+        return voteAccumulators[row];
+    }
+
+    // out[i] = parentFilter[i] * filter[i]
+    void combineFilter(int row, double[] parentFilter, double[] out) {
+        filters.multiplyRow(row, parentFilter, out);
+    }
+
+    // acc[i] += vote[i]
+    void addVote(int row, double[] acc) {
+        votes.addRow(row, acc);
+    }
+
+    boolean isDirty(int row, String key) {
+        if (Properties.FILTER.equals(key)) return dirtyFilters.get(row);
+        if (Properties.VOTE.equals(key)) return dirtyVotes.get(row);
+        return false;
+    }
+
+    // true if the write is held for the next flush
+    boolean set(int row, String key, Object value) {
+        if (Properties.FILTER.equals(key)) {
+            filters.setRow(row, (double[]) value);
+            dirtyFilters.set(row);
+            return true;
+        }
+        if (Properties.VOTE.equals(key)) {
+            votes.setRow(row, (double[]) value);
+            dirtyVotes.set(row);
+            return true;
+        }
+        if (Properties.VOTE_FUNCTION.equals(key)) voteAccumulators[row] = ihdn.resolveVoteAccumulator((String) value);
+        return false;
+    }
+
+    // property removed from the store
+    void reset(int row, String key) {
+        if (!loaded.get(row)) return;
+        if (Properties.FILTER.equals(key)) {
+            filters.fillRow(row, 1.0);
+            dirtyFilters.clear(row);
+        } else if (Properties.VOTE.equals(key)) {
+            votes.fillRow(row, 0.0);
+            dirtyVotes.clear(row);
+        } else if (Properties.VOTE_FUNCTION.equals(key)) {
+            voteAccumulators[row] = VoteAccumulator.DEFAULT;
+        }
+    }
+
+    // node deleted, row may be reused for another node
+    void evict(int row) {
+        loaded.clear(row);
+        dirtyFilters.clear(row);
+        dirtyVotes.clear(row);
+    }
+
+    // rows and held writes dropped, rows are decoded again on use
+    void clear() {
+        loaded.clear();
+        dirtyFilters.clear();
+        dirtyVotes.clear();
+    }
+
+    void flush() {
+        GraphDatabaseService db = ihdn.getDB();
+        NodeOrdinals ordinals = ihdn.getOrdinals();
+        for (int row = dirtyFilters.nextSetBit(0); row >= 0; row = dirtyFilters.nextSetBit(row + 1))
+            write(db.getNodeById(ordinals.id(row)), Properties.FILTER, filters.getRow(row));
+        for (int row = dirtyVotes.nextSetBit(0); row >= 0; row = dirtyVotes.nextSetBit(row + 1))
+            write(db.getNodeById(ordinals.id(row)), Properties.VOTE, votes.getRow(row));
+        if (!dirtyFilters.isEmpty() || !dirtyVotes.isEmpty())
+            log.debug("Flushed {} filters and {} votes.", dirtyFilters.cardinality(), dirtyVotes.cardinality());
+        dirtyFilters.clear();
+        dirtyVotes.clear();
+    }
+
+    private void write(Node node, String key, double[] value) {
+        if (ihdn.isSparseDefault(key, value)) node.removeProperty(key);
+        else node.setProperty(key, value);
+    }
+}
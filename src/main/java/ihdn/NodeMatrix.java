@@ -0,0 +1,102 @@
+package ihdn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * {@code double} matrix with one row per node ordinal, on the heap or in a direct buffer. On the heap each row is
+ * an array of its own that writes replace rather than change, so {@link #getRow(int)} hands it out without a
+ * copy; the direct buffer is flat and row-major, and copies rows out.
+ */
+class NodeMatrix {
+
+    private final int columns;
+    private final boolean offHeap;
+    private double[][] heap;
+    private DoubleBuffer direct;
+    private int rows;
+
+    NodeMatrix(int columns, boolean offHeap) {
+        this.columns = columns;
+        this.offHeap = offHeap;
+        allocate(16);
+    }
+
+    private void allocate(int rows) {
+        if (offHeap) {
+            long size = (long) rows * columns;
+            if (size * Double.BYTES > Integer.MAX_VALUE)
+                throw new RuntimeException("Off-heap matrix limited to " + Integer.MAX_VALUE + " bytes.");
+            DoubleBuffer buffer = ByteBuffer.allocateDirect((int) size * Double.BYTES)
+                    .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            if (direct != null) {
+                direct.rewind();
+                buffer.put(direct);
+            }
+            direct = buffer;
+        } else {
+            heap = heap == null ? new double[rows][] : Arrays.copyOf(heap, rows);
+        }
+        this.rows = rows;
+    }
+
+    void ensureRows(int minRows) {
+        if (minRows <= rows) return;
+        int newRows = rows;
+        while (newRows < minRows) newRows *= 2;
+        allocate(newRows);
+    }
+
+    // shared on the heap, read only
+    double[] getRow(int row) {
+        if (!offHeap) return heap[row];
+        double[] out = new double[columns];
+        int base = row * columns;
+        for (int i = 0; i < columns; i++) out[i] = direct.get(base + i);
+        return out;
+    }
+
+    void setRow(int row, double[] values) {
+        if (!offHeap) {
+            heap[row] = Arrays.copyOf(values, columns);
+            return;
+        }
+        int base = row * columns;
+        for (int i = 0; i < columns; i++) direct.put(base + i, values[i]);
+    }
+
+    void fillRow(int row, double value) {
+        if (!offHeap) {
+            double[] values = new double[columns];
+            if (value != 0) Arrays.fill(values, value);
+            heap[row] = values;
+            return;
+        }
+        int base = row * columns;
+        for (int i = 0; i < columns; i++) direct.put(base + i, value);
+    }
+
+    // out[i] = in[i] * row[i]
+    void multiplyRow(int row, double[] in, double[] out) {
+        if (!offHeap) {
+            double[] values = heap[row];
+            for (int i = 0; i < columns; i++) out[i] = in[i] * values[i];
+            return;
+        }
+        int base = row * columns;
+        for (int i = 0; i < columns; i++) out[i] = in[i] * direct.get(base + i);
+    }
+
+    // acc[i] += row[i]
+    void addRow(int row, double[] acc) {
+        if (!offHeap) {
+            double[] values = heap[row];
+            for (int i = 0; i < columns; i++) acc[i] += values[i];
+            return;
+        }
+        int base = row * columns;
+        for (int i = 0; i < columns; i++) acc[i] += direct.get(base + i);
+    }
+}
@@ -0,0 +1,63 @@
+package ihdn;
+
+import java.util.Arrays;
+
+/**
+ * Dense ordinals for node ids. Ordinals of deleted nodes are reused, so columns indexed by ordinal stay compact.
+ */
+class NodeOrdinals {
+
+    private final LongIntMap ordinals = new LongIntMap();
+    private long[] ids = new long[16];
+    private int size;
+    private int[] free = new int[16];
+    private int freeCount;
+
+    // ordinal of the node, assigning one if it has none
+    int ordinal(long nodeId) {
+        int ordinal = ordinals.get(nodeId);
+        if (ordinal != LongIntMap.MISSING) return ordinal;
+
+        if (freeCount > 0) {
+            ordinal = free[--freeCount];
+        } else {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ordinal = size++;
+        }
+        ids[ordinal] = nodeId;
+        ordinals.put(nodeId, ordinal);
+        return ordinal;
+    }
+
+    // ordinal of the node, or LongIntMap.MISSING
+    int get(long nodeId) {
+        return ordinals.get(nodeId);
+    }
+
+    long id(int ordinal) {
+        return ids[ordinal];
+    }
+
+    int release(long nodeId) {
+        int ordinal = ordinals.remove(nodeId);
+        if (ordinal == LongIntMap.MISSING) return ordinal;
+
+        ids[ordinal] = -1;
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = ordinal;
+        return ordinal;
+    }
+
+    // every node forgotten, see IHDN.resync()
+    void clear() {
+        ordinals.clear();
+        Arrays.fill(ids, 0, size, -1);
+        size = 0;
+        freeCount = 0;
+    }
+
+    // upper bound of assigned ordinals
+    int size() {
+        return size;
+    }
+}
@@ -5,4 +5,7 @@ public interface Properties {
     String VOTE = "vote";
     String VOTE_FUNCTION = "voteFunction";
     String TIME_INACTIVE = "timeInactive";
+    String ARCHIVE_ENTRY = "archiveEntry";
+    // assigned by IHDN, see IHDNNode.getKey()
+    String NODE_KEY = "nodeKey";
 }
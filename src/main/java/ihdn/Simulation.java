@@ -1,4 +1,15 @@
 package ihdn;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 public interface Simulation {
+
+    // state kept outside the graph, saved with each checkpoint, see IHDN.checkpoint()
+    default void writeCheckpoint(DataOutput out) throws IOException {
+    }
+
+    default void readCheckpoint(DataInput in) throws IOException {
+    }
 }
@@ -0,0 +1,158 @@
+package ihdn;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generates a random hierarchy under one ROOT: depth levels, children per node drawn from a fan-out distribution,
+ * a level label (LEVEL_0, LEVEL_1, ...) plus any of a mix of labels on each node, filters with a chosen fraction
+ * of zero entries, and random votes on the leaves. The graph depends only on the settings and the seed.
+ * <p>
+ * Levels are generated breadth first, holding one level of node ids at a time, so a {@link #setMaxNodes(long)} cap
+ * leaves the last level short across the whole tree rather than whole subtrees missing; nodes left without
+ * children above the last level are leaves too, and get votes.
+ * <p>
+ * Nodes are written straight to the store, committing every batchSize nodes, so graphs of tens of millions of
+ * nodes can be built; as with a Cypher statement, IHDN's derived state picks them up when first read. Each node
+ * gets its key (see {@link IHDNNode#getKey()}) as it is created, so runs on the graph reproduce.
+ */
+public class SyntheticGraphBuilder implements GraphBuilder {
+
+    @FunctionalInterface
+    public interface FanOut {
+        // children of a node at the given depth, the root being at depth 0
+        int sample(int depth, SplittableRandom random);
+    }
+
+    private int depth = 4;
+    private FanOut fanOut = (depth, random) -> 4;
+    private final Map<Label, Double> labelMix = new LinkedHashMap<>();
+    private double filterSparsity;
+    private long seed;
+    private int batchSize = 50_000;
+    private long maxNodes = Long.MAX_VALUE;
+    private long nodeCount;
+
+    public SyntheticGraphBuilder setDepth(int depth) {
+        if (depth <= 0) throw new RuntimeException("Depth must be positive.");
+        this.depth = depth;
+        return this;
+    }
+
+    public SyntheticGraphBuilder setFanOut(int fanOut) {
+        return setFanOut((depth, random) -> fanOut);
+    }
+
+    // uniform between min and max inclusive
+    public SyntheticGraphBuilder setFanOut(int min, int max) {
+        if (min < 0 || max < min) throw new RuntimeException("Invalid fan-out range.");
+        return setFanOut((depth, random) -> min + random.nextInt(max - min + 1));
+    }
+
+    public SyntheticGraphBuilder setFanOut(FanOut fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    // each node has the label with the given probability
+    public SyntheticGraphBuilder withLabel(Label label, double probability) {
+        this.labelMix.put(label, probability);
+        return this;
+    }
+
+    // fraction of filter entries that are zero, others are uniform in (0, 1]
+    public SyntheticGraphBuilder setFilterSparsity(double filterSparsity) {
+        if (filterSparsity < 0 || filterSparsity > 1) throw new RuntimeException("Sparsity must be in [0, 1].");
+        this.filterSparsity = filterSparsity;
+        return this;
+    }
+
+    public SyntheticGraphBuilder setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    // nodes per transaction
+    public SyntheticGraphBuilder setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    // generation stops once this many nodes exist, leaving the last level short
+    public SyntheticGraphBuilder setMaxNodes(long maxNodes) {
+        this.maxNodes = maxNodes;
+        return this;
+    }
+
+    // nodes created by the last accept()
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public void accept(IHDN ihdn) {
+        GraphDatabaseService db = ihdn.getDB();
+        SplittableRandom random = new SplittableRandom(seed);
+        int functions = ihdn.getNumFunctions();
+
+        Node root = createNode(ihdn, 0, random, functions, IHDNLabels.ROOT);
+        nodeCount = 1;
+        // nodes of the level being given children, those of the last level are created as leaves
+        long[] level = {root.getId()};
+        int width = depth > 1 ? 1 : 0;
+
+        for (int parentDepth = 0; width > 0; parentDepth++) {
+            boolean lastLevel = parentDepth + 2 >= depth;
+            long[] next = new long[lastLevel ? 0 : 16];
+            int nextWidth = 0;
+            for (int p = 0; p < width; p++) {
+                Node parent = db.getNodeById(level[p]);
+                int children = nodeCount < maxNodes ? fanOut.sample(parentDepth, random) : 0;
+                int created = 0;
+                for (; created < children && nodeCount < maxNodes; created++) {
+                    Node child = createNode(ihdn, parentDepth + 1, random, functions);
+                    parent.createRelationshipTo(child, IHDNRelTypes.CONTAINS);
+                    if (++nodeCount % batchSize == 0) ihdn.commit();
+                    if (lastLevel) continue;
+                    if (nextWidth == next.length) next = Arrays.copyOf(next, nextWidth * 2);
+                    next[nextWidth++] = child.getId();
+                }
+                if (created == 0) parent.setProperty(Properties.VOTE, vote(random, functions));
+            }
+            level = next;
+            width = nextWidth;
+        }
+    }
+
+    private Node createNode(IHDN ihdn, int level, SplittableRandom random, int functions, Label... extra) {
+        List<Label> labels = new ArrayList<>(Arrays.asList(extra));
+        labels.add(Label.label("LEVEL_" + level));
+        for (Map.Entry<Label, Double> entry : labelMix.entrySet())
+            if (random.nextDouble() < entry.getValue()) labels.add(entry.getKey());
+        Node node = ihdn.getDB().createNode(labels.toArray(new Label[0]));
+        node.setProperty(Properties.NODE_KEY, ihdn.newKey());
+
+        if (filterSparsity > 0) {
+            double[] filter = new double[functions];
+            for (int i = 0; i < functions; i++)
+                filter[i] = random.nextDouble() < filterSparsity ? 0 : 1 - random.nextDouble();
+            node.setProperty(Properties.FILTER, filter);
+        }
+        if (level == depth - 1) node.setProperty(Properties.VOTE, vote(random, functions));
+        return node;
+    }
+
+    private static double[] vote(SplittableRandom random, int functions) {
+        double[] vote = new double[functions];
+        for (int i = 0; i < functions; i++) vote[i] = random.nextDouble();
+        return vote;
+    }
+}
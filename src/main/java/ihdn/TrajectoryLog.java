@@ -0,0 +1,273 @@
+package ihdn;
+
+import org.neo4j.graphdb.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only binary log of a computeAll run: a dump of the graph at the start, then every node, label, property
+ * and relationship change made through {@link IHDNNode}, every function application with its selection draw, and
+ * a marker at the end of each iteration.
+ * <p>
+ * Events are written to memory-mapped regions of the file and forced to disk at every commit. Label, key and type
+ * names are written once and referred to by index after that, and again after a run resumes from a checkpoint,
+ * which appends to the log from where the checkpoint was taken. Nodes are identified by their key (see
+ * {@link IHDNNode#getKey()}), which a checkpoint keeps. {@link #replay(File, int)} rebuilds the graph as it was at
+ * the end of any iteration, without a store. As with the other derived state, writes made around IHDNNode are not
+ * seen.
+ */
+public final class TrajectoryLog implements AutoCloseable {
+
+    private static final long MAGIC = 0x4948444E54524A31L; // IHDNTRJ1
+    private static final int REGION_BYTES = 4 << 20;
+
+    // event types
+    static final byte NAME = 1;
+    static final byte CREATE_NODE = 2;
+    static final byte DELETE_NODE = 3;
+    static final byte ADD_LABEL = 4;
+    static final byte REMOVE_LABEL = 5;
+    static final byte SET_PROPERTY = 6;
+    static final byte REMOVE_PROPERTY = 7;
+    static final byte CREATE_RELATIONSHIP = 8;
+    static final byte DELETE_RELATIONSHIP = 9;
+    static final byte FUNCTION = 10;
+    static final byte ITERATION = 11;
+
+    private final File file;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private final Map<String, Integer> names = new HashMap<>();
+
+    TrajectoryLog(File file) {
+        this(file, 0);
+    }
+
+    // appended to after its first length bytes, as when resuming from a checkpoint, or a new log if 0
+    TrajectoryLog(File file, long length) {
+        this.file = file;
+        try {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (channel.size() < length)
+                throw new RuntimeException("Trajectory log " + file + " is shorter than the checkpoint.");
+            // events after the checkpoint are written again
+            channel.truncate(length);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create trajectory log " + file + ".", e);
+        }
+        regionStart = length;
+        if (length > 0) return;
+        ensure(8);
+        region.putLong(MAGIC);
+    }
+
+    // the graph as it is before the first iteration
+    void dump(IHDN ihdn) {
+        try (ResourceIterator<Node> nodes = ihdn.getDB().getAllNodes().iterator()) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                long key = ihdn.handle(node).getKey();
+                nodeCreated(key, new Label[0]);
+                for (Label label : node.getLabels()) labelAdded(key, label);
+                for (Map.Entry<String, Object> property : node.getAllProperties().entrySet())
+                    propertySet(key, property.getKey(), property.getValue());
+            }
+        }
+        try (ResourceIterator<Relationship> relationships = ihdn.getDB().getAllRelationships().iterator()) {
+            while (relationships.hasNext()) {
+                Relationship rel = relationships.next();
+                relationshipCreated(ihdn.handle(rel.getStartNode()).getKey(), ihdn.handle(rel.getEndNode()).getKey(),
+                        rel.getType());
+            }
+        }
+        iterationEnd(0);
+    }
+
+    // bytes written so far
+    long length() {
+        return region == null ? regionStart : regionStart + region.position();
+    }
+
+    void nodeCreated(long node, Label[] labels) {
+        ensure(1 + 8);
+        region.put(CREATE_NODE).putLong(node);
+        for (Label label : labels) labelAdded(node, label);
+    }
+
+    void nodeDeleted(long node) {
+        ensure(1 + 8);
+        region.put(DELETE_NODE).putLong(node);
+    }
+
+    void labelAdded(long node, Label label) {
+        int name = name(label.name());
+        ensure(1 + 8 + 4);
+        region.put(ADD_LABEL).putLong(node).putInt(name);
+    }
+
+    void labelRemoved(long node, Label label) {
+        int name = name(label.name());
+        ensure(1 + 8 + 4);
+        region.put(REMOVE_LABEL).putLong(node).putInt(name);
+    }
+
+    void propertySet(long node, String key, Object value) {
+        int name = name(key);
+        ensure(1 + 8 + 4 + ValueCodec.size(value));
+        region.put(SET_PROPERTY).putLong(node).putInt(name);
+        ValueCodec.write(region, value);
+    }
+
+    void propertyRemoved(long node, String key) {
+        int name = name(key);
+        ensure(1 + 8 + 4);
+        region.put(REMOVE_PROPERTY).putLong(node).putInt(name);
+    }
+
+    void relationshipCreated(long start, long end, RelationshipType type) {
+        int name = name(type.name());
+        ensure(1 + 8 + 8 + 4);
+        region.put(CREATE_RELATIONSHIP).putLong(start).putLong(end).putInt(name);
+    }
+
+    void relationshipDeleted(long start, long end, RelationshipType type) {
+        int name = name(type.name());
+        ensure(1 + 8 + 8 + 4);
+        region.put(DELETE_RELATIONSHIP).putLong(start).putLong(end).putInt(name);
+    }
+
+    void functionApplied(int iteration, long node, int function, double draw) {
+        ensure(1 + 4 + 8 + 4 + 8);
+        region.put(FUNCTION).putInt(iteration).putLong(node).putInt(function).putDouble(draw);
+    }
+
+    // the state from here on is that at the end of the iteration
+    void iterationEnd(int iteration) {
+        ensure(1 + 4);
+        region.put(ITERATION).putInt(iteration);
+    }
+
+    private int name(String name) {
+        Integer index = names.get(name);
+        if (index != null) return index;
+        index = names.size();
+        names.put(name, index);
+        ensure(1 + 4 + ValueCodec.sizeOf(name));
+        region.put(NAME).putInt(index);
+        ValueCodec.writeString(region, name);
+        return index;
+    }
+
+    // map the next region once the current one cannot take the event
+    private void ensure(int bytes) {
+        if (region != null && region.remaining() >= bytes) return;
+        try {
+            long position = length();
+            if (region != null) region.force();
+            region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_BYTES, bytes));
+            region.order(ByteOrder.LITTLE_ENDIAN);
+            regionStart = position;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write trajectory log " + file + ".", e);
+        }
+    }
+
+    void force() {
+        if (region != null) region.force();
+    }
+
+    @Override
+    public void close() {
+        try {
+            force();
+            // drop the unused end of the last region
+            channel.truncate(length());
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot close trajectory log " + file + ".", e);
+        }
+    }
+
+    // the graph at the end of the iteration, or at the end of the log if it stops earlier
+    public static TrajectoryModel replay(File file, int iteration) {
+        TrajectoryModel model = new TrajectoryModel();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 8 || buffer.getLong() != MAGIC)
+                throw new RuntimeException(file + " is not a trajectory log.");
+
+            Map<Integer, String> names = new HashMap<>();
+            boolean started = false;
+            while (buffer.hasRemaining()) {
+                byte event = buffer.get();
+                switch (event) {
+                    case 0:
+                        // unwritten end of the last region, the run stopped before closing the log
+                        return model;
+                    case NAME:
+                        int index = buffer.getInt();
+                        names.put(index, ValueCodec.readString(buffer));
+                        break;
+                    case CREATE_NODE:
+                        model.createNode(buffer.getLong());
+                        break;
+                    case DELETE_NODE:
+                        model.deleteNode(buffer.getLong());
+                        break;
+                    case ADD_LABEL:
+                        model.addLabel(buffer.getLong(), names.get(buffer.getInt()));
+                        break;
+                    case REMOVE_LABEL:
+                        model.removeLabel(buffer.getLong(), names.get(buffer.getInt()));
+                        break;
+                    case SET_PROPERTY: {
+                        long node = buffer.getLong();
+                        String key = names.get(buffer.getInt());
+                        model.setProperty(node, key, ValueCodec.read(buffer));
+                        break;
+                    }
+                    case REMOVE_PROPERTY:
+                        model.removeProperty(buffer.getLong(), names.get(buffer.getInt()));
+                        break;
+                    case CREATE_RELATIONSHIP:
+                        model.createRelationship(buffer.getLong(), buffer.getLong(), names.get(buffer.getInt()));
+                        break;
+                    case DELETE_RELATIONSHIP:
+                        model.deleteRelationship(buffer.getLong(), buffer.getLong(), names.get(buffer.getInt()));
+                        break;
+                    case FUNCTION:
+                        buffer.getInt();
+                        buffer.getLong();
+                        buffer.getInt();
+                        buffer.getDouble();
+                        model.functionApplied();
+                        break;
+                    case ITERATION:
+                        int end = buffer.getInt();
+                        // the dump ends with iteration 0, later markers count up from there
+                        if (started && end < model.getIteration())
+                            throw new RuntimeException("Trajectory log " + file + " is out of order.");
+                        started = true;
+                        model.setIteration(end);
+                        if (end >= iteration) return model;
+                        break;
+                    default:
+                        throw new RuntimeException("Unknown event " + event + " in trajectory log " + file + ".");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read trajectory log " + file + ".", e);
+        }
+        return model;
+    }
+}
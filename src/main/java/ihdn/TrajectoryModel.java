@@ -0,0 +1,123 @@
+package ihdn;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+
+import java.util.*;
+
+/**
+ * Graph rebuilt from a {@link TrajectoryLog}, keyed by the node keys of the run that wrote it (see
+ * {@link IHDNNode#getKey()}).
+ */
+public final class TrajectoryModel {
+
+    private final Map<Long, Set<String>> labels = new LinkedHashMap<>();
+    private final Map<Long, Map<String, Object>> properties = new HashMap<>();
+    // end node and type of each relationship, per start node
+    private final Map<Long, List<Map.Entry<Long, String>>> relationships = new HashMap<>();
+    private int iteration;
+    private long functionApplications;
+
+    TrajectoryModel() {
+    }
+
+    void createNode(long node) {
+        labels.put(node, new LinkedHashSet<>());
+        properties.put(node, new LinkedHashMap<>());
+    }
+
+    void deleteNode(long node) {
+        labels.remove(node);
+        properties.remove(node);
+        relationships.remove(node);
+    }
+
+    void addLabel(long node, String label) {
+        labels.get(node).add(label);
+    }
+
+    void removeLabel(long node, String label) {
+        labels.get(node).remove(label);
+    }
+
+    void setProperty(long node, String key, Object value) {
+        properties.get(node).put(key, value);
+    }
+
+    void removeProperty(long node, String key) {
+        properties.get(node).remove(key);
+    }
+
+    void createRelationship(long start, long end, String type) {
+        relationships.computeIfAbsent(start, node -> new ArrayList<>()).add(new AbstractMap.SimpleImmutableEntry<>(end, type));
+    }
+
+    // one of them, if there are parallel relationships
+    void deleteRelationship(long start, long end, String type) {
+        List<Map.Entry<Long, String>> outgoing = relationships.get(start);
+        if (outgoing != null) outgoing.remove(new AbstractMap.SimpleImmutableEntry<>(end, type));
+    }
+
+    void functionApplied() {
+        functionApplications++;
+    }
+
+    void setIteration(int iteration) {
+        this.iteration = iteration;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public long getFunctionApplications() {
+        return functionApplications;
+    }
+
+    public Set<Long> getNodeKeys() {
+        return Collections.unmodifiableSet(labels.keySet());
+    }
+
+    public boolean hasNode(long node) {
+        return labels.containsKey(node);
+    }
+
+    public Set<String> getLabels(long node) {
+        return Collections.unmodifiableSet(labels.get(node));
+    }
+
+    public Map<String, Object> getProperties(long node) {
+        return Collections.unmodifiableMap(properties.get(node));
+    }
+
+    // one entry per relationship
+    public List<Long> getEndNodes(long start, RelationshipType type) {
+        List<Long> ends = new ArrayList<>();
+        for (Map.Entry<Long, String> rel : relationships.getOrDefault(start, Collections.emptyList()))
+            if (rel.getValue().equals(type.name())) ends.add(rel.getKey());
+        return ends;
+    }
+
+    public List<Long> getChildren(long node) {
+        return getEndNodes(node, IHDNRelTypes.CONTAINS);
+    }
+
+    // creates the graph in the database's current transaction, returns the new id of each node by key
+    public Map<Long, Long> writeTo(GraphDatabaseService db) {
+        Map<Long, Long> ids = new HashMap<>();
+        for (Map.Entry<Long, Set<String>> entry : labels.entrySet()) {
+            Node node = db.createNode(entry.getValue().stream().map(Label::label).toArray(Label[]::new));
+            properties.get(entry.getKey()).forEach(node::setProperty);
+            ids.put(entry.getKey(), node.getId());
+        }
+        relationships.forEach((start, outgoing) -> {
+            Node startNode = db.getNodeById(ids.get(start));
+            for (Map.Entry<Long, String> rel : outgoing)
+                startNode.createRelationshipTo(db.getNodeById(ids.get(rel.getKey())),
+                        RelationshipType.withName(rel.getValue()));
+        });
+        return ids;
+    }
+}
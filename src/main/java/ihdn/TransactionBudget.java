@@ -0,0 +1,49 @@
+package ihdn;
+
+/**
+ * Estimate of the state held by the open transaction, charged by the writes made through {@link IHDNNode}.
+ * <p>
+ * Neo4j does not expose the size of a transaction's state, so each record written is charged a rough cost in
+ * bytes. computeAll commits once the estimate passes the budget, inside an iteration if need be.
+ */
+class TransactionBudget {
+
+    // approximate transaction state per record written, in bytes
+    static final int NODE = 256;
+    static final int RELATIONSHIP = 192;
+    static final int LABEL = 64;
+    static final int PROPERTY = 128;
+
+    private final long budget;
+    private long used;
+
+    TransactionBudget(long budget) {
+        if (budget <= 0) throw new RuntimeException("Transaction budget must be positive.");
+        this.budget = budget;
+    }
+
+    // an eighth of the maximum heap
+    static long defaultBudget() {
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    void charge(long bytes) {
+        used += bytes;
+    }
+
+    boolean isExceeded() {
+        return used >= budget;
+    }
+
+    long getUsed() {
+        return used;
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    void reset() {
+        used = 0;
+    }
+}
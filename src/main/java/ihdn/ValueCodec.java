@@ -0,0 +1,181 @@
+package ihdn;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of Neo4j property values (primitives, strings, and arrays of either) as a type tag followed by
+ * the value, for the binary logs and files IHDN writes.
+ */
+final class ValueCodec {
+
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHAR = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte ARRAY = 16;
+
+    private ValueCodec() {
+    }
+
+    static int size(Object value) {
+        if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            if (value instanceof String[]) {
+                int size = 1 + 4;
+                for (String string : (String[]) value) size += sizeOf(string);
+                return size;
+            }
+            return 1 + 4 + length * width(tag(value.getClass().getComponentType()));
+        }
+        if (value instanceof String) return 1 + sizeOf((String) value);
+        return 1 + width(tag(value.getClass()));
+    }
+
+    static void write(ByteBuffer buffer, Object value) {
+        if (value.getClass().isArray()) {
+            byte tag = tag(value.getClass().getComponentType());
+            int length = Array.getLength(value);
+            buffer.put((byte) (ARRAY | tag));
+            buffer.putInt(length);
+            for (int i = 0; i < length; i++) writeElement(buffer, tag, Array.get(value, i));
+        } else {
+            byte tag = tag(value.getClass());
+            buffer.put(tag);
+            writeElement(buffer, tag, value);
+        }
+    }
+
+    static Object read(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        if ((tag & ARRAY) == 0) return readElement(buffer, tag);
+
+        tag &= ~ARRAY;
+        int length = buffer.getInt();
+        switch (tag) {
+            case BOOLEAN: {
+                boolean[] array = new boolean[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.get() != 0;
+                return array;
+            }
+            case BYTE: {
+                byte[] array = new byte[length];
+                buffer.get(array);
+                return array;
+            }
+            case SHORT: {
+                short[] array = new short[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.getShort();
+                return array;
+            }
+            case CHAR: {
+                char[] array = new char[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.getChar();
+                return array;
+            }
+            case INT: {
+                int[] array = new int[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.getInt();
+                return array;
+            }
+            case LONG: {
+                long[] array = new long[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.getLong();
+                return array;
+            }
+            case FLOAT: {
+                float[] array = new float[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.getFloat();
+                return array;
+            }
+            case DOUBLE: {
+                double[] array = new double[length];
+                for (int i = 0; i < length; i++) array[i] = buffer.getDouble();
+                return array;
+            }
+            case STRING: {
+                String[] array = new String[length];
+                for (int i = 0; i < length; i++) array[i] = readString(buffer);
+                return array;
+            }
+            default:
+                throw new RuntimeException("Unknown value tag " + tag + ".");
+        }
+    }
+
+    static int sizeOf(String string) {
+        return 4 + string.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    static void writeString(ByteBuffer buffer, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeElement(ByteBuffer buffer, byte tag, Object value) {
+        switch (tag) {
+            case BOOLEAN: buffer.put((byte) ((Boolean) value ? 1 : 0)); break;
+            case BYTE: buffer.put((Byte) value); break;
+            case SHORT: buffer.putShort((Short) value); break;
+            case CHAR: buffer.putChar((Character) value); break;
+            case INT: buffer.putInt((Integer) value); break;
+            case LONG: buffer.putLong((Long) value); break;
+            case FLOAT: buffer.putFloat((Float) value); break;
+            case DOUBLE: buffer.putDouble((Double) value); break;
+            case STRING: writeString(buffer, (String) value); break;
+            default: throw new RuntimeException("Unknown value tag " + tag + ".");
+        }
+    }
+
+    private static Object readElement(ByteBuffer buffer, byte tag) {
+        switch (tag) {
+            case BOOLEAN: return buffer.get() != 0;
+            case BYTE: return buffer.get();
+            case SHORT: return buffer.getShort();
+            case CHAR: return buffer.getChar();
+            case INT: return buffer.getInt();
+            case LONG: return buffer.getLong();
+            case FLOAT: return buffer.getFloat();
+            case DOUBLE: return buffer.getDouble();
+            case STRING: return readString(buffer);
+            default: throw new RuntimeException("Unknown value tag " + tag + ".");
+        }
+    }
+
+    private static byte tag(Class<?> type) {
+        if (type == Boolean.class || type == boolean.class) return BOOLEAN;
+        if (type == Byte.class || type == byte.class) return BYTE;
+        if (type == Short.class || type == short.class) return SHORT;
+        if (type == Character.class || type == char.class) return CHAR;
+        if (type == Integer.class || type == int.class) return INT;
+        if (type == Long.class || type == long.class) return LONG;
+        if (type == Float.class || type == float.class) return FLOAT;
+        if (type == Double.class || type == double.class) return DOUBLE;
+        if (type == String.class) return STRING;
+        throw new RuntimeException("Cannot encode values of type " + type.getName() + ".");
+    }
+
+    // bytes per fixed width element
+    private static int width(byte tag) {
+        switch (tag) {
+            case BOOLEAN: case BYTE: return 1;
+            case SHORT: case CHAR: return 2;
+            case INT: case FLOAT: return 4;
+            case LONG: case DOUBLE: return 8;
+            default: throw new RuntimeException("No fixed width for value tag " + tag + ".");
+        }
+    }
+}
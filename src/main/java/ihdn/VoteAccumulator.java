@@ -0,0 +1,53 @@
+package ihdn;
+
+/**
+ * Vote function that builds a node's vote in place. The engine hands it a zeroed buffer, calls begin, pushes the
+ * vote of each active child with accept, in child order, and calls finish, after which the buffer holds the
+ * node's vote. Buffers are per-depth scratch reused from node to node, so an accumulator that keeps no reference
+ * to them allocates nothing per node. A child's vote is only valid during the accept call.
+ * <p>
+ * Register one as a {@link VoteFunctionDefinition} field, as with a {@link VoteFunction}; vote functions are run
+ * through {@link #of(VoteFunction)}. In parallel compute, begin and finish run on worker threads and may only read
+ * {@link IHDNNode#getVote()} and {@link IHDNNode#getFilter()}.
+ */
+public interface VoteAccumulator {
+
+    void begin(IHDN IHDN, IHDNNode ihdnNode, double[] vote);
+
+    void accept(double[] vote, double[] childVote);
+
+    default void finish(IHDN IHDN, IHDNNode ihdnNode, double[] vote) {
+    }
+
+    // node's own vote plus the votes of its children
+    VoteAccumulator DEFAULT = new VoteAccumulator() {
+        @Override
+        public void begin(IHDN IHDN, IHDNNode ihdnNode, double[] vote) {
+            ihdnNode.addVote(vote);
+        }
+
+        @Override
+        public void accept(double[] vote, double[] childVote) {
+            for (int i = 0; i < vote.length; i++)
+                vote[i] += childVote[i];
+        }
+    };
+
+    // child votes are copied and handed to the function as a stream at finish
+    static VoteAccumulator of(VoteFunction voteFunction) {
+        if (voteFunction == VoteFunction.DEFAULT) return DEFAULT;
+        return new VoteFunctionAccumulator(voteFunction);
+    }
+
+    // allocates a vote per call
+    default VoteFunction asVoteFunction() {
+        if (this == DEFAULT) return VoteFunction.DEFAULT;
+        return (IHDN, ihdnNode, votesFromChildren) -> {
+            double[] vote = new double[IHDN.getNumFunctions()];
+            begin(IHDN, ihdnNode, vote);
+            votesFromChildren.forEach(childVote -> accept(vote, childVote));
+            finish(IHDN, ihdnNode, vote);
+            return vote;
+        };
+    }
+}
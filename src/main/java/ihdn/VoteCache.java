@@ -0,0 +1,104 @@
+package ihdn;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Aggregated votes of subtrees, by node ordinal, so that a subtree whose combined filter is all zero (no function
+ * can fire in it) is not visited again until something under it changes.
+ * <p>
+ * A node's vote is kept only if its vote function is DEFAULT and each of its active children has a kept vote, so
+ * the kept vote depends on nothing but the VOTE properties, activity and structure of the subtree. Changes to
+ * those through {@link IHDNNode} drop the node's vote and those of its ancestors, stopping at ancestors that have
+ * none: an active node without a kept vote never has a parent with one. Writes made around IHDNNode are not seen.
+ * <p>
+ * Only a node's primary arrival (see {@link InMemoryEngine}) reads or keeps its vote, and a parent whose vote is
+ * kept has only children it owns, so during an evaluation each ordinal is written by at most one worker and read
+ * only by that worker or, after a join, its parent's. Parallel workers may then share the cache once it is sized
+ * with {@link #ensure(int)}.
+ */
+final class VoteCache {
+
+    private final IHDN ihdn;
+    private double[][] votes = new double[16][];
+    // nothing is kept, see IHDN.IHDNBuilder.withoutVoteCache()
+    private boolean disabled;
+
+    VoteCache(IHDN ihdn) {
+        this.ihdn = ihdn;
+    }
+
+    // copies the kept vote into out, false if there is none
+    boolean copyTo(int ordinal, double[] out) {
+        if (ordinal >= votes.length) return false;
+        double[] vote = votes[ordinal];
+        if (vote == null) return false;
+        System.arraycopy(vote, 0, out, 0, out.length);
+        return true;
+    }
+
+    boolean contains(int ordinal) {
+        return ordinal < votes.length && votes[ordinal] != null;
+    }
+
+    // a vote kept again is copied into the same array
+    void put(int ordinal, double[] vote) {
+        if (disabled) return;
+        ensure(ordinal + 1);
+        double[] kept = votes[ordinal];
+        if (kept != null && kept.length == vote.length) System.arraycopy(vote, 0, kept, 0, vote.length);
+        else votes[ordinal] = vote.clone();
+    }
+
+    // room for the ordinals before a parallel evaluation
+    void ensure(int ordinals) {
+        if (ordinals > votes.length) votes = Arrays.copyOf(votes, Math.max(ordinals, votes.length * 2));
+    }
+
+    void remove(int ordinal) {
+        if (ordinal < votes.length) votes[ordinal] = null;
+    }
+
+    // the node's vote changed, or which of its children count did
+    void invalidate(Node node) {
+        NodeOrdinals ordinals = ihdn.getOrdinals();
+        int ordinal = ordinals.get(node.getId());
+        if (ordinal != LongIntMap.MISSING) remove(ordinal);
+
+        // the node's parents are visited whether or not it had a vote, it may be inactive
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        boolean first = true;
+        while (!stack.isEmpty()) {
+            Node next = stack.pop();
+            if (!first) {
+                int parent = ordinals.get(next.getId());
+                if (parent == LongIntMap.MISSING || !contains(parent)) continue;
+                remove(parent);
+            }
+            first = false;
+            for (Relationship rel : next.getRelationships(IHDNRelTypes.CONTAINS, Direction.INCOMING))
+                stack.push(rel.getStartNode());
+        }
+    }
+
+    void disable() {
+        disabled = true;
+        clear();
+    }
+
+    void clear() {
+        Arrays.fill(votes, null);
+    }
+
+    static boolean isZero(double[] filter) {
+        for (double value : filter)
+            if (value != 0) return false;
+        return true;
+    }
+}
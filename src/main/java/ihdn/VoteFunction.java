@@ -2,23 +2,15 @@ package ihdn;
 
 import java.util.stream.Stream;
 
+// see VoteAccumulator, which builds the vote without allocating, and VoteAccumulator.of() for running these on it
 public interface VoteFunction {
 
     double[] apply(IHDN IHDN, IHDNNode ihdnNode, Stream<double[]> votesFromChildren);
 
     VoteFunction DEFAULT = (IHDN, ihdnNode, votesFromChildren) -> {
-        double[] vote = ihdnNode.getVote();
-
-        double[] combinedVotesFromChildren = votesFromChildren.reduce(new double[vote.length],
-                (acc, next) -> {
-//                    double[] combinedVote = new double[vote.length];
-                    for (int i = 0; i < acc.length; i++)
-                        acc[i] += next[i];
-                    return acc;
-                });
-
-        for (int i = 0; i < vote.length; i++) vote[i] += combinedVotesFromChildren[i];
-
+        double[] vote = new double[IHDN.getNumFunctions()];
+        VoteAccumulator.DEFAULT.begin(IHDN, ihdnNode, vote);
+        votesFromChildren.forEach(next -> VoteAccumulator.DEFAULT.accept(vote, next));
         return vote;
     };
-}
\ No newline at end of file
+}
@@ -0,0 +1,43 @@
+package ihdn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A {@link VoteFunction} run as a {@link VoteAccumulator}: copies of the child votes are collected and passed to
+ * the function at finish. Nodes are begun and finished in nested order on each thread, a worker joining a forked
+ * subtree included, so the votes being collected are kept on a stack per thread.
+ */
+final class VoteFunctionAccumulator implements VoteAccumulator {
+
+    private final VoteFunction voteFunction;
+    private final ThreadLocal<Deque<List<double[]>>> collecting = ThreadLocal.withInitial(ArrayDeque::new);
+
+    VoteFunctionAccumulator(VoteFunction voteFunction) {
+        this.voteFunction = voteFunction;
+    }
+
+    @Override
+    public void begin(IHDN IHDN, IHDNNode ihdnNode, double[] vote) {
+        collecting.get().push(new ArrayList<>());
+    }
+
+    @Override
+    public void accept(double[] vote, double[] childVote) {
+        collecting.get().peek().add(childVote.clone());
+    }
+
+    @Override
+    public void finish(IHDN IHDN, IHDNNode ihdnNode, double[] vote) {
+        List<double[]> childVotes = collecting.get().pop();
+        double[] result = voteFunction.apply(IHDN, ihdnNode, childVotes.stream());
+        System.arraycopy(result, 0, vote, 0, vote.length);
+    }
+
+    @Override
+    public VoteFunction asVoteFunction() {
+        return voteFunction;
+    }
+}
@@ -0,0 +1,52 @@
+package ihdn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Combined filter, vote and child list buffers for each depth of a traversal, reused from node to node. A node at
+ * depth d writes its vote to vote(d), where its parent reads it, and its children read filter(d). One per thread.
+ */
+final class VoteScratch {
+
+    private final int numFunctions;
+    private double[][] filters = new double[0][];
+    private double[][] votes = new double[0][];
+    private final List<List<IHDNNode>> children = new ArrayList<>();
+
+    VoteScratch(int numFunctions) {
+        this.numFunctions = numFunctions;
+    }
+
+    double[] filter(int depth) {
+        ensure(depth);
+        return filters[depth];
+    }
+
+    double[] vote(int depth) {
+        ensure(depth);
+        return votes[depth];
+    }
+
+    // empty list for the children of the node at the depth
+    List<IHDNNode> children(int depth) {
+        while (children.size() <= depth) children.add(new ArrayList<>());
+        List<IHDNNode> list = children.get(depth);
+        list.clear();
+        return list;
+    }
+
+    private void ensure(int depth) {
+        if (depth < filters.length) return;
+        int size = Math.max(depth + 1, filters.length * 2);
+        double[][] newFilters = new double[size][], newVotes = new double[size][];
+        System.arraycopy(filters, 0, newFilters, 0, filters.length);
+        System.arraycopy(votes, 0, newVotes, 0, votes.length);
+        for (int d = filters.length; d < size; d++) {
+            newFilters[d] = new double[numFunctions];
+            newVotes[d] = new double[numFunctions];
+        }
+        filters = newFilters;
+        votes = newVotes;
+    }
+}
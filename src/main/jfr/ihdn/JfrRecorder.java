@@ -0,0 +1,227 @@
+package ihdn;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.StringJoiner;
+
+/**
+ * The Java Flight Recorder side of {@link IHDNEvents}, loaded by name only on runtimes with jdk.jfr. Each begin
+ * checks its event type before creating the event, so nothing is allocated while no recording asks for it.
+ */
+final class JfrRecorder implements IHDNEvents.Recorder {
+
+    private static final EventType ITERATION = EventType.getEventType(IterationEvent.class);
+    private static final EventType TRAVERSAL = EventType.getEventType(RootTraversalEvent.class);
+    private static final EventType FUNCTION = EventType.getEventType(FunctionApplicationEvent.class);
+    private static final EventType CLONE = EventType.getEventType(CloneEvent.class);
+    private static final EventType DELETE = EventType.getEventType(DeleteEvent.class);
+    private static final EventType COMMIT = EventType.getEventType(CommitEvent.class);
+
+    @Override
+    public Object beginIteration(int iteration) {
+        if (!ITERATION.isEnabled()) return null;
+        IterationEvent event = new IterationEvent();
+        event.iteration = iteration;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endIteration(Object event, long nodesVisited, long nodesCreated, long nodesDeleted) {
+        IterationEvent iteration = (IterationEvent) event;
+        iteration.nodesVisited = nodesVisited;
+        iteration.nodesCreated = nodesCreated;
+        iteration.nodesDeleted = nodesDeleted;
+        commit(iteration);
+    }
+
+    @Override
+    public Object beginTraversal(IHDNNode root) {
+        if (!TRAVERSAL.isEnabled()) return null;
+        RootTraversalEvent event = new RootTraversalEvent();
+        event.rootId = root.getId();
+        event.labels = labels(root);
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void stop(Object event) {
+        ((Event) event).end();
+    }
+
+    @Override
+    public void endTraversal(Object event, long subtreeSize) {
+        RootTraversalEvent traversal = (RootTraversalEvent) event;
+        traversal.subtreeSize = subtreeSize;
+        if (traversal.shouldCommit()) traversal.commit();
+    }
+
+    @Override
+    public Object beginFunction(IHDNNode node, String function) {
+        if (!FUNCTION.isEnabled()) return null;
+        FunctionApplicationEvent event = new FunctionApplicationEvent();
+        event.nodeId = node.getId();
+        event.labels = labels(node);
+        event.function = function;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginClone(IHDNNode node, String operation) {
+        if (!CLONE.isEnabled()) return null;
+        CloneEvent event = new CloneEvent();
+        event.operation = operation;
+        event.nodeId = node.getId();
+        event.labels = labels(node);
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endClone(Object event, long cloneId, long subtreeSize) {
+        CloneEvent clone = (CloneEvent) event;
+        clone.cloneId = cloneId;
+        clone.subtreeSize = subtreeSize;
+        commit(clone);
+    }
+
+    @Override
+    public Object beginDelete(IHDNNode node) {
+        if (!DELETE.isEnabled()) return null;
+        DeleteEvent event = new DeleteEvent();
+        event.nodeId = node.getId();
+        event.labels = labels(node);
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDelete(Object event, long subtreeSize) {
+        DeleteEvent delete = (DeleteEvent) event;
+        delete.subtreeSize = subtreeSize;
+        commit(delete);
+    }
+
+    @Override
+    public Object beginCommit(int iteration, long transactionBytes) {
+        if (!COMMIT.isEnabled()) return null;
+        CommitEvent event = new CommitEvent();
+        event.iteration = iteration;
+        event.transactionBytes = transactionBytes;
+        event.begin();
+        return event;
+    }
+
+    // function applications and commits
+    @Override
+    public void end(Object event) {
+        commit((Event) event);
+    }
+
+    private static void commit(Event event) {
+        event.end();
+        if (event.shouldCommit()) event.commit();
+    }
+
+    private static String labels(IHDNNode node) {
+        StringJoiner labels = new StringJoiner(",");
+        for (org.neo4j.graphdb.Label label : node.getLabels()) labels.add(label.name());
+        return labels.toString();
+    }
+
+    @Name("ihdn.Iteration")
+    @Label("Iteration")
+    @Category("IHDN")
+    @Description("One iteration of computeAll, including compaction")
+    @StackTrace(false)
+    static final class IterationEvent extends Event {
+        @Label("Iteration")
+        int iteration;
+        @Label("Nodes Visited")
+        long nodesVisited;
+        @Label("Nodes Created")
+        long nodesCreated;
+        @Label("Nodes Deleted")
+        long nodesDeleted;
+    }
+
+    @Name("ihdn.RootTraversal")
+    @Label("Root Traversal")
+    @Category("IHDN")
+    @Description("Votes and function selection under one ROOT; the functions selected are applied once every root"
+            + " is evaluated, outside the duration")
+    @StackTrace(false)
+    static final class RootTraversalEvent extends Event {
+        @Label("Root Id")
+        long rootId;
+        @Label("Labels")
+        String labels;
+        @Label("Subtree Size")
+        @Description("Nodes visited")
+        long subtreeSize;
+    }
+
+    @Name("ihdn.FunctionApplication")
+    @Label("Function Application")
+    @Category("IHDN")
+    @StackTrace(false)
+    static final class FunctionApplicationEvent extends Event {
+        @Label("Node Id")
+        long nodeId;
+        @Label("Labels")
+        String labels;
+        @Label("Function")
+        String function;
+    }
+
+    @Name("ihdn.Clone")
+    @Label("Clone")
+    @Category("IHDN")
+    static final class CloneEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Node Id")
+        long nodeId;
+        @Label("Labels")
+        String labels;
+        @Label("Clone Id")
+        long cloneId;
+        @Label("Subtree Size")
+        @Description("Nodes created")
+        long subtreeSize;
+    }
+
+    @Name("ihdn.Delete")
+    @Label("Recursive Delete")
+    @Category("IHDN")
+    static final class DeleteEvent extends Event {
+        @Label("Node Id")
+        long nodeId;
+        @Label("Labels")
+        String labels;
+        @Label("Subtree Size")
+        @Description("Nodes deleted, shared children are detached instead")
+        long subtreeSize;
+    }
+
+    @Name("ihdn.Commit")
+    @Label("Commit")
+    @Category("IHDN")
+    @Description("A transaction committed by computeAll")
+    @StackTrace(false)
+    static final class CommitEvent extends Event {
+        @Label("Iteration")
+        int iteration;
+        @Label("Transaction Bytes")
+        @Description("Estimated transaction state, see TransactionBudget")
+        long transactionBytes;
+    }
+}
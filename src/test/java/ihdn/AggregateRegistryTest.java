@@ -0,0 +1,78 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class AggregateRegistryTest {
+
+    @Test
+    public void testAggregatesFollowCreateAndDelete() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(1)
+                .withAggregates(aggregates -> {
+                    aggregates.registerCount(TestTumour.CELL);
+                    aggregates.registerHistogram(TestTumour.CELL, "tag");
+                    aggregates.registerChildLabelGroups(TestTumour.CELL, TestTumour.CHROMOSOME);
+                })
+                .createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            AggregateRegistry aggregates = ihdn.getAggregates();
+            IHDNNode tissue = ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().get();
+            assertEquals(5, aggregates.getCount(TestTumour.CELL));
+            assertScanned(ihdn);
+
+            IHDNNode cell = new IHDNNode(ihdn, TestTumour.CELL);
+            tissue.addChild(cell);
+            cell.setProperty("tag", "new");
+            cell.addChild(new IHDNNode(ihdn, TestTumour.CHROMOSOME));
+            assertEquals(6, aggregates.getCount(TestTumour.CELL));
+            assertEquals(Long.valueOf(1), aggregates.getHistogram(TestTumour.CELL, "tag").get("new"));
+            assertScanned(ihdn);
+
+            IHDNNode clone = cell.deepClone();
+            assertEquals(7, aggregates.getCount(TestTumour.CELL));
+            assertEquals(Long.valueOf(2), aggregates.getHistogram(TestTumour.CELL, "tag").get("new"));
+            assertScanned(ihdn);
+
+            clone.getAllChildNodes().findFirst().get().recursiveDelete();
+            cell.setInactive();
+            assertEquals(6, aggregates.getCount(TestTumour.CELL));
+            assertEquals(Long.valueOf(1), aggregates.getHistogram(TestTumour.CELL, "tag").get("new"));
+            assertScanned(ihdn);
+
+            clone.recursiveDelete();
+            cell.recursiveDelete();
+            tissue.getAllChildNodes().findFirst().get().recursiveDelete();
+            assertEquals(4, aggregates.getCount(TestTumour.CELL));
+            assertNull(aggregates.getHistogram(TestTumour.CELL, "tag").get("new"));
+            assertScanned(ihdn);
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    // the aggregates equal a scan of the active cells
+    private static void assertScanned(IHDN ihdn) {
+        List<IHDNNode> cells = ihdn.getIHDNNodes(TestTumour.CELL).filter(IHDNNode::isActive)
+                .collect(Collectors.toList());
+        Map<Object, Long> tags = new HashMap<>();
+        Map<List<Integer>, Long> groups = new HashMap<>();
+        for (IHDNNode cell : cells) {
+            tags.merge(cell.getProperty("tag", "<absent>"), 1L, Long::sum);
+            int chromosomes = (int) cell.getChildNodesWithLabel(TestTumour.CHROMOSOME).count();
+            groups.merge(Collections.singletonList(chromosomes), 1L, Long::sum);
+        }
+        AggregateRegistry aggregates = ihdn.getAggregates();
+        assertEquals(cells.size(), aggregates.getCount(TestTumour.CELL));
+        assertEquals(tags, aggregates.getHistogram(TestTumour.CELL, "tag"));
+        assertEquals(groups, aggregates.getChildLabelGroups(TestTumour.CELL, TestTumour.CHROMOSOME));
+    }
+}
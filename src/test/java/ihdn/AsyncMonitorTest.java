@@ -0,0 +1,83 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class AsyncMonitorTest {
+
+    @Test
+    public void testMonitorSeesCommittedIterations() throws Exception {
+        // node counts as the run goes, in its own transaction
+        Map<Integer, Long> expected = new ConcurrentHashMap<>();
+        IHDN ihdn = new TestTumour(12).builder(5)
+                .setIterationsPerMonitor(1)
+                .setIterationMonitor((iteration, view) -> {
+                    expected.put(iteration, count(view));
+                    return false;
+                })
+                .createIHDN();
+        try {
+            ihdn.computeAll(6, 100);
+        } finally {
+            ihdn.shutdown();
+        }
+
+        // the same run, monitored from another thread between commits
+        Map<Integer, Long> seen = new ConcurrentHashMap<>();
+        ihdn = new TestTumour(12).builder(5)
+                .setIterationsPerMonitor(1)
+                .setIterationMonitor((iteration, view) -> {
+                    seen.put(iteration, count(view));
+                    return false;
+                })
+                .withAsyncMonitor(2)
+                .createIHDN();
+        try {
+            ihdn.computeAll(6, 100);
+        } finally {
+            ihdn.shutdown();
+        }
+
+        assertEquals(expected.keySet(), seen.keySet());
+        assertTrue(expected.get(6) > expected.get(0));
+        // the iteration called for is committed, a later one may be too; nodes are never deleted here
+        for (int iteration : seen.keySet()) {
+            assertTrue(seen.get(iteration) >= expected.get(iteration));
+            assertTrue(seen.get(iteration) <= expected.get(6));
+        }
+    }
+
+    @Test
+    public void testMonitorErrorStopsRun() throws Exception {
+        AssertionError error = new AssertionError("monitor failed");
+        IHDN ihdn = new TestTumour(12).builder(5)
+                .setIterationsPerMonitor(1)
+                .setIterationMonitor((iteration, view) -> {
+                    if (iteration == 2) throw error;
+                    return false;
+                })
+                .withAsyncMonitor(1)
+                .createIHDN();
+        try {
+            ihdn.computeAll(50, 100);
+            fail("the monitor's error was lost");
+        } catch (RuntimeException e) {
+            assertSame(error, e.getCause());
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    private static long count(IHDN ihdn) {
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            long count = ihdn.getDB().getAllNodes().stream().count();
+            tx.success();
+            return count;
+        }
+    }
+}
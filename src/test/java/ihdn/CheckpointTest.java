@@ -0,0 +1,120 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    private static final int ITERATIONS = 12;
+
+    @Test
+    public void testResumedRunMatchesUninterrupted() throws Exception {
+        File directory = new File(TestTumour.newStore()).getParentFile();
+        File checkpoint = new File(directory, "run.checkpoint");
+        File trajectory = new File(directory, "run.trajectory");
+        File lineage = new File(directory, "run.lineage");
+        File archive = new File(directory, "run.archive");
+        for (File file : new File[]{checkpoint, trajectory, lineage, archive}) file.deleteOnExit();
+
+        TestTumour uninterrupted = new TestTumour(40);
+        Map<Long, String> expected = run(logged(uninterrupted.builder(17), directory)
+                .setCheckpoints(checkpoint.getPath(), 4));
+        // the logs as the uninterrupted run left them, the last checkpoint is of iteration 8
+        TrajectoryModel expectedTrajectory = TrajectoryLog.replay(trajectory, ITERATIONS);
+        byte[] expectedLineage = Files.readAllBytes(lineage.toPath());
+        List<String> expectedArchive = entries(ColdArchive.read(archive));
+
+        // a new store, continuing the same logs
+        TestTumour resumed = new TestTumour(40);
+        Map<Long, String> actual = run(logged(resumed.builder(0), directory).withCheckpoint(checkpoint.getPath()));
+
+        assertTrue(expectedTrajectory.getFunctionApplications() > ITERATIONS);
+        assertEquals(uninterrupted.applied.stream().filter(a -> Integer.parseInt(a.split(":")[0]) >= 8)
+                .collect(Collectors.toList()), resumed.applied);
+        assertEquals(expected, actual);
+        assertEquals(describe(expectedTrajectory), describe(TrajectoryLog.replay(trajectory, ITERATIONS)));
+        assertArrayEquals(expectedLineage, Files.readAllBytes(lineage.toPath()));
+        assertEquals(expectedArchive, entries(ColdArchive.read(archive)));
+    }
+
+    @Test
+    public void testKeysOfDeletedNodesNotReusedAfterRestore() throws Exception {
+        File checkpoint = new File(new File(TestTumour.newStore()).getParentFile(), "deleted.checkpoint");
+        checkpoint.deleteOnExit();
+        long deletedKey;
+        IHDN ihdn = new TestTumour(0).builder(1).createIHDN();
+        try {
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                IHDNNode node = new IHDNNode(ihdn);
+                deletedKey = node.getKey();
+                node.delete();
+                tx.success();
+            }
+            ihdn.checkpoint(checkpoint.getPath());
+        } finally {
+            ihdn.shutdown();
+        }
+
+        IHDN restored = new TestTumour(0).builder(1).withCheckpoint(checkpoint.getPath()).createIHDN();
+        try (Transaction tx = restored.getDB().beginTx()) {
+            // the largest key in the store is below the deleted one
+            assertTrue(new IHDNNode(restored).getKey() > deletedKey);
+            tx.success();
+        } finally {
+            restored.shutdown();
+        }
+    }
+
+    private static IHDN.IHDNBuilder logged(IHDN.IHDNBuilder builder, File directory) {
+        return builder
+                .withTrajectoryLog(new File(directory, "run.trajectory").getPath())
+                .withLineageLog(new File(directory, "run.lineage").getPath())
+                .withColdArchive(new File(directory, "run.archive").getPath())
+                .setCompaction(3, 2);
+    }
+
+    // the active cells and every gene's vote at the end, by key
+    private static Map<Long, String> run(IHDN.IHDNBuilder builder) {
+        IHDN ihdn = builder.createIHDN();
+        try {
+            ihdn.computeAll(ITERATIONS, 1);
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                Map<Long, String> state = new TreeMap<>();
+                ihdn.getActiveIHDNNodes(TestTumour.CELL).forEach(cell -> state.put(cell.getKey(), "cell"));
+                ihdn.getIHDNNodes(TestTumour.GENE)
+                        .forEach(gene -> state.put(gene.getKey(), Arrays.toString(gene.getVote())));
+                tx.success();
+                return state;
+            }
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    // labels, properties and children of every node, by key
+    private static Map<Long, String> describe(TrajectoryModel model) {
+        Map<Long, String> nodes = new TreeMap<>();
+        for (long node : model.getNodeKeys()) {
+            StringBuilder description = new StringBuilder(new TreeSet<>(model.getLabels(node)).toString());
+            new TreeMap<>(model.getProperties(node)).forEach((key, value) -> description.append(key).append('=')
+                    .append(value instanceof double[] ? Arrays.toString((double[]) value) : value).append(';'));
+            nodes.put(node, description.append(model.getChildren(node)).toString());
+        }
+        return nodes;
+    }
+
+    // subtree ids differ, interning starts again on resume
+    private static List<String> entries(ColdArchive.Contents contents) {
+        return contents.getEntries().stream()
+                .map(entry -> entry.getNodeKey() + "@" + entry.getIteration() + ":"
+                        + ColdArchiveTest.restore(contents, entry.getSubtree()))
+                .collect(Collectors.toList());
+    }
+}
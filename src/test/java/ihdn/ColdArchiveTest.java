@@ -0,0 +1,101 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.File;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ColdArchiveTest {
+
+    @Test
+    public void testCompactedSubtreesReadBack() throws Exception {
+        File file = archiveFile();
+        Map<Long, String> archived = compactAllCells(file, ColdArchive.DEFAULT_INTERN_BYTES, 20);
+
+        ColdArchive.Contents contents = ColdArchive.read(file);
+        assertEquals(archived.size(), contents.getEntries().size());
+        for (ColdArchive.Entry entry : contents.getEntries())
+            assertEquals(archived.get(entry.getNodeKey()), restore(contents, entry.getSubtree()));
+        // 12 genes, 4 chromosomes and 4 cells, the clone and both chromosomes of a cell interned together
+        assertEquals(20, contents.getSubtreeCount());
+    }
+
+    @Test
+    public void testForgottenSubtreesStoredAgain() throws Exception {
+        File file = archiveFile();
+        Map<Long, String> archived = compactAllCells(file, 0, 45);
+
+        ColdArchive.Contents contents = ColdArchive.read(file);
+        for (ColdArchive.Entry entry : contents.getEntries())
+            assertEquals(archived.get(entry.getNodeKey()), restore(contents, entry.getSubtree()));
+        // every node of every cell's subtree, shared chromosomes once per cell
+        assertEquals(45, contents.getSubtreeCount());
+    }
+
+    // every cell inactive and compacted, one with a lineage link left as a stub, the cells as described before
+    private static Map<Long, String> compactAllCells(File file, long internBytes, int subtrees) throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(1).withColdArchive(file.getPath(), internBytes).createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            IHDNNode tissue = ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().get();
+            List<IHDNNode> cells = tissue.getAllChildNodes().collect(Collectors.toList());
+            IHDNNode linked = cells.get(1);
+            linked.createRelationshipTo(tissue, RelationshipType.withName("WAS"));
+
+            Map<Long, String> archived = new HashMap<>();
+            for (IHDNNode cell : cells) {
+                cell.setInactive();
+                archived.put(cell.getKey(), describe(cell));
+            }
+            assertEquals(cells.size(), ihdn.compact(0));
+            assertEquals(subtrees, ihdn.getColdArchive().getSubtreeCount());
+
+            assertEquals(0, tissue.getAllChildNodes().count());
+            IHDNNode stub = ihdn.handle(linked.getId());
+            assertTrue(stub.hasLabel(IHDNLabels.ARCHIVED));
+            assertEquals(linked.getKey(), ((Long) stub.getNode().getProperty(Properties.NODE_KEY)).longValue());
+            // stubs hold no ordinal, and being looked at does not give them one
+            assertFalse(stub.isActive());
+            assertEquals(LongIntMap.MISSING, ihdn.getOrdinals().get(stub.getId()));
+            tx.success();
+            return archived;
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    private static File archiveFile() throws Exception {
+        File file = new File(new File(TestTumour.newStore()).getParentFile(), "cells.archive");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // labels, properties but the key, and children in order
+    private static String describe(IHDNNode node) {
+        Set<String> labels = new HashSet<>();
+        node.getLabels().forEach(label -> labels.add(label.name()));
+        return describe(labels, node.getAllProperties(), node.getAllChildNodes().map(ColdArchiveTest::describe));
+    }
+
+    // as described before it was archived
+    static String restore(ColdArchive.Contents contents, int id) {
+        ColdArchive.Subtree subtree = contents.getSubtree(id);
+        return describe(subtree.getLabels(), subtree.getProperties(),
+                Arrays.stream(subtree.getChildren()).mapToObj(child -> restore(contents, child)));
+    }
+
+    private static String describe(Set<String> labels, Map<String, Object> properties, Stream<String> children) {
+        StringBuilder description = new StringBuilder(new TreeSet<>(labels).toString());
+        new TreeMap<>(properties).forEach((key, value) -> {
+            if (key.equals(Properties.NODE_KEY)) return;
+            description.append(key).append('=')
+                    .append(value instanceof double[] ? Arrays.toString((double[]) value) : value).append(';');
+        });
+        return description.append(children.sorted().collect(Collectors.joining(",", "[", "]"))).toString();
+    }
+}
@@ -0,0 +1,225 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ComputeDeterminismTest {
+
+    private static final int ITERATIONS = 12;
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        TestTumour sequential = new TestTumour(40), parallel = new TestTumour(40);
+        Run expected = run(sequential, sequential.builder(7).withInMemoryEngine(), 5);
+        Run actual = run(parallel, parallel.builder(7).withParallelCompute(1).setParallelism(4), 5);
+
+        assertTrue(sequential.applied.size() > ITERATIONS);
+        assertEquals(sequential.applied, parallel.applied);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testStoreMatchesInMemory() throws Exception {
+        TestTumour store = new TestTumour(40), inMemory = new TestTumour(40);
+        Run expected = run(store, store.builder(11), 1);
+        Run actual = run(inMemory, inMemory.builder(11).withInMemoryEngine(), 1);
+
+        assertTrue(store.applied.size() > ITERATIONS);
+        assertEquals(store.applied, inMemory.applied);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testCommitsDoNotChangeTrajectory() throws Exception {
+        TestTumour store = new TestTumour(40), oneBatch = new TestTumour(40), budgeted = new TestTumour(40);
+        Run expected = run(store, store.builder(13), 1);
+        // structural changes reach the in-memory arrays at the next iteration, committed or not
+        Run actual = run(oneBatch, oneBatch.builder(13).withInMemoryEngine(), Integer.MAX_VALUE);
+        // commits inside iterations
+        Run committedEarly = run(budgeted, budgeted.builder(13).withInMemoryEngine().setTransactionBudget(1),
+                Integer.MAX_VALUE);
+
+        assertTrue(store.applied.size() > ITERATIONS);
+        assertEquals(expected, actual);
+        assertEquals(expected, committedEarly);
+    }
+
+    @Test
+    public void testKeysAreNotReused() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(1).createIHDN();
+        try {
+            long deletedId, deletedKey;
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                IHDNNode node = new IHDNNode(ihdn);
+                deletedId = node.getId();
+                deletedKey = node.getKey();
+                node.delete();
+                tx.success();
+            }
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                IHDNNode node = new IHDNNode(ihdn);
+                // Neo4j may hand out the id again, never the key
+                if (node.getId() == deletedId) assertNotEquals(deletedKey, node.getKey());
+                assertTrue(node.getKey() > deletedKey);
+                assertEquals(node.getKey(), ihdn.handle(node.getId()).getKey());
+                tx.success();
+            }
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testVoteCacheChangesNothing() throws Exception {
+        for (boolean inMemory : new boolean[]{false, true}) {
+            TestTumour cached = new TestTumour(40), uncached = new TestTumour(40), unwritten = new TestTumour(40);
+            Run expected = run(uncached, dormant(uncached, inMemory, true).withoutVoteCache(), 1);
+            Run actual = run(cached, dormant(cached, inMemory, true), 1);
+            Run before = run(unwritten, dormant(unwritten, inMemory, false), 1);
+
+            assertTrue(cached.applied.size() > ITERATIONS);
+            assertEquals(uncached.applied, cached.applied);
+            assertEquals(expected, actual);
+            // the write changed what its cell did, through a vote the cache had kept
+            assertNotEquals(before.applied, actual.applied);
+        }
+    }
+
+    @Test
+    public void testFunctionsAppliedAfterSelectionInPostOrder() throws Exception {
+        assertEquals(applyOrder(new IHDN.IHDNBuilder()), applyOrder(new IHDN.IHDNBuilder().withInMemoryEngine()));
+    }
+
+    // a parent whose first child, on its first function, turns its second child from the first function to the
+    // second: selected before anything is applied, the second child keeps its first function for the iteration
+    private static List<String> applyOrder(IHDN.IHDNBuilder builder) throws Exception {
+        List<String> applied = new ArrayList<>();
+        IHDNFunction first = (ihdn, node) -> {
+            if (!node.hasProperty("name")) return;
+            applied.add(ihdn.getCurrentIteration() + ":" + node.getProperty("name") + ":first");
+            if (node.getProperty("name").equals("b"))
+                ihdn.getIHDNNodes(Label.label("Child")).filter(child -> child.getProperty("name").equals("c"))
+                        .forEach(child -> child.setProperty(Properties.FILTER, new double[]{0, 1}));
+        };
+        IHDNFunction second = (ihdn, node) -> {
+            if (node.hasProperty("name"))
+                applied.add(ihdn.getCurrentIteration() + ":" + node.getProperty("name") + ":second");
+        };
+        IHDN ihdn = builder.withNewDB(TestTumour.newStore())
+                .withSimulation(new Simulation() {
+                })
+                .withFunction("first", first)
+                .withFunction("second", second)
+                .withGraphBuilder(graph -> {
+                    IHDNNode root = new IHDNNode(graph, IHDNLabels.ROOT);
+                    IHDNNode a = new IHDNNode(graph);
+                    a.setProperty("name", "a");
+                    root.addChild(a);
+                    for (String name : new String[]{"b", "c"}) {
+                        IHDNNode child = new IHDNNode(graph, Label.label("Child"));
+                        child.setProperty("name", name);
+                        child.setProperty(Properties.FILTER, new double[]{1, 0});
+                        child.setProperty(Properties.VOTE, new double[]{1, 1});
+                        a.addChild(child);
+                    }
+                })
+                .setSeed(3)
+                .createIHDN();
+        try {
+            ihdn.computeAll(2, 1);
+        } finally {
+            ihdn.shutdown();
+        }
+
+        List<String> firstIteration = applied.subList(0, 3);
+        assertTrue(firstIteration.containsAll(Arrays.asList("0:b:first", "0:c:first")));
+        // the parent after its children
+        assertTrue(firstIteration.get(2).startsWith("0:a:"));
+        assertTrue(applied.contains("1:c:second"));
+        return applied;
+    }
+
+    // the tumour with a chromosome no function can fire in added to a cell, whose votes are kept; with write, a
+    // monitor makes a gene in it vote for the cell to divide once the first iteration has kept its votes
+    private static IHDN.IHDNBuilder dormant(TestTumour tumour, boolean inMemory, boolean write) throws Exception {
+        Label dormant = Label.label("Dormant");
+        IHDN.IHDNBuilder builder = tumour.builder(19)
+                .withGraphBuilder(ihdn -> {
+                    TestTumour.build(ihdn);
+                    IHDNNode cell = ihdn.getIHDNNodes(TestTumour.CELL)
+                            .max((a, b) -> Long.compare(a.getKey(), b.getKey())).get();
+                    IHDNNode chromosome = new IHDNNode(ihdn, TestTumour.CHROMOSOME, dormant);
+                    chromosome.setProperty(Properties.FILTER, new double[]{0, 0, 0});
+                    cell.addChild(chromosome);
+                    for (int g = 0; g < 3; g++) {
+                        IHDNNode gene = new IHDNNode(ihdn, TestTumour.GENE);
+                        gene.setProperty(Properties.VOTE, new double[]{1, 0.1, 1});
+                        chromosome.addChild(gene);
+                    }
+                })
+                .setIterationsPerMonitor(1)
+                .setIterationMonitor((iteration, ihdn) -> {
+                    if (write && iteration == 1) ihdn.getIHDNNodes(dormant).findFirst().get().getAllChildNodes()
+                            .findFirst().get().setProperty(Properties.VOTE, new double[]{1000, 0, 0});
+                    return false;
+                });
+        return inMemory ? builder.withInMemoryEngine() : builder;
+    }
+
+    // what the run did, and the genes' votes at the end
+    static Run run(TestTumour tumour, IHDN.IHDNBuilder builder, int batchSize) {
+        IHDN ihdn = builder.createIHDN();
+        try {
+            ComputeResult result = ihdn.computeAll(ITERATIONS, batchSize);
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                double[] votes = ihdn.getIHDNNodes(TestTumour.GENE)
+                        .flatMapToDouble(gene -> Arrays.stream(gene.getVote())).toArray();
+                long cells = ihdn.getActiveIHDNNodes(TestTumour.CELL).count();
+                tx.success();
+                return new Run(tumour.applied, result.getIterations(), cells, votes);
+            }
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    static final class Run {
+
+        final List<String> applied;
+        final int iterations;
+        final long cells;
+        final double[] votes;
+
+        Run(List<String> applied, int iterations, long cells, double[] votes) {
+            this.applied = applied;
+            this.iterations = iterations;
+            this.cells = cells;
+            this.votes = votes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Run)) return false;
+            Run run = (Run) o;
+            return applied.equals(run.applied) && iterations == run.iterations && cells == run.cells
+                    && Arrays.equals(votes, run.votes);
+        }
+
+        @Override
+        public int hashCode() {
+            return applied.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return iterations + " iterations, " + cells + " cells, " + applied.size() + " functions applied";
+        }
+    }
+}
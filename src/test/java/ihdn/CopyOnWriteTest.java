@@ -0,0 +1,135 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class CopyOnWriteTest {
+
+    @Test
+    public void testWriteThroughCloneLeavesOriginal() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(3).createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            List<IHDNNode> sharing = sharingCells(ihdn);
+            IHDNNode cell = sharing.get(0), twin = sharing.get(1);
+            double before = sum(cell);
+            IHDNNode clone = cell.cowClone();
+            // written through the clone, the path made private
+            IHDNNode chromosome = clone.getAllChildNodes().findFirst().get();
+            IHDNNode gene = chromosome.getAllChildNodes().findFirst().get();
+            double[] vote = gene.getVote().clone();
+            assertEquals(3, chromosome.getDegree(IHDNRelTypes.CONTAINS, Direction.INCOMING));
+
+            clone.materializeChild(chromosome).materializeChild(gene).setProperty(Properties.VOTE,
+                    new double[]{9, 9, 9});
+
+            // the path written keeps its nodes, the other parents share one copy of the state before
+            assertFalse(chromosome.isShared());
+            assertFalse(gene.isShared());
+            IHDNNode copy = cell.getAllChildNodes().filter(c -> clone.getAllChildNodes().noneMatch(k -> k == c))
+                    .findFirst().get();
+            assertTrue(twin.getAllChildNodes().anyMatch(c -> c == copy));
+            IHDNNode geneCopy = copy.getAllChildNodes()
+                    .filter(g -> chromosome.getAllChildNodes().noneMatch(k -> k == g)).findFirst().get();
+            assertNotEquals(gene.getKey(), geneCopy.getKey());
+            assertArrayEquals(vote, geneCopy.getVote(), 0);
+            assertArrayEquals(new double[]{9, 9, 9}, gene.getVote(), 0);
+            assertEquals(before, sum(cell), 0);
+            assertEquals(before, sum(twin), 0);
+            assertTrue(sum(clone) > before);
+
+            // genes not written stay shared between the chromosome and its copy
+            assertEquals(2, chromosome.getAllChildNodes().filter(IHDNNode::isShared).count());
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testMovingSharedChromosomeNeedsNoCopy() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(3).createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            IHDNNode cell = sharingCells(ihdn).get(0), other = cells(ihdn).get(0);
+            IHDNNode clone = cell.cowClone();
+            IHDNNode chromosome = clone.getAllChildNodes().findFirst().get();
+            long created = ihdn.getNodesCreated();
+
+            assertTrue(clone.moveChild(chromosome, other));
+
+            assertEquals(created, ihdn.getNodesCreated());
+            assertTrue(other.getAllChildNodes().anyMatch(c -> c == chromosome));
+            assertTrue(cell.getAllChildNodes().anyMatch(c -> c == chromosome));
+            assertEquals(1, clone.getAllChildNodes().count());
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testVoteTotalsMatchDeepClone() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(3).createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            IHDNNode cell = sharingCells(ihdn).get(0);
+            double original = sum(cell);
+            IHDNNode cow = cell.cowClone(), deep = cell.deepClone();
+            assertEquals(original, sum(cow), 0);
+            assertEquals(original, sum(deep), 0);
+
+            for (IHDNNode clone : new IHDNNode[]{cow, deep}) {
+                IHDNNode chromosome = clone.getAllChildNodes().findFirst().get();
+                clone.materializeChild(chromosome);
+                chromosome.getAllChildNodes().forEach(gene ->
+                        chromosome.materializeChild(gene).setProperty(Properties.VOTE, new double[]{2, 2, 2}));
+                chromosome.materializeChild(chromosome.getAllChildNodes().findFirst().get()).setInactive();
+            }
+            assertEquals(sum(deep), sum(cow), 0);
+            assertEquals(original, sum(cell), 0);
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedFunctionsRunOncePerIteration() throws Exception {
+        TestTumour tumour = new TestTumour(0);
+        IHDN ihdn = tumour.builder(3).createIHDN();
+        try {
+            ihdn.computeAll(1, 1);
+        } finally {
+            ihdn.shutdown();
+        }
+
+        // 4 cells of 2 chromosomes of 3 genes, the fifth cell's genes are another's
+        List<String> mutations = tumour.applied.stream().filter(a -> a.endsWith(":mutate"))
+                .collect(Collectors.toList());
+        assertEquals(24, mutations.size());
+        assertEquals(24, mutations.stream().distinct().count());
+    }
+
+    // by key
+    private static List<IHDNNode> cells(IHDN ihdn) {
+        return ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().get().getAllChildNodes()
+                .sorted((a, b) -> Long.compare(a.getKey(), b.getKey())).collect(Collectors.toList());
+    }
+
+    // the two built sharing their chromosomes
+    private static List<IHDNNode> sharingCells(IHDN ihdn) {
+        return cells(ihdn).stream().filter(c -> c.getAllChildNodes().anyMatch(IHDNNode::isShared))
+                .collect(Collectors.toList());
+    }
+
+    // votes of the active nodes of the subtree
+    private static double sum(IHDNNode node) {
+        if (!node.isActive()) return 0;
+        return Arrays.stream(node.getVote()).sum() + node.getAllChildNodes().mapToDouble(CopyOnWriteTest::sum).sum();
+    }
+}
@@ -0,0 +1,37 @@
+package ihdn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CounterRandomTest {
+
+    @Test
+    public void testDrawsDependOnlyOnCounter() throws Exception {
+        CounterRandom a = new CounterRandom(42);
+        CounterRandom b = new CounterRandom(42);
+
+        // order of draws does not matter
+        double later = b.nextDouble(7, 3, CounterRandom.SELECTION);
+        assertEquals(a.nextDouble(1, 2, CounterRandom.SELECTION), b.nextDouble(1, 2, CounterRandom.SELECTION), 0);
+        assertEquals(a.nextDouble(7, 3, CounterRandom.SELECTION), later, 0);
+
+        assertEquals(a.forNode(5, 9).nextLong(), b.forNode(5, 9).nextLong());
+    }
+
+    @Test
+    public void testCountersAreIndependent() throws Exception {
+        CounterRandom random = new CounterRandom(42);
+        long draw = random.nextLong(1, 2, CounterRandom.SELECTION);
+
+        assertNotEquals(draw, random.nextLong(2, 2, CounterRandom.SELECTION));
+        assertNotEquals(draw, random.nextLong(1, 3, CounterRandom.SELECTION));
+        assertNotEquals(draw, random.nextLong(1, 2, CounterRandom.FUNCTION));
+        assertNotEquals(draw, new CounterRandom(43).nextLong(1, 2, CounterRandom.SELECTION));
+
+        for (int i = 0; i < 1000; i++) {
+            double d = random.nextDouble(i, i * 31, CounterRandom.SELECTION);
+            assertTrue(d >= 0 && d < 1);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class DefaultFilterTest {
+
+    private static final Label ITEM = Label.label("Item");
+
+    @Test
+    public void testDefaultFilterHandedOutIsACopy() throws Exception {
+        IHDN ihdn = items(false, false);
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            List<IHDNNode> items = items(ihdn);
+            items.get(0).getFilter()[0] = 0;
+            items.get(0).setProperty(Properties.FILTER, new double[]{0.25});
+
+            assertArrayEquals(new double[]{0.25}, items.get(0).getFilter(), 0);
+            for (IHDNNode item : items.subList(1, items.size()))
+                assertArrayEquals(new double[]{1}, item.getFilter(), 0);
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testFilterWrittenInComputeAllStaysOnItsNode() throws Exception {
+        for (boolean inMemory : new boolean[]{false, true}) {
+            for (boolean sparse : new boolean[]{false, true}) {
+                IHDN ihdn = items(inMemory, sparse);
+                try {
+                    ihdn.computeAll(3, 1);
+                    try (Transaction tx = ihdn.getDB().beginTx()) {
+                        List<IHDNNode> items = items(ihdn);
+                        assertArrayEquals(new double[]{0.5}, items.get(0).getFilter(), 0);
+                        for (IHDNNode item : items.subList(1, items.size())) {
+                            assertArrayEquals(new double[]{1}, item.getFilter(), 0);
+                            assertFalse(item.hasProperty(Properties.FILTER));
+                        }
+                        tx.success();
+                    }
+                } finally {
+                    ihdn.shutdown();
+                }
+            }
+        }
+    }
+
+    // four items without a filter under a ROOT, the first narrowing its own
+    private static IHDN items(boolean inMemory, boolean sparse) throws Exception {
+        IHDN.IHDNBuilder builder = new IHDN.IHDNBuilder()
+                .withNewDB(TestTumour.newStore())
+                .withSimulation(new Simulation() {
+                })
+                .withFunction("narrow", (ihdn, node) -> {
+                    if (!node.hasLabel(ITEM) || !node.getProperty("n").equals(0)) return;
+                    double[] filter = node.getFilter().clone();
+                    filter[0] = 0.5;
+                    node.setProperty(Properties.FILTER, filter);
+                })
+                .withGraphBuilder(ihdn -> {
+                    IHDNNode root = new IHDNNode(ihdn, IHDNLabels.ROOT);
+                    for (int n = 0; n < 4; n++) {
+                        IHDNNode item = new IHDNNode(ihdn, ITEM);
+                        item.setProperty("n", n);
+                        item.setProperty(Properties.VOTE, new double[]{1});
+                        root.addChild(item);
+                    }
+                })
+                .setSeed(1);
+        if (inMemory) builder.withInMemoryEngine();
+        if (sparse) builder.withSparseDefaults();
+        return builder.createIHDN();
+    }
+
+    // by n
+    private static List<IHDNNode> items(IHDN ihdn) {
+        return ihdn.getIHDNNodes(ITEM).sorted((a, b) -> Integer.compare((int) a.getProperty("n"),
+                (int) b.getProperty("n"))).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,68 @@
+package ihdn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IHDNMetricsTest {
+
+    @Test
+    public void testHistogramBuckets() throws Exception {
+        IHDNMetrics metrics = new IHDNMetrics(new String[]{"divide", "die"});
+        metrics.functionApplied(0, 0);
+        metrics.functionApplied(0, 1);
+        metrics.functionApplied(0, 1000);
+        metrics.functionApplied(0, 1500);
+
+        IHDNMetrics.Histogram divide = metrics.snapshot().getFunctionLatency().get("divide");
+        assertEquals(4, divide.getCount());
+        assertEquals(2501, divide.getTotalNanos());
+        assertEquals(1, divide.getBucketCount(0));
+        assertEquals(1, divide.getBucketCount(1));
+        // 1000 is in [512, 1024), 1500 in [1024, 2048)
+        assertEquals(1, divide.getBucketCount(10));
+        assertEquals(1, divide.getBucketCount(11));
+        assertEquals(0, divide.getPercentileNanos(0.25));
+        assertEquals(1, divide.getPercentileNanos(0.5));
+        assertEquals(2047, divide.getPercentileNanos(1));
+
+        assertEquals(0, metrics.snapshot().getFunctionLatency().get("die").getCount());
+    }
+
+    @Test
+    public void testCreatedAndDeletedPerIteration() throws Exception {
+        IHDNMetrics metrics = new IHDNMetrics(new String[]{"divide"});
+        metrics.nodeCreated();
+        metrics.nodeCreated();
+        metrics.nodeDeleted();
+        metrics.iterationEnd(1, 100);
+        metrics.nodeCreated();
+        metrics.iterationEnd(2, 100);
+
+        IHDNMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getIteration());
+        assertEquals(3, snapshot.getNodesCreated());
+        assertEquals(1, snapshot.getNodesDeleted());
+        assertEquals(1, snapshot.getLastIterationCreated());
+        assertEquals(0, snapshot.getLastIterationDeleted());
+        assertEquals(2, snapshot.getIterationLatency().getCount());
+    }
+
+    @Test
+    public void testReportFormats() throws Exception {
+        IHDNMetrics metrics = new IHDNMetrics(new String[]{"divide", "die"});
+        metrics.nodeVisited();
+        IHDNMetrics.Snapshot snapshot = metrics.snapshot();
+
+        String[] header = MetricsReporter.csvHeader(snapshot).split(",");
+        String[] row = MetricsReporter.csvRow(snapshot).split(",");
+        assertEquals(header.length, row.length);
+        assertEquals("divideCount", header[header.length - 6]);
+        assertEquals("1", row[2]);
+
+        String json = MetricsReporter.json(snapshot);
+        assertTrue(json.startsWith("{\"timeMillis\":"));
+        assertTrue(json.contains("\"nodesVisited\":1,"));
+        assertTrue(json.contains("\"functionLatency\":{\"divide\":{\"count\":0,"));
+    }
+}
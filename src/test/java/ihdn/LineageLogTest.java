@@ -0,0 +1,62 @@
+package ihdn;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LineageLogTest {
+
+    // 1 -> 2 -> 3 (same signature as 2) -> 4, and 1 -> 5 (same signature as 1)
+    private static LineageLog lineage(LineageLog log) {
+        log.recordOrigin(1, 0, 10);
+        log.record(2, 1, (byte) 1, 1, 20);
+        log.record(3, 2, (byte) 1, 2, 20);
+        log.record(4, 3, (byte) 2, 3, 30);
+        log.record(5, 1, (byte) 1, 1, 10);
+        return log;
+    }
+
+    @Test
+    public void testAncestryAndCollapsedPath() throws Exception {
+        LineageLog log = lineage(new LineageLog());
+
+        assertArrayEquals(new long[]{4, 3, 2, 1}, log.ancestry(4));
+        assertArrayEquals(new long[]{30, 20, 10}, log.collapsedPath(4));
+        assertArrayEquals(new long[]{10}, log.collapsedPath(5));
+        assertEquals(LineageLog.NO_PARENT, log.getParent(1));
+    }
+
+    @Test
+    public void testCollapsedPathCounts() throws Exception {
+        LineageLog log = lineage(new LineageLog());
+
+        Map<List<Long>, Long> counts = log.collapsedPathCounts(new long[]{1, 3, 2, 4, 5});
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(2), counts.get(Arrays.asList(10L)));
+        assertEquals(Long.valueOf(2), counts.get(Arrays.asList(20L, 10L)));
+        assertEquals(Long.valueOf(1), counts.get(Arrays.asList(30L, 20L, 10L)));
+    }
+
+    @Test
+    public void testReadBackFlushedRecords() throws Exception {
+        File file = File.createTempFile("lineage", ".log");
+        file.deleteOnExit();
+
+        LineageLog log = new LineageLog(file);
+        log.recordOrigin(1, 0, 10);
+        log.flush();
+        lineage(log);
+        log.flush();
+
+        LineageLog read = LineageLog.read(file);
+        assertEquals(log.size(), read.size());
+        assertArrayEquals(log.collapsedPath(4), read.collapsedPath(4));
+        assertEquals(2, read.getEvent(4));
+        assertEquals(3, read.getIteration(4));
+    }
+}
@@ -0,0 +1,85 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class MutationBufferTest {
+
+    private static final Label ITEM = Label.label("Item");
+
+    @Test
+    public void testDeferredMutationsApplyAfterTheIteration() throws Exception {
+        List<Long> seen = new ArrayList<>();
+        IHDN ihdn = items(seen, true);
+        try {
+            ihdn.computeAll(1, 1);
+            // every function saw the items as they were before the iteration
+            assertEquals(Arrays.asList(3L, 3L, 3L), seen);
+
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                List<IHDNNode> items = ihdn.getActiveIHDNNodes(ITEM).collect(Collectors.toList());
+                // three copies, and the first item deleted after its copy was made
+                assertEquals(5, items.size());
+                for (IHDNNode item : items) {
+                    if (item.hasProperty("copy")) assertFalse(item.hasProperty("seen"));
+                    // the later write wins, the write recorded after the delete was skipped
+                    else assertEquals(2, item.getProperty("seen"));
+                }
+                tx.success();
+            }
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testImmediateMutationsApplyInPlace() throws Exception {
+        List<Long> seen = new ArrayList<>();
+        IHDN ihdn = items(seen, false);
+        try {
+            ihdn.computeAll(1, 1);
+            // each function sees the copies made by the ones before it
+            assertEquals(3, seen.size());
+            assertNotEquals(Arrays.asList(3L, 3L, 3L), seen);
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    // three items under a ROOT, each copying itself, writing twice, and the first deleting itself in between
+    private static IHDN items(List<Long> seen, boolean deferred) throws Exception {
+        IHDN.IHDNBuilder builder = new IHDN.IHDNBuilder()
+                .withNewDB(TestTumour.newStore())
+                .withSimulation(new Simulation() {
+                })
+                .withFunction("grow", (ihdn, node) -> {
+                    if (!node.hasLabel(ITEM)) return;
+                    seen.add(ihdn.getActiveIHDNNodes(ITEM).count());
+                    MutationBuffer mutations = ihdn.getMutations();
+                    mutations.shallowClone(node, copy -> copy.setProperty("copy", true));
+                    mutations.setProperty(node, "seen", 1);
+                    if (node.getProperty("n").equals(0)) mutations.delete(node);
+                    mutations.setProperty(node, "seen", 2);
+                })
+                .withGraphBuilder(ihdn -> {
+                    IHDNNode root = new IHDNNode(ihdn, IHDNLabels.ROOT);
+                    for (int n = 0; n < 3; n++) {
+                        IHDNNode item = new IHDNNode(ihdn, ITEM);
+                        item.setProperty("n", n);
+                        item.setProperty(Properties.VOTE, new double[]{1});
+                        root.addChild(item);
+                    }
+                })
+                .setSeed(1);
+        if (deferred) builder.withDeferredMutations();
+        return builder.createIHDN();
+    }
+}
@@ -0,0 +1,88 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ReplicateTest {
+
+    @Test
+    public void testDeepCopiesKeepStructureWithNewKeys() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(1).createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            IHDNNode tissue = ihdn.getIHDNNodes(IHDNLabels.ROOT).findFirst().get();
+            IHDNNode cell = ihdn.getIHDNNodes(TestTumour.CELL).findFirst().get();
+            cell.setProperty("tag", "original");
+            Set<Long> keys = keys(ihdn);
+
+            List<IHDNNode> copies = ihdn.replicate(cell, 3);
+
+            assertEquals(3, copies.size());
+            for (IHDNNode copy : copies) {
+                assertEquals(structure(cell), structure(copy));
+                assertEquals(Collections.singletonList(tissue.getId()), parentIds(copy));
+            }
+            // each copied node, a cell, two chromosomes and six genes per copy, has a key of its own
+            assertEquals(keys.size() + 3 * 9, keys(ihdn).size());
+            assertTrue(keys(ihdn).containsAll(keys));
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedCopiesShareChildren() throws Exception {
+        IHDN ihdn = new TestTumour(0).builder(1).createIHDN();
+        try (Transaction tx = ihdn.getDB().beginTx()) {
+            IHDNNode cell = ihdn.getIHDNNodes(TestTumour.CELL).findFirst().get();
+            Set<Long> children = childIds(cell);
+            long created = ihdn.getNodesCreated();
+
+            List<IHDNNode> copies = ihdn.replicate(cell, 2, true);
+
+            // only the copied roots are created
+            assertEquals(created + 2, ihdn.getNodesCreated());
+            for (IHDNNode copy : copies) {
+                assertEquals(structure(cell), structure(copy));
+                assertEquals(children, childIds(copy));
+                assertNotEquals(cell.getKey(), copy.getKey());
+            }
+            assertNotEquals(copies.get(0).getKey(), copies.get(1).getKey());
+            tx.success();
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    // labels, properties but the key, and children of the subtree, in an order independent of ids
+    private static String structure(IHDNNode node) {
+        SortedSet<String> labels = new TreeSet<>();
+        for (Label label : node.getLabels()) labels.add(label.name());
+        SortedMap<String, String> properties = new TreeMap<>();
+        node.getAllProperties().forEach((key, value) -> {
+            if (!key.equals(Properties.NODE_KEY)) properties.put(key, Arrays.deepToString(new Object[]{value}));
+        });
+        List<String> children = node.getAllChildNodes().map(ReplicateTest::structure).sorted()
+                .collect(Collectors.toList());
+        return labels + "" + properties + children;
+    }
+
+    private static Set<Long> keys(IHDN ihdn) {
+        return ihdn.getDB().getAllNodes().stream().map(node -> ihdn.handle(node).getKey())
+                .collect(Collectors.toSet());
+    }
+
+    private static List<Long> parentIds(IHDNNode node) {
+        return node.getAllParentNodes().map(IHDNNode::getId).collect(Collectors.toList());
+    }
+
+    private static Set<Long> childIds(IHDNNode node) {
+        return node.getAllChildNodes().map(IHDNNode::getId).collect(Collectors.toSet());
+    }
+}
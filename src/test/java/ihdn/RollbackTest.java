@@ -0,0 +1,145 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RollbackTest {
+
+    @Test
+    public void testDerivedStateFollowsRollback() throws Exception {
+        TestTumour tumour = new TestTumour(40);
+        boolean[] failing = {true};
+        // a handle kept across the rollback, its cached row must follow the node
+        IHDNNode[] held = new IHDNNode[1];
+        IHDN ihdn = tumour.builder(5)
+                .withAggregates(aggregates -> aggregates.registerCount(TestTumour.CELL))
+                .setIterationsPerMonitor(1)
+                .setIterationMonitor((iteration, view) -> {
+                    if (held[0] != null)
+                        assertArrayEquals(view.handle(held[0].getId()).getVote(), held[0].getVote(), 0);
+                    if (failing[0] && iteration == 3) throw new IllegalStateException("Monitor failed.");
+                    return false;
+                })
+                .createIHDN();
+        try {
+            long cells;
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                cells = activeCells(ihdn);
+                held[0] = ihdn.getIHDNNodes(TestTumour.GENE).reduce((first, second) -> second).get();
+                tx.success();
+            }
+
+            try {
+                ihdn.computeAll(10, 100);
+                fail();
+            } catch (IllegalStateException expected) {
+                // the three iterations' divisions and deaths are rolled back
+            }
+            assertTrue(tumour.applied.stream().anyMatch(applied -> applied.endsWith(":divide")));
+
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                assertEquals(cells, activeCells(ihdn));
+                assertEquals(cells, ihdn.getActiveIHDNNodes(TestTumour.CELL).count());
+                assertEquals(cells, ihdn.getAggregates().getCount(TestTumour.CELL));
+                try (ResourceIterator<Node> nodes = ihdn.getDB().getAllNodes().iterator()) {
+                    while (nodes.hasNext()) {
+                        Node node = nodes.next();
+                        IHDNNode handle = ihdn.handle(node);
+                        assertFalse(handle.isDeleted());
+                        assertEquals(node.getProperty(Properties.NODE_KEY), handle.getKey());
+                    }
+                }
+                tx.success();
+            }
+
+            // a retried run is the run that would have been made
+            failing[0] = false;
+            List<String> retried = new ArrayList<>(rerun(tumour, ihdn));
+            TestTumour clean = new TestTumour(40);
+            IHDN cleanIHDN = clean.builder(5).createIHDN();
+            try {
+                cleanIHDN.computeAll(6, 100);
+            } finally {
+                cleanIHDN.shutdown();
+            }
+            assertEquals(clean.applied, retried);
+        } finally {
+            ihdn.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedCreateLeavesNoStore() throws Exception {
+        String store = TestTumour.newStore();
+        TestTumour tumour = new TestTumour(0);
+        try {
+            tumour.builder(1, store).withGraphBuilder(ihdn -> {
+                TestTumour.build(ihdn);
+                // some of the graph committed
+                ihdn.commit();
+                throw new IllegalStateException("Graph builder failed.");
+            }).createIHDN();
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("Graph builder failed.", expected.getMessage());
+        }
+        assertFalse(new File(store).exists());
+
+        // the same store can be made again
+        tumour.builder(1, store).createIHDN().shutdown();
+    }
+
+    @Test
+    public void testWriteQueryDuringComputeAll() throws Exception {
+        TestTumour plain = new TestTumour(40), querying = new TestTumour(40);
+        List<String> expected = dieWith(plain, false);
+        // the query drops ordinals and handles while selected functions are still to be applied
+        List<String> actual = dieWith(querying, true);
+
+        assertTrue(expected.size() > 12);
+        assertEquals(expected, actual);
+    }
+
+    // the tumour's run, its dying cells first running a query that writes a property nothing reads
+    private static List<String> dieWith(TestTumour tumour, boolean query) throws Exception {
+        IHDN ihdn = tumour.builder(17).withFunction("die", (graph, node) -> {
+            if (!node.hasLabel(TestTumour.CELL)) return;
+            if (query) graph.execute("MATCH (g:Gene) SET g.touched = 1").close();
+            tumour.applied.add(graph.getCurrentIteration() + ":" + node.getKey() + ":die");
+            node.setInactive();
+        }).createIHDN();
+        try {
+            ihdn.computeAll(12, 100);
+            try (Transaction tx = ihdn.getDB().beginTx()) {
+                assertEquals(query, ihdn.getIHDNNodes(TestTumour.GENE).allMatch(gene -> gene.hasProperty("touched")));
+                tx.success();
+            }
+        } finally {
+            ihdn.shutdown();
+        }
+        return tumour.applied;
+    }
+
+    private static List<String> rerun(TestTumour tumour, IHDN ihdn) {
+        int from = tumour.applied.size();
+        ihdn.computeAll(6, 100);
+        return tumour.applied.subList(from, tumour.applied.size());
+    }
+
+    // from the store
+    private static long activeCells(IHDN ihdn) {
+        long count = 0;
+        try (ResourceIterator<Node> nodes = ihdn.getDB().findNodes(TestTumour.CELL)) {
+            while (nodes.hasNext()) if (!nodes.next().hasLabel(IHDNLabels.INACTIVE)) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,102 @@
+package ihdn;
+
+import org.neo4j.graphdb.Label;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+
+// small tissue of cells, chromosomes and genes whose cells divide (sharing their chromosomes) and die, and whose
+// genes mutate, recording every function applied
+class TestTumour implements Simulation {
+
+    static final Label CELL = Label.label("Cell");
+    static final Label CHROMOSOME = Label.label("Chromosome");
+    static final Label GENE = Label.label("Gene");
+    static final byte DIVISION = 1;
+
+    final List<String> applied = new ArrayList<>();
+    private final int maxCells;
+
+    TestTumour(int maxCells) {
+        this.maxCells = maxCells;
+    }
+
+    // new store in a temporary directory
+    static String newStore() throws IOException {
+        File dir = Files.createTempDirectory("ihdn").toFile();
+        dir.deleteOnExit();
+        return new File(dir, "graph.db").getPath();
+    }
+
+    IHDN.IHDNBuilder builder(long seed) throws IOException {
+        return builder(seed, newStore());
+    }
+
+    IHDN.IHDNBuilder builder(long seed, String store) {
+        return new IHDN.IHDNBuilder()
+                .withNewDB(store)
+                .withSimulation(this)
+                .withFunction("divide", this::divide)
+                .withFunction("die", this::die)
+                .withFunction("mutate", this::mutate)
+                .withGraphBuilder(TestTumour::build)
+                .setSeed(seed);
+    }
+
+    static void build(IHDN ihdn) {
+        IHDNNode tissue = new IHDNNode(ihdn, IHDNLabels.ROOT);
+        for (int c = 0; c < 4; c++) {
+            IHDNNode cell = new IHDNNode(ihdn, CELL);
+            tissue.addChild(cell);
+            for (int k = 0; k < 2; k++) {
+                IHDNNode chromosome = new IHDNNode(ihdn, CHROMOSOME);
+                chromosome.setProperty(Properties.FILTER, new double[]{0, 0, 1});
+                cell.addChild(chromosome);
+                for (int g = 0; g < 3; g++) {
+                    IHDNNode gene = new IHDNNode(ihdn, GENE);
+                    gene.setProperty(Properties.VOTE, new double[]{1 + c, 0.5 + g, 1});
+                    chromosome.addChild(gene);
+                }
+            }
+        }
+        // a cell sharing its chromosomes with the first one from the start
+        tissue.getAllChildNodes().findFirst().get().cowClone();
+    }
+
+    private void divide(IHDN ihdn, IHDNNode node) {
+        if (!node.hasLabel(CELL)) return;
+        record(ihdn, node, "divide");
+        if (ihdn.getActiveIHDNNodes(CELL).count() >= maxCells) return;
+        IHDNNode daughter = node.cowClone();
+        // missegregation: one chromosome moves to the daughter
+        List<IHDNNode> chromosomes = node.getAllChildNodes().collect(Collectors.toList());
+        if (chromosomes.size() > 1)
+            node.moveChild(chromosomes.get(ihdn.getRandom(node).nextInt(chromosomes.size())), daughter);
+        ihdn.getLineage().record(daughter.getKey(), node.getKey(), DIVISION, ihdn.getCurrentIteration(),
+                chromosomes.size());
+    }
+
+    private void die(IHDN ihdn, IHDNNode node) {
+        if (!node.hasLabel(CELL)) return;
+        record(ihdn, node, "die");
+        node.setInactive();
+    }
+
+    private void mutate(IHDN ihdn, IHDNNode node) {
+        if (!node.hasLabel(GENE)) return;
+        record(ihdn, node, "mutate");
+        SplittableRandom random = ihdn.getRandom(node);
+        double[] vote = node.getVote().clone();
+        vote[random.nextInt(vote.length)] *= 0.5 + random.nextDouble();
+        node.setProperty(Properties.VOTE, vote);
+    }
+
+    private void record(IHDN ihdn, IHDNNode node, String function) {
+        applied.add(ihdn.getCurrentIteration() + ":" + node.getKey() + ":" + function);
+    }
+}
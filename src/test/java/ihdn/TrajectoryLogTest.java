@@ -0,0 +1,54 @@
+package ihdn;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Label;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TrajectoryLogTest {
+
+    @Test
+    public void testReplayToIteration() throws Exception {
+        File file = File.createTempFile("trajectory", ".log");
+        file.deleteOnExit();
+
+        try (TrajectoryLog log = new TrajectoryLog(file)) {
+            log.nodeCreated(1, new Label[]{IHDNLabels.ROOT});
+            log.nodeCreated(2, new Label[0]);
+            log.relationshipCreated(1, 2, IHDNRelTypes.CONTAINS);
+            log.propertySet(2, Properties.VOTE, new double[]{1, 0});
+            log.iterationEnd(0);
+
+            log.functionApplied(0, 2, 1, 0.25);
+            log.nodeCreated(3, new Label[0]);
+            log.relationshipCreated(1, 3, IHDNRelTypes.CONTAINS);
+            log.propertySet(3, "name", "copy");
+            log.iterationEnd(1);
+
+            log.relationshipDeleted(1, 2, IHDNRelTypes.CONTAINS);
+            log.nodeDeleted(2);
+            log.labelAdded(3, IHDNLabels.INACTIVE);
+            log.iterationEnd(2);
+        }
+
+        TrajectoryModel start = TrajectoryLog.replay(file, 0);
+        assertEquals(0, start.getIteration());
+        assertEquals(2, start.getNodeKeys().size());
+        assertArrayEquals(new double[]{1, 0}, (double[]) start.getProperties(2).get(Properties.VOTE), 0);
+        assertEquals(Collections.singletonList(2L), start.getChildren(1));
+
+        TrajectoryModel first = TrajectoryLog.replay(file, 1);
+        assertEquals(1, first.getFunctionApplications());
+        assertEquals("copy", first.getProperties(3).get("name"));
+        assertEquals(2, first.getChildren(1).size());
+
+        TrajectoryModel end = TrajectoryLog.replay(file, Integer.MAX_VALUE);
+        assertEquals(2, end.getIteration());
+        assertFalse(end.hasNode(2));
+        assertEquals(Collections.singletonList(3L), end.getChildren(1));
+        assertTrue(end.getLabels(3).contains(IHDNLabels.INACTIVE.name()));
+    }
+}
@@ -0,0 +1,40 @@
+package ihdn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VoteAccumulatorTest {
+
+    // largest child vote in each position, reads neither the IHDN nor the node
+    private final VoteFunction max = (ihdn, ihdnNode, votesFromChildren) ->
+            votesFromChildren.reduce(new double[2], (a, b) -> new double[]{Math.max(a[0], b[0]), Math.max(a[1], b[1])});
+
+    @Test
+    public void testNestedVoteFunctions() throws Exception {
+        VoteAccumulator accumulator = VoteAccumulator.of(max);
+        double[] parent = new double[2], child = new double[2], scratch = {5, 0};
+
+        accumulator.begin(null, null, parent);
+        accumulator.accept(parent, scratch);
+        // child votes are copied, the engine reuses its buffers
+        scratch[0] = 0;
+
+        accumulator.begin(null, null, child);
+        accumulator.accept(child, new double[]{1, 7});
+        accumulator.accept(child, new double[]{2, 3});
+        accumulator.finish(null, null, child);
+        assertArrayEquals(new double[]{2, 7}, child, 0);
+
+        accumulator.accept(parent, child);
+        accumulator.finish(null, null, parent);
+        assertArrayEquals(new double[]{5, 7}, parent, 0);
+    }
+
+    @Test
+    public void testAdaptersRoundTrip() throws Exception {
+        assertSame(VoteAccumulator.DEFAULT, VoteAccumulator.of(VoteFunction.DEFAULT));
+        assertSame(VoteFunction.DEFAULT, VoteAccumulator.DEFAULT.asVoteFunction());
+        assertSame(max, VoteAccumulator.of(max).asVoteFunction());
+    }
+}